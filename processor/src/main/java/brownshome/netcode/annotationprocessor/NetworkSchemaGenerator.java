@@ -119,6 +119,8 @@ public class NetworkSchemaGenerator extends AbstractProcessor {
 	private void writePacket(Packet packet, Schema schema) {
 		try (Writer writer = processingEnv.getFiler().createSourceFile(schema.packageName() + "." + packet.name()).openWriter()) {
 			packet.writePacket(writer, schema);
+		} catch (PacketCompileException pce) {
+			pce.raiseError(processingEnv);
 		} catch (IOException e) {
 			processingEnv.getMessager().printMessage(Kind.ERROR, "Unable to write out packet file: %s".formatted(e));
 		}
@@ -83,7 +83,9 @@ public final class Packet {
 
 								@Override
 								public Boolean visitType(TypeMirror t, Void o) {
-									orderedBy.add(t.getKind().name());
+									// The packet classes may not have been generated yet, so use the name as it was written
+									var typeName = t.toString();
+									orderedBy.add(typeName.substring(typeName.lastIndexOf('.') + 1));
 
 									return true;
 								}
@@ -281,11 +283,13 @@ public final class Packet {
 		}
 	}
 
-	public void writePacket(Writer writer, Schema schema) {
+	public void writePacket(Writer writer, Schema schema) throws PacketCompileException {
 		VelocityContext context = new VelocityContext();
 		context.put("packet", this);
 		context.put("schema", schema);
-		context.put("id", schema.allocateId());
+		context.put("id", schema.packetId(this));
+		context.put("typeMask", "0x%xL".formatted(schema.typeMask(this)));
+		context.put("orderingMask", "0x%xL".formatted(schema.orderingMask(this)));
 
 		TEMPLATE.merge(context, writer);
 	}
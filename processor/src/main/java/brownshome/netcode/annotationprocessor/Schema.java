@@ -9,18 +9,29 @@ import javax.lang.model.element.PackageElement;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /** Holds the information needed to create a schema java file. */
 public class Schema {
 	private static final Template TEMPLATE = VelocityHandler.instance().readTemplateFile("SchemaTemplate");
+
+	/**
+	 * Packets are sorted by their minimum version number and then their class name. This ensures that later additions of
+	 * packets do not impact the order of earlier packet IDs.
+	 */
+	private static final Comparator<Packet> PACKET_ORDER = Comparator.comparingInt(Packet::minimumVersion)
+			.thenComparing(Packet::name)
+			.thenComparing(p -> p.packageElement().getQualifiedName().toString());
 	
 	private final int minorVersion, majorVersion;
 	private final String packageName, shortName;
 	private final List<Packet> packetDefinitions;
 	private final PackageElement element;
 
-	private int freeId = 0;
+	/** The id of each packet, this is computed when it is first needed and discarded if a packet is added */
+	private Map<Packet, Integer> packetIds;
 	
 	public Schema(PackageElement element) {
 		DefineSchema schema = element.getAnnotation(DefineSchema.class);
@@ -42,6 +53,7 @@ public class Schema {
 	
 	public void addPacket(Packet packet) throws PacketCompileException {
 		packetDefinitions.add(packet);
+		packetIds = null;
 
 		if (packet.minimumVersion() > minorVersion) {
 			throw new PacketCompileException(
@@ -52,12 +64,7 @@ public class Schema {
 	}
 	
 	public void writeSchema(Writer writer) {
-		// Sort packets by their minimum version number and then their class name
-		// This ensures that later additions of packets do not impact the order of earlier packet IDs
-		packetDefinitions
-				.sort(Comparator.comparingInt(Packet::minimumVersion)
-						.thenComparing(Packet::name)
-						.thenComparing(p -> p.packageElement().getQualifiedName().toString()));
+		packetDefinitions.sort(PACKET_ORDER);
 
 		VelocityContext context = new VelocityContext();
 		context.put("schema", this);
@@ -89,9 +96,49 @@ public class Schema {
 		return packetDefinitions;
 	}
 
-	/** Allocates the next free id in this packet schema for the supplied packet. */
-	public int allocateId() {
-		return freeId++;
+	/**
+	 * The id of a packet in this schema, this is its index in the packet list of the generated schema. This must only be
+	 * called once all of the packets in the schema have been added.
+	 */
+	public int packetId(Packet packet) {
+		if (packetIds == null) {
+			packetDefinitions.sort(PACKET_ORDER);
+
+			packetIds = new HashMap<>();
+			for (int i = 0; i < packetDefinitions.size(); i++) {
+				packetIds.put(packetDefinitions.get(i), i);
+			}
+		}
+
+		return packetIds.get(packet);
+	}
+
+	/**
+	 * The bit that represents a packet in the ordering masks. Each schema is compiled on its own, so the bits can't be
+	 * kept apart between schemas: the packets with the same id in every schema of a protocol share a bit, as do packets
+	 * 64 ids apart in a schema with more than 64 packets. Packets that share a bit are ordered as if they were one type.
+	 * This can make a packet wait for packets that it is not ordered by, but it is never handled ahead of a packet that
+	 * it is ordered by.
+	 */
+	public long typeMask(Packet packet) {
+		return 1L << packetId(packet) % Long.SIZE;
+	}
+
+	/** The type masks of all of the packets that a packet is ordered by, combined */
+	public long orderingMask(Packet packet) throws PacketCompileException {
+		long mask = 0L;
+
+		for (var name : packet.orderedBy()) {
+			var orderedBy = packetDefinitions.stream()
+					.filter(p -> p.name().equals(name))
+					.findAny()
+					.orElseThrow(() -> new PacketCompileException(
+							"Packet %s is ordered by %s, which is not in schema %s".formatted(packet.name(), name, shortName)));
+
+			mask |= typeMask(orderedBy);
+		}
+
+		return mask;
 	}
 
 	public PackageElement packageElement() {
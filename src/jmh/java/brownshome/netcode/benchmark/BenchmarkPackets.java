@@ -0,0 +1,18 @@
+package brownshome.netcode.benchmark;
+
+import brownshome.netcode.annotation.DefinePacket;
+import brownshome.netcode.annotation.OrderedBy;
+
+/** This class contains the packets that are sent by the benchmarks. */
+final class BenchmarkPackets {
+	private BenchmarkPackets() {  }
+
+	/** An unreliable packet, this is ordered by its own type like every packet that does not opt out */
+	@DefinePacket
+	static void position(int entity, float x, float y, float z) {	}
+
+	/** An unreliable packet that is not ordered by anything */
+	@DefinePacket
+	@OrderedBy(self = false)
+	static void unorderedPosition(int entity, float x, float y, float z) {	}
+}
@@ -0,0 +1,86 @@
+package brownshome.netcode.benchmark;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import brownshome.netcode.Connection;
+import brownshome.netcode.Schema;
+import brownshome.netcode.udp.CongestionController;
+import brownshome.netcode.udp.FixedRateCongestionController;
+import brownshome.netcode.udp.UDPConnection;
+import brownshome.netcode.udp.UDPConnectionManager;
+
+/**
+ * Compares the cost of sending unreliable packets with {@link Connection#send} and {@link Connection#sendUnreliable}
+ * over a loopback UDP connection. Run with {@code gradle jmh -Pjmh.profilers=gc} to see the allocations per packet.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SendUnreliableBenchmark {
+	/** A rate high enough that the pacing never holds the sender back */
+	private static final long RATE = 1024L * 1024 * 1024;
+
+	/** Sends at a fixed rate, so that the benchmark measures the send path rather than the congestion controller */
+	private static final class FixedRateManager extends UDPConnectionManager {
+		FixedRateManager(List<Schema> schemas) throws IOException {
+			super(schemas);
+		}
+
+		@Override
+		public CongestionController createCongestionController(InetSocketAddress address, int datagramSize) {
+			return new FixedRateCongestionController(RATE, RATE / 1000);
+		}
+	}
+
+	private UDPConnectionManager server;
+	private UDPConnectionManager client;
+	private UDPConnection connection;
+
+	private final PositionPacket ordered = new PositionPacket(1, 1.0f, 2.0f, 3.0f);
+	private final UnorderedPositionPacket unordered = new UnorderedPositionPacket(1, 1.0f, 2.0f, 3.0f);
+
+	@Setup
+	public void connect() throws Exception {
+		List<Schema> schemas = List.of(new BenchmarkSchema());
+
+		server = new FixedRateManager(schemas);
+		client = new FixedRateManager(schemas);
+
+		connection = client.getOrCreateConnection(server.address());
+		connection.connect().get(5, TimeUnit.SECONDS);
+	}
+
+	@TearDown
+	public void close() throws Exception {
+		client.close();
+		server.close();
+	}
+
+	@Benchmark
+	public Object send() {
+		return connection.send(ordered);
+	}
+
+	@Benchmark
+	public void sendUnreliable() {
+		connection.sendUnreliable(ordered);
+	}
+
+	@Benchmark
+	public Object sendUnordered() {
+		return connection.send(unordered);
+	}
+
+	@Benchmark
+	public void sendUnreliableUnordered() {
+		connection.sendUnreliable(unordered);
+	}
+}
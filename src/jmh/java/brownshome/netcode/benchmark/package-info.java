@@ -0,0 +1,10 @@
+/**
+ * This package contains the packets and benchmarks used to measure the cost of sending packets.
+ */
+
+@DefineSchema
+@Name("BenchmarkSchema")
+package brownshome.netcode.benchmark;
+
+import brownshome.netcode.annotation.DefineSchema;
+import brownshome.netcode.annotation.Name;
@@ -0,0 +1,101 @@
+package brownshome.netcode.udp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the datagrams per second that the acknowledgement window can track, at both ends of a connection. The
+ * receiving end records each received sequence number in an {@link AcknowledgementSender}, and builds an acknowledgement
+ * field for a number of them at a time. The sending end allocates a sequence number from a {@link SequenceNumberPool} for
+ * each datagram, records the send, and has it acknowledged, either one at a time or a word of 64 at a time.
+ *
+ * This is in the udp package so that it can use the package-private window classes, and must be run on the class path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AcknowledgementBenchmark {
+	/** A datagram that holds nothing, so that only the window is measured */
+	private static final SequenceNumberPool.Datagram DATAGRAM = new SequenceNumberPool.Datagram() {
+		@Override
+		public void onAcknowledged() { }
+
+		@Override
+		public void onClosed(Throwable reason) { }
+
+		@Override
+		public void release() { }
+	};
+
+	private static final long[] ONE = { 1L };
+	private static final long[] WORD = { -1L };
+
+	/** The receiving end of the connection */
+	@State(Scope.Thread)
+	public static class Receiver {
+		/** The number of received datagrams that each acknowledgement field is built for */
+		@Param({ "1", "8" })
+		private int datagramsPerField;
+
+		private AcknowledgementSender sender;
+		private final MutableAcknowledgement field = new MutableAcknowledgement();
+		private int nextReceived;
+
+		@Setup(Level.Iteration)
+		public void createWindow() {
+			sender = new AcknowledgementSender();
+			nextReceived = 0;
+		}
+	}
+
+	private SequenceNumberPool pool;
+
+	@Setup(Level.Iteration)
+	public void createWindow() {
+		pool = new SequenceNumberPool((bytes, roundTripNanos, time) -> { });
+	}
+
+	@Benchmark
+	public int receive(Receiver receiver) {
+		int sequenceNumber = receiver.nextReceived++;
+		receiver.sender.onSequenceNumberReceived(sequenceNumber, true);
+
+		if (sequenceNumber % receiver.datagramsPerField == 0) {
+			receiver.sender.constructAcknowledgementField(receiver.field);
+		}
+
+		return receiver.field.words;
+	}
+
+	@Benchmark
+	public int acknowledgeEach() {
+		int sequenceNumber = send();
+		pool.onAcknowledgementsReceived(new Acknowledgement(sequenceNumber, ONE, 0));
+
+		return sequenceNumber;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(Long.SIZE)
+	public int acknowledgeWords() {
+		int oldest = send();
+		for (int i = 1; i < Long.SIZE; i++) {
+			send();
+		}
+
+		pool.onAcknowledgementsReceived(new Acknowledgement(oldest, WORD, 0));
+
+		return oldest;
+	}
+
+	private int send() {
+		int sequenceNumber = pool.allocateSequenceNumber(DATAGRAM);
+		pool.onSent(sequenceNumber, 1200, System.nanoTime(), null);
+
+		return sequenceNumber;
+	}
+}
@@ -0,0 +1,59 @@
+package brownshome.netcode.udp;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import brownshome.netcode.Schema;
+
+/**
+ * Measures the handshakes per second that a server can complete with one client over loopback. Each operation makes a
+ * new connection, so the client is sent a cookie in a retry packet, echoes it, and is admitted and sent the server's
+ * salt. The connection is then dropped at both ends, so each operation also includes sending and handling the close.
+ *
+ * Only the UDP-layer handshake is measured, up to the point where both salts are known. The protocol negotiation that
+ * follows is not.
+ *
+ * This is in the udp package so that it can use the package-private handshake and eviction, and must be run on the
+ * class path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HandshakeBenchmark {
+	private UDPConnectionManager server;
+	private UDPConnectionManager client;
+
+	@Setup
+	public void start() throws Exception {
+		List<Schema> schemas = List.of();
+
+		server = new UDPConnectionManager(schemas);
+		client = new UDPConnectionManager(schemas);
+	}
+
+	@TearDown
+	public void stop() throws Exception {
+		client.close();
+		server.close();
+	}
+
+	@Benchmark
+	public void handshake() throws Exception {
+		var connection = client.getOrCreateConnection(server.address());
+		connection.connect();
+		connection.handshake().get(5, TimeUnit.SECONDS);
+
+		client.dropConnection(connection);
+		connection.evict();
+
+		// The server denies a second handshake from the same address until it has handled the close
+		while (server.liveConnections() != 0) {
+			Thread.onSpinWait();
+		}
+	}
+}
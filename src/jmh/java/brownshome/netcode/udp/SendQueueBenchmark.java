@@ -0,0 +1,70 @@
+package brownshome.netcode.udp;
+
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares the {@link PrioritySendQueue} with the {@link PriorityBlockingQueue} that it replaced, with many threads
+ * sending to one connection. Each operation queues a message and polls one, as the thread that constructs datagrams
+ * does, so the queue stays small. The blocking queue orders by priority and then by the time that the message was
+ * queued, as it did before. Run with {@code -t} to change the number of threads.
+ *
+ * This is in the udp package so that it can use the package-private queue, and must be run on the class path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class SendQueueBenchmark {
+	private record Message(int priority) { }
+
+	private record TimedMessage(int priority, Instant queued) { }
+
+	/** The number of different priorities that are sent */
+	@Param({ "1", "4" })
+	private int priorities;
+
+	private PrioritySendQueue<Message> bucketed;
+	private PriorityBlockingQueue<TimedMessage> blocking;
+
+	@Setup
+	public void createQueues() {
+		bucketed = new PrioritySendQueue<>(Message::priority);
+		blocking = new PriorityBlockingQueue<>(11, Comparator.comparingInt(TimedMessage::priority).reversed()
+				.thenComparing(TimedMessage::queued));
+	}
+
+	/** Each thread sends at its own priority */
+	@State(Scope.Thread)
+	public static class Sender {
+		private static int nextThread = 0;
+
+		int priority;
+
+		@Setup
+		public void pickPriority(SendQueueBenchmark benchmark) {
+			synchronized (Sender.class) {
+				priority = nextThread++ % benchmark.priorities;
+			}
+		}
+	}
+
+	@Benchmark
+	public Object bucketed(Sender sender) {
+		bucketed.add(new Message(sender.priority));
+		return bucketed.poll();
+	}
+
+	@Benchmark
+	public Object priorityBlockingQueue(Sender sender) {
+		blocking.add(new TimedMessage(sender.priority, Instant.now()));
+		return blocking.poll();
+	}
+}
@@ -0,0 +1,66 @@
+package brownshome.netcode.udp;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares scheduling a resend deadline on a {@link TimerWheel} with the {@link CompletableFuture#delayedExecutor}
+ * that was used before it. Each operation schedules a deadline and then acknowledges the datagram, which is what
+ * happens to almost every resend timer. The wheel cancels the timeout, while the delayed executor's task stays queued
+ * until its delay has passed and then finds that there is nothing to do.
+ *
+ * This is in the udp package so that it can use the package-private timer classes, and must be run on the class path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TimerBenchmark {
+	/** A typical resend delay */
+	private static final long DELAY = TimeUnit.MILLISECONDS.toNanos(200);
+
+	private static final Runnable RESEND = () -> { };
+
+	private EventLoop loop;
+	private TimerWheel wheel;
+	private Executor delayedExecutor;
+
+	@Setup
+	public void start() throws Exception {
+		loop = new EventLoop("timer-benchmark");
+		wheel = new TimerWheel(TimeUnit.MILLISECONDS.toNanos(1), 512);
+		loop.addTimer(wheel);
+
+		delayedExecutor = CompletableFuture.delayedExecutor(DELAY, TimeUnit.NANOSECONDS);
+	}
+
+	@TearDown
+	public void stop() throws InterruptedException {
+		loop.close();
+		loop.awaitTermination();
+	}
+
+	@Benchmark
+	public boolean timerWheel() {
+		var timeout = wheel.schedule(RESEND, DELAY);
+		return timeout.cancel();
+	}
+
+	@Benchmark
+	public boolean delayedExecutor() {
+		var acknowledged = new CompletableFuture<Void>();
+
+		delayedExecutor.execute(() -> {
+			if (!acknowledged.isDone()) {
+				RESEND.run();
+			}
+		});
+
+		return acknowledged.complete(null);
+	}
+}
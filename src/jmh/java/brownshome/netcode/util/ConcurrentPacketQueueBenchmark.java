@@ -0,0 +1,56 @@
+package brownshome.netcode.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the throughput of a {@link TypeMaskPacketQueue} that many threads queue packets on at once. Each operation
+ * queues a packet and finishes it straight away, so every thread adds two events to the queue. Each thread queues
+ * packets of its own type, so the threads only contend on the queue itself. Run with {@code -t 8}, {@code -t 16},
+ * {@code -t 32} and {@code -t 64} to see how the queue scales with the number of producers.
+ *
+ * This is in the util package so that it can use the protected schedule method.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class ConcurrentPacketQueueBenchmark {
+	private TypeMaskPacketQueue queue;
+
+	@Setup
+	public void createQueue() {
+		queue = new TypeMaskPacketQueue();
+	}
+
+	/** Each thread queues packets of its own type, types are shared once there are more than 64 threads */
+	@State(Scope.Thread)
+	public static class Producer {
+		private static int nextThread = 0;
+
+		TypePacket packet;
+
+		@Setup
+		public void pickType() {
+			synchronized (Producer.class) {
+				packet = new TypePacket(nextThread++ % Long.SIZE);
+			}
+		}
+	}
+
+	@Benchmark
+	public CompletableFuture<Void> scheduleAndFinish(Producer producer) {
+		var start = new CompletableFuture<Void>();
+		var finished = new CompletableFuture<Void>();
+
+		queue.schedule(producer.packet, start, finished, finished);
+		finished.complete(null);
+
+		return start;
+	}
+}
@@ -0,0 +1,65 @@
+package brownshome.netcode.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the cost of each packet in a {@link TypeMaskPacketQueue} with a backlog of 10,000 packets. Each operation
+ * queues the packets over a number of types, so that all of them are in the queue at once, and then finishes them. The
+ * packets are finished either in the order that they were queued, or newest first, so that nothing is released until
+ * the last packet finishes. Scheduling each event costs time in proportion to the packets that it releases, so the time
+ * for each packet should not grow with the backlog.
+ *
+ * This is in the util package so that it can use the protected schedule method.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(PacketQueueBacklogBenchmark.PACKETS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PacketQueueBacklogBenchmark {
+	static final int PACKETS = 10_000;
+
+	/** The number of types that the packets are spread over */
+	@Param({ "1", "8", "64" })
+	private int types;
+
+	/** Whether the packets are finished in the order that they were queued, rather than newest first */
+	@Param({ "true", "false" })
+	private boolean inOrder;
+
+	private final TypePacket[] packets = new TypePacket[PACKETS];
+	private final CompletableFuture<Void>[] finished = newFutures();
+
+	@SuppressWarnings("unchecked")
+	private static CompletableFuture<Void>[] newFutures() {
+		return (CompletableFuture<Void>[]) new CompletableFuture<?>[PACKETS];
+	}
+
+	@Setup
+	public void createPackets() {
+		for (int i = 0; i < PACKETS; i++) {
+			packets[i] = new TypePacket(i % types);
+		}
+	}
+
+	@Benchmark
+	public CompletableFuture<Void> backlog() {
+		var queue = new TypeMaskPacketQueue();
+
+		for (int i = 0; i < PACKETS; i++) {
+			finished[i] = new CompletableFuture<>();
+			queue.schedule(packets[i], new CompletableFuture<>(), finished[i], finished[i]);
+		}
+
+		for (int i = 0; i < PACKETS; i++) {
+			finished[inOrder ? i : PACKETS - 1 - i].complete(null);
+		}
+
+		return queue.flush();
+	}
+}
@@ -0,0 +1,41 @@
+package brownshome.netcode.util;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import brownshome.netcode.Connection;
+import brownshome.netcode.Packet;
+import brownshome.netcode.Schema;
+
+/** A packet of a single type that is ordered by its own type, it is only queued and never sent or handled */
+final class TypePacket extends Packet {
+	TypePacket(int type) {
+		super(Schema.class, 0, List.of(), 1L << type, 1L << type);
+	}
+
+	@Override
+	public void handle(Connection<?, ?> connection, Schema schema) { }
+
+	@Override
+	public boolean reliable() {
+		return true;
+	}
+
+	@Override
+	public int priority() {
+		return 0;
+	}
+
+	@Override
+	public int minimumMinorVersion() {
+		return 0;
+	}
+
+	@Override
+	public void write(ByteBuffer buffer) { }
+
+	@Override
+	public int size() {
+		return 0;
+	}
+}
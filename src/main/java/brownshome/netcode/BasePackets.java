@@ -7,7 +7,7 @@ import brownshome.netcode.annotation.converter.UseConverter;
 
 /** This class contains all the packets used by the base protocol. */
 final class BasePackets {
-	private static final System.Logger LOGGER = System.getLogger(BasePackets.class.getModule().getName());
+	private static final System.Logger LOGGER = System.getLogger(BasePackets.class.getPackageName());
 	
 	private BasePackets() {  }
 	
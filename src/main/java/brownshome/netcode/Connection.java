@@ -31,6 +31,20 @@ public abstract class Connection<ADDRESS, CONNECTION_MANAGER extends ConnectionM
 	 */
 	public abstract CompletableFuture<Void> send(Packet packet);
 
+	/**
+	 * Sends an unreliable packet without tracking it. Nothing is created to report on the send, so this is meant for
+	 * packets that are sent often and never waited on, such as position updates. Packets that are reliable, or are ordered
+	 * by packets of another type, are sent using {@link #send(Packet)} instead, as are packets sent while the connection is
+	 * being negotiated.
+	 *
+	 * Packets are ordered by their own type by default, and this does not stop them being sent this way. Packets sent
+	 * with this method are queued in the order of the calls, but they may overtake packets of the same type that were
+	 * passed to {@link #send(Packet)} and are still waiting to be queued.
+	 */
+	public void sendUnreliable(Packet packet) {
+		send(packet);
+	}
+
 	public final void sendSync(Packet packet) throws InterruptedException, NetworkException {
 		awaitFuture(send(packet));
 	}
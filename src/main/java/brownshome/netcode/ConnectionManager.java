@@ -8,9 +8,9 @@ import java.util.concurrent.*;
  * @author James Brown
  */
 public abstract class ConnectionManager<ADDRESS, CONNECTION extends Connection<ADDRESS, ?>> implements AutoCloseable {
-	protected static final System.Logger LOGGER = System.getLogger(ConnectionManager.class.getModule().getName());
+	protected static final System.Logger LOGGER = System.getLogger(ConnectionManager.class.getPackageName());
 
-	private final Map<ADDRESS, CONNECTION> connections = new HashMap<>();
+	private final ConnectionTable<ADDRESS, CONNECTION> connections = new ConnectionTable<>();
 	private final List<Schema> schema;
 
 	protected ConnectionManager(List<Schema> schema) {
@@ -18,11 +18,71 @@ public abstract class ConnectionManager<ADDRESS, CONNECTION extends Connection<A
 	}
 
 	/**
-	 * Gets a connection to an address.
+	 * Gets a connection to an address. This may be called from any thread, and marks the connection as in use.
 	 * @return A connection object. This connection may not have been connected.
 	 **/
 	public final CONNECTION getOrCreateConnection(ADDRESS address) {
-		return connections.computeIfAbsent(address, this::createNewConnection);
+		return connections.getOrCreate(address, this::createNewConnection);
+	}
+
+	/**
+	 * Gets the connection to an address if there is one. This may be called from any thread, and marks the connection as
+	 * in use.
+	 * @return the connection, or null if no connection to the address has been created
+	 */
+	public final CONNECTION getConnection(ADDRESS address) {
+		return connections.get(address);
+	}
+
+	/**
+	 * The number of connections that this manager holds
+	 */
+	public final int liveConnections() {
+		return connections.size();
+	}
+
+	/**
+	 * The number of connections that have been evicted from this manager for being idle
+	 */
+	public final long evictedConnections() {
+		return connections.evicted();
+	}
+
+	/**
+	 * Evicts connections that have not been used for longer than the timeout. The connections are split into a number
+	 * of shards, and each call only checks one of them, so this should be called regularly to cover all connections.
+	 *
+	 * @param idleTimeoutNanos how long a connection may go unused before it is evicted
+	 * @return the number of connections that were evicted
+	 * @see #connectionShards()
+	 */
+	protected final int evictIdleConnections(long idleTimeoutNanos) {
+		return connections.evictIdle(idleTimeoutNanos, this::onConnectionEvicted);
+	}
+
+	/**
+	 * Removes a connection from this manager without closing it, a new connection object will be created if the address
+	 * is used again
+	 * @return false if the connection had already been removed
+	 */
+	protected final boolean removeConnection(CONNECTION connection) {
+		return connections.remove(connection.address(), connection);
+	}
+
+	/**
+	 * The number of calls to {@link #evictIdleConnections(long)} that it takes to check every connection
+	 */
+	protected final int connectionShards() {
+		return connections.shardCount();
+	}
+
+	/**
+	 * Called when a connection has been evicted for being idle. Any state held by the connection should be released, as
+	 * a new connection object will be created if the address is used again.
+	 * @param connection the connection that was evicted
+	 */
+	protected void onConnectionEvicted(CONNECTION connection) {
+		connection.closeConnection();
 	}
 
 	/**
@@ -57,11 +117,13 @@ public abstract class ConnectionManager<ADDRESS, CONNECTION extends Connection<A
 	 */
 	@Override
 	public void close() throws InterruptedException {
-		for (var connection : connections.values()) {
+		var connections = this.connections.connections();
+
+		for (var connection : connections) {
 			connection.closeConnection();
 		}
 
-		for (var connection : connections.values()) {
+		for (var connection : connections) {
 			try {
 				connection.closeConnection().get();
 			} catch (ExecutionException e) {
@@ -72,7 +134,7 @@ public abstract class ConnectionManager<ADDRESS, CONNECTION extends Connection<A
 	}
 
 	public CompletableFuture<Void> closeAsync() {
-		return CompletableFuture.allOf(connections.values().stream()
+		return CompletableFuture.allOf(connections.connections().stream()
 				.map(connection -> connection.closeConnection().exceptionally(throwable -> {
 					logConnectionCloseError(connection, throwable);
 					return null;
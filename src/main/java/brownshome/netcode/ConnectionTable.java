@@ -0,0 +1,160 @@
+package brownshome.netcode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * The connections of a manager, split into shards by address. Looking up a connection does not lock, and records the time
+ * that the connection was last used so that idle connections can be evicted.
+ *
+ * Eviction sweeps a single shard at a time, so that the work of finding idle connections in a large table is spread over
+ * many small sweeps rather than done in one pass.
+ */
+final class ConnectionTable<ADDRESS, CONNECTION> {
+	private static final int SHARDS_PER_PROCESSOR = 4;
+
+	private static final class Entry<CONNECTION> {
+		final CONNECTION connection;
+		volatile long lastUsed;
+
+		Entry(CONNECTION connection, long lastUsed) {
+			this.connection = connection;
+			this.lastUsed = lastUsed;
+		}
+	}
+
+	private final ConcurrentHashMap<ADDRESS, Entry<CONNECTION>>[] shards;
+	private final int mask;
+
+	private final AtomicInteger nextSweep = new AtomicInteger(0);
+	private final LongAdder evicted = new LongAdder();
+
+	@SuppressWarnings("unchecked")
+	ConnectionTable() {
+		int shardCount = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * SHARDS_PER_PROCESSOR - 1) << 1;
+
+		shards = (ConcurrentHashMap<ADDRESS, Entry<CONNECTION>>[]) new ConcurrentHashMap<?, ?>[shardCount];
+		for (int i = 0; i < shardCount; i++) {
+			shards[i] = new ConcurrentHashMap<>();
+		}
+
+		mask = shardCount - 1;
+	}
+
+	/**
+	 * Gets the connection to an address, creating it if there is no connection, and marks it as used
+	 */
+	CONNECTION getOrCreate(ADDRESS address, Function<? super ADDRESS, ? extends CONNECTION> factory) {
+		var shard = shard(address);
+		long now = System.nanoTime();
+
+		var entry = shard.get(address);
+		if (entry == null) {
+			entry = shard.computeIfAbsent(address, a -> new Entry<>(factory.apply(a), now));
+		}
+
+		entry.lastUsed = now;
+		return entry.connection;
+	}
+
+	/**
+	 * Gets the connection to an address and marks it as used
+	 * @return the connection, or null if there is no connection to the address
+	 */
+	CONNECTION get(ADDRESS address) {
+		var entry = shard(address).get(address);
+
+		if (entry == null) {
+			return null;
+		}
+
+		entry.lastUsed = System.nanoTime();
+		return entry.connection;
+	}
+
+	/** The number of shards, a full sweep of the table takes this many calls to {@link #evictIdle} */
+	int shardCount() {
+		return shards.length;
+	}
+
+	/**
+	 * Removes the connections in the next shard that have not been used for longer than the timeout
+	 * @param idleTimeoutNanos how long a connection may go unused before it is evicted
+	 * @param onEvicted called with each connection that was removed
+	 * @return the number of connections that were removed
+	 */
+	int evictIdle(long idleTimeoutNanos, Consumer<? super CONNECTION> onEvicted) {
+		var shard = shards[nextSweep.getAndIncrement() & mask];
+		long now = System.nanoTime();
+
+		List<CONNECTION> removed = new ArrayList<>();
+		for (var address : shard.keySet()) {
+			// Check again while removing, in case the connection was used since the sweep began
+			shard.computeIfPresent(address, (unused, entry) -> {
+				if (now - entry.lastUsed <= idleTimeoutNanos) {
+					return entry;
+				}
+
+				removed.add(entry.connection);
+				return null;
+			});
+		}
+
+		evicted.add(removed.size());
+		removed.forEach(onEvicted);
+
+		return removed.size();
+	}
+
+	/**
+	 * Removes a connection from the table
+	 * @return false if the address is no longer mapped to the connection
+	 */
+	boolean remove(ADDRESS address, CONNECTION connection) {
+		var shard = shard(address);
+		var entry = shard.get(address);
+
+		return entry != null && entry.connection == connection && shard.remove(address, entry);
+	}
+
+	/** The connections in the table, this is a snapshot */
+	List<CONNECTION> connections() {
+		List<CONNECTION> connections = new ArrayList<>();
+
+		for (var shard : shards) {
+			for (var entry : shard.values()) {
+				connections.add(entry.connection);
+			}
+		}
+
+		return connections;
+	}
+
+	/** The number of connections in the table */
+	int size() {
+		int size = 0;
+
+		for (var shard : shards) {
+			size += shard.size();
+		}
+
+		return size;
+	}
+
+	/** The number of connections that have been evicted for being idle */
+	long evicted() {
+		return evicted.sum();
+	}
+
+	private ConcurrentHashMap<ADDRESS, Entry<CONNECTION>> shard(ADDRESS address) {
+		int hash = address.hashCode();
+
+		// Use the high bits, as the low bits select the bucket within the shard
+		return shards[(hash ^ hash >>> 16) >>> 8 & mask];
+	}
+}
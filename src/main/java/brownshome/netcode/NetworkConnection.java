@@ -9,7 +9,7 @@ import brownshome.netcode.util.PacketExecutor;
 import brownshome.netcode.util.PacketSendQueue;
 
 public abstract class NetworkConnection<ADDRESS, CONNECTION_MANAGER extends ConnectionManager<ADDRESS, ?>> extends Connection<ADDRESS, CONNECTION_MANAGER> {
-	private static final System.Logger LOGGER = System.getLogger(NetworkConnection.class.getModule().getName());
+	private static final System.Logger LOGGER = System.getLogger(NetworkConnection.class.getPackageName());
 
 	private final PacketSendQueue sendQueue;
 
@@ -21,6 +21,9 @@ public abstract class NetworkConnection<ADDRESS, CONNECTION_MANAGER extends Conn
 	private volatile CompletableFuture<Void> confirmReceivedFuture;
 	private volatile CompletableFuture<Void> closeFuture;
 
+	/** The most recent negotiation started by this end, packets are only sent without the queue once it is complete */
+	private volatile CompletableFuture<Void> negotiation;
+
 	/**
 	 * Creates a connection.
 	 */
@@ -32,6 +35,7 @@ public abstract class NetworkConnection<ADDRESS, CONNECTION_MANAGER extends Conn
 
 		sendQueue = new PacketSendQueue(this);
 		sendQueue.wait(readyToSend);
+		negotiation = readyToSend;
 	}
 
 	@Override
@@ -43,6 +47,16 @@ public abstract class NetworkConnection<ADDRESS, CONNECTION_MANAGER extends Conn
 		return sendQueue.send(packet);
 	}
 
+	@Override
+	public void sendUnreliable(Packet packet) {
+		// Packets are ordered by their own type unless they opt out, this is kept by queueing in the order of the calls
+		if (packet.reliable() || (packet.orderingMask() & ~packet.typeMask()) != 0L || !negotiation.isDone() || closeFuture != null) {
+			send(packet);
+		} else {
+			sendQueue.sendUnreliable(packet);
+		}
+	}
+
 	public record SendResult(CompletableFuture<Void> sent, CompletableFuture<Void> received) {
 		public static SendResult newUnreliable() {
 			return new SendResult(new CompletableFuture<>(), null);
@@ -56,7 +70,16 @@ public abstract class NetworkConnection<ADDRESS, CONNECTION_MANAGER extends Conn
 	 * This is the method that is used to send packets internally. Override this.
 	 * @see #send(Packet)
 	 */
-	public abstract SendResult queueForSending(Packet packet, int id, BitSet bitSet);
+	public abstract SendResult queueForSending(Packet packet);
+
+	/**
+	 * This is the method that is used to send unreliable packets that nothing waits on. By default this calls
+	 * {@link #queueForSending(Packet)} and discards the result, override this to avoid creating the futures.
+	 * @see #sendUnreliable(Packet)
+	 */
+	public void queueUnreliable(Packet packet) {
+		queueForSending(packet);
+	}
 
 	@Override
 	public CompletableFuture<Void> flush() {
@@ -71,7 +94,7 @@ public abstract class NetworkConnection<ADDRESS, CONNECTION_MANAGER extends Conn
 
 		if (readyToSend.isDone()) {
 			// This is a reconnection
-			return sendQueue.barrier(start -> start.thenCompose(unused -> {
+			return negotiation = sendQueue.barrier(start -> start.thenCompose(unused -> {
 				confirmReceivedFuture = new CompletableFuture<>();
 				var result = sendQueue.sendImmediately(new NegotiateProtocolPacket(schemas));
 				return CompletableFuture.allOf(result.sent, result.received, confirmReceivedFuture);
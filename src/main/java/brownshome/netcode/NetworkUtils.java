@@ -16,6 +16,7 @@ public final class NetworkUtils {
 	public static final int INT_SIZE = Integer.BYTES;
 	public static final int LONG_SIZE = Long.BYTES;
 	public static final int DOUBLE_SIZE = Double.BYTES;
+	public static final int MAXIMUM_VAR_INT_SIZE = 5;
 
 	/** This constant of 3 occurs when the char 0xFFFF is encoded. */
 	private static final int MAXIMUM_UTF8_BYTES_PER_CHAR = 3;
@@ -76,6 +77,75 @@ public final class NetworkUtils {
 		}
 	}
 	
+	/**
+	 * Writes an int as an unsigned variable length integer. Seven bits are written in each byte, lowest first, and the
+	 * high bit of each byte is set if more bytes follow. Values below 128 take a single byte, and no value takes more
+	 * than five.
+	 */
+	public static void writeVarInt(ByteBuffer buffer, int value) {
+		while ((value & ~0x7f) != 0) {
+			buffer.put((byte) (value | 0x80));
+			value >>>= 7;
+		}
+
+		buffer.put((byte) value);
+	}
+
+	/**
+	 * Reads an unsigned variable length integer, see {@link #writeVarInt(ByteBuffer, int)}
+	 * @throws IllegalArgumentException if the integer is longer than five bytes
+	 */
+	public static int readVarInt(ByteBuffer buffer) {
+		int value = 0;
+
+		for (int shift = 0; shift < Integer.SIZE; shift += 7) {
+			byte b = buffer.get();
+			value |= (b & 0x7f) << shift;
+
+			if (b >= 0) {
+				return value;
+			}
+		}
+
+		throw new IllegalArgumentException("Variable length integer is too long");
+	}
+
+	/**
+	 * Writes a signed int as a variable length integer. The sign is moved to the lowest bit, so values close to zero take
+	 * a single byte whatever their sign.
+	 */
+	public static void writeSignedVarInt(ByteBuffer buffer, int value) {
+		writeVarInt(buffer, zigZag(value));
+	}
+
+	/**
+	 * Reads a signed variable length integer, see {@link #writeSignedVarInt(ByteBuffer, int)}
+	 * @throws IllegalArgumentException if the integer is longer than five bytes
+	 */
+	public static int readSignedVarInt(ByteBuffer buffer) {
+		int value = readVarInt(buffer);
+		return value >>> 1 ^ -(value & 1);
+	}
+
+	/**
+	 * Calculates the length of a stored variable length integer
+	 */
+	public static int calculateVarIntSize(int value) {
+		// One byte for every seven bits, counting from the highest set bit
+		return (Integer.SIZE - Integer.numberOfLeadingZeros(value | 1) + 6) / 7;
+	}
+
+	/**
+	 * Calculates the length of a stored signed variable length integer
+	 */
+	public static int calculateSignedVarIntSize(int value) {
+		return calculateVarIntSize(zigZag(value));
+	}
+
+	private static int zigZag(int value) {
+		return value << 1 ^ value >> 31;
+	}
+
 	/**
 	 * Calculates the length of a stored String including the header
 	 */
@@ -11,11 +11,19 @@ public abstract class Packet implements Networkable {
 	private final int packetId;
 	private final Class<? extends Schema> schema;
 	private final Collection<Class<? extends Packet>> orderedBy;
+	private final long typeMask;
+	private final long orderingMask;
 	
-	protected Packet(Class<? extends Schema> schema, int packetId, Collection<Class<? extends Packet>> orderedBy) {
+	protected Packet(Class<? extends Schema> schema,
+	                 int packetId,
+	                 Collection<Class<? extends Packet>> orderedBy,
+	                 long typeMask,
+	                 long orderingMask) {
 		this.schema = schema;
 		this.packetId = packetId;
 		this.orderedBy = orderedBy;
+		this.typeMask = typeMask;
+		this.orderingMask = orderingMask;
 	}
 	
 	/** 
@@ -49,6 +57,23 @@ public abstract class Packet implements Networkable {
 	public final Collection<Class<? extends Packet>> orderedBy() {
 		return orderedBy;
 	}
+
+	/**
+	 * The bit that represents this packet's type when ordering packets. This is computed when the schema is generated, a
+	 * single bit is set and packets in different schemas, or large schemas, may share bits.
+	 * @return a mask with one bit set
+	 */
+	public final long typeMask() {
+		return typeMask;
+	}
+
+	/**
+	 * The type masks of the packets that this packet may not overtake, combined.
+	 * @return a mask of packet types
+	 */
+	public final long orderingMask() {
+		return orderingMask;
+	}
 	
 	/**
 	 * Whether this packet will always reach the endpoint.
@@ -106,8 +106,16 @@ public final class Protocol implements Networkable {
 	 * @throws IllegalArgumentException If the ID is not valid, or there is any other error thrown during packet decoding.
 	 */
 	public Packet createPacket(ByteBuffer buffer) throws IllegalArgumentException {
-		int id = buffer.getInt();
-		
+		return createPacket(buffer.getInt(), buffer);
+	}
+
+	/**
+	 * Decodes a packet into a packet object, for connections that encode the ID of the packet themselves.
+	 * @param id the ID of the packet, as given by {@link #computePacketID(Packet)}
+	 * @param buffer The raw data for the packet, with the position after the ID of the packet.
+	 * @throws IllegalArgumentException If the ID is not valid, or there is any other error thrown during packet decoding.
+	 */
+	public Packet createPacket(int id, ByteBuffer buffer) throws IllegalArgumentException {
 		SchemaAllocation allocation = IDToSchemaMapping.get(id);
 		
 		int schemaLocalID;
@@ -1,19 +1,65 @@
 package brownshome.netcode.udp;
 
 import java.nio.ByteBuffer;
-import java.util.NoSuchElementException;
-import java.util.PrimitiveIterator;
+import java.util.function.IntConsumer;
 
+import brownshome.netcode.NetworkUtils;
 import brownshome.netcode.annotation.converter.Networkable;
 
 /**
- * The acknowledgement field of a packet. Bit n of acknowledgement is oldestAcknowledgement + n - 1
+ * The acknowledgement field of a packet. Bit n of word k of acknowledgements is oldestAcknowledgement + 64k + n, and a set
+ * bit means that the sequence number was received.
+ *
+ * The field has between zero and {@link #MAXIMUM_WORDS} words, the receiver sends as many as are needed to cover the
+ * sequence numbers that it has not acknowledged yet, so the field grows with the number of datagrams in flight.
+ *
+ * The field is sent as a length, followed by the low 16 bits of the oldest acknowledgement and then the bits up to the
+ * highest set bit, rounded up to a whole byte. An empty field is a single byte. The receiver of a field recovers the
+ * rest of the oldest acknowledgement from the sequence numbers that it has sent, see
+ * {@link SequenceNumberPool#expand(int, int)}.
+ *
+ * A field with acknowledgements ends with the acknowledgement delay, as a variable length integer. This is the time in
+ * microseconds that the newest acknowledged sequence number waited at the receiver before the field was built, so that
+ * the sender can take it out of its round trip time samples. It is zero if the receiver does not know the delay.
  */
-public record Acknowledgement(int oldestAcknowledgement, int acknowledgement) implements Networkable, Iterable<Integer> {
-	private static final Acknowledgement EMPTY = new Acknowledgement(0, 0);
+public record Acknowledgement(int oldestAcknowledgement, long[] acknowledgements, int delayMicros) implements Networkable {
+	/** The most words that a field may have, this covers 256 sequence numbers */
+	public static final int MAXIMUM_WORDS = 4;
+
+	/** The encoded size of the largest field */
+	public static final int MAXIMUM_SIZE = Byte.BYTES + Short.BYTES + MAXIMUM_WORDS * Long.BYTES + NetworkUtils.MAXIMUM_VAR_INT_SIZE;
+
+	private static final Acknowledgement EMPTY = new Acknowledgement(0, new long[0], 0);
+
+	public Acknowledgement {
+		if (acknowledgements.length > MAXIMUM_WORDS) {
+			throw new IllegalArgumentException("Too many acknowledgement words: " + acknowledgements.length);
+		}
+
+		if (delayMicros < 0) {
+			throw new IllegalArgumentException("Negative acknowledgement delay: " + delayMicros);
+		}
+	}
 
 	public Acknowledgement(ByteBuffer buffer) {
-		this(buffer.getInt(), buffer.getInt());
+		this(Byte.toUnsignedInt(buffer.get()), buffer);
+	}
+
+	private Acknowledgement(int length, ByteBuffer buffer) {
+		this(length == 0 ? 0 : buffer.getShort(), readWords(length, buffer), length == 0 ? 0 : NetworkUtils.readVarInt(buffer));
+	}
+
+	private static long[] readWords(int length, ByteBuffer buffer) {
+		if (length > MAXIMUM_WORDS * Long.BYTES) {
+			throw new IllegalArgumentException("Acknowledgement field is too long: " + length);
+		}
+
+		long[] words = new long[(length + Long.BYTES - 1) / Long.BYTES];
+		for (int i = 0; i < length; i++) {
+			words[i / Long.BYTES] |= Byte.toUnsignedLong(buffer.get()) << i % Long.BYTES * Byte.SIZE;
+		}
+
+		return words;
 	}
 
 	public static Acknowledgement emptyAcknowledgement() {
@@ -22,45 +68,95 @@ public record Acknowledgement(int oldestAcknowledgement, int acknowledgement) im
 
 	@Override
 	public void write(ByteBuffer buffer) {
-		buffer.putInt(oldestAcknowledgement);
-		buffer.putInt(acknowledgement);
+		write(buffer, oldestAcknowledgement, acknowledgements, delayMicros);
 	}
 
 	@Override
 	public int size() {
-		return Integer.BYTES * 2;
+		return size(acknowledgements, delayMicros);
 	}
 
 	/**
-	 * Returns an iterator for the acknowledgements in this field, from the oldest to the newest
-	 * @return an iterator
+	 * The number of words that hold the bits that are sent, the words after these are all zero
 	 */
-	@Override
-	public PrimitiveIterator.OfInt iterator() {
-		return new PrimitiveIterator.OfInt() {
-			int next = oldestAcknowledgement;
-			int bits = acknowledgement;
+	int sentWords() {
+		return sentWords(acknowledgements);
+	}
 
-			@Override
-			public int nextInt() {
-				if (!hasNext()) {
-					throw new NoSuchElementException();
-				}
+	/**
+	 * Writes a field. This is shared with {@link MutableAcknowledgement}, which is reused for outgoing datagrams. The words
+	 * after the highest set bit are not sent, so a field may have any number of trailing zero words.
+	 */
+	static void write(ByteBuffer buffer, int oldestAcknowledgement, long[] acknowledgements, int delayMicros) {
+		int length = length(acknowledgements);
+		buffer.put((byte) length);
+
+		if (length == 0) {
+			return;
+		}
 
-				int result = next;
+		buffer.putShort((short) oldestAcknowledgement);
+		for (int i = 0; i < length; i++) {
+			buffer.put((byte) (acknowledgements[i / Long.BYTES] >>> i % Long.BYTES * Byte.SIZE));
+		}
+
+		NetworkUtils.writeVarInt(buffer, delayMicros);
+	}
 
-				// Count the number of zeros in the field, and skip them all
-				int n = Integer.numberOfTrailingZeros(bits & ~1);
-				bits >>>= n;
-				next += n;
+	static int size(long[] acknowledgements, int delayMicros) {
+		int length = length(acknowledgements);
 
-				return result;
+		return length == 0 ? Byte.BYTES : Byte.BYTES + Short.BYTES + length + NetworkUtils.calculateVarIntSize(delayMicros);
+	}
+
+	static int sentWords(long[] acknowledgements) {
+		return (length(acknowledgements) + Long.BYTES - 1) / Long.BYTES;
+	}
+
+	/**
+	 * The number of bytes of acknowledgement bits that are sent, the bytes after the highest set bit are left out
+	 */
+	private static int length(long[] acknowledgements) {
+		for (int word = acknowledgements.length - 1; word >= 0; word--) {
+			if (acknowledgements[word] != 0L) {
+				int bits = Long.SIZE - Long.numberOfLeadingZeros(acknowledgements[word]);
+				return word * Long.BYTES + (bits + Byte.SIZE - 1) / Byte.SIZE;
 			}
+		}
+
+		return 0;
+	}
+
+	/**
+	 * The newest sequence number that this field acknowledges, this is the one that the delay applies to
+	 * @param oldestAcknowledgement the oldest acknowledgement of this field, a received field only holds the low 16 bits
+	 *                              of it
+	 * @return the sequence number, this is meaningless if the field acknowledges nothing
+	 */
+	public int newestAcknowledgement(int oldestAcknowledgement) {
+		for (int word = acknowledgements.length - 1; word >= 0; word--) {
+			if (acknowledgements[word] != 0L) {
+				return oldestAcknowledgement + word * Long.SIZE + Long.SIZE - 1 - Long.numberOfLeadingZeros(acknowledgements[word]);
+			}
+		}
+
+		return oldestAcknowledgement;
+	}
+
+	/**
+	 * Calls an action with each acknowledged sequence number, from the oldest to the newest
+	 * @param oldestAcknowledgement the oldest acknowledgement of this field, a received field only holds the low 16 bits
+	 *                              of it
+	 * @param action the action to call
+	 */
+	public void forEach(int oldestAcknowledgement, IntConsumer action) {
+		for (int word = 0; word < acknowledgements.length; word++) {
+			int base = oldestAcknowledgement + word * Long.SIZE;
 
-			@Override
-			public boolean hasNext() {
-				return bits != 1;
+			// Skip straight to each set bit
+			for (long bits = acknowledgements[word]; bits != 0L; bits &= bits - 1) {
+				action.accept(base + Long.numberOfTrailingZeros(bits));
 			}
-		};
+		}
 	}
 }
@@ -1,129 +1,173 @@
 package brownshome.netcode.udp;
 
 import java.util.Arrays;
-
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the sequence numbers that have been received, and builds the acknowledgement fields that are sent back.
+ *
+ * Only the newest {@link SequenceNumberPool#WINDOW} sequence numbers are kept, in a ring of bit sets. Sequence numbers
+ * are compared with serial number arithmetic, so the window moves past the wraparound of an int like any other number.
+ * Sequence numbers older than the window are treated as duplicates, and acknowledgements that are still pending when
+ * they fall out of the window are dropped, the sender will find those datagrams lost and resend their messages.
+ */
 final class AcknowledgementSender {
-	private static final System.Logger LOGGER = System.getLogger(AcknowledgementSender.class.getModule().getName());
+	private static final System.Logger LOGGER = System.getLogger(AcknowledgementSender.class.getPackageName());
+
+	private static final int WORDS = SequenceNumberPool.WINDOW / Long.SIZE;
+	private static final int WORD_MASK = WORDS - 1;
 
-	private int nextFreeIndex = 0;
+	/** The sequence number after the newest word in the window, this is always a multiple of {@link Long#SIZE} */
+	private int head = 0;
+	private boolean hasReceived = false;
+	private int newestReceived;
+	/** The {@link System#nanoTime()} at which the newest sequence number was received */
+	private long newestReceivedTime;
 
-	// This is a large minimum size to allow acknowledgements to be queued up
-	private long[] receivedPackets = new long[64];
-	private long[] pendingAcknowledgements = new long[64];
+	private final long[] receivedPackets = new long[WORDS];
+	private final long[] pendingAcknowledgements = new long[WORDS];
 
 	{
+		// Sequence numbers from before the first one are never acknowledged, and must not be received
 		Arrays.fill(receivedPackets, -1L);
 	}
 
 	synchronized boolean onSequenceNumberReceived(int sequenceNumber, boolean queueAcknowledgement) {
-		int index = Integer.divideUnsigned(sequenceNumber, Long.SIZE);
-		long bit = 1L << Integer.remainderUnsigned(sequenceNumber, Long.SIZE);
+		if (sequenceNumber - head >= 0) {
+			advance(sequenceNumber);
+		} else if (head - sequenceNumber > SequenceNumberPool.WINDOW) {
+			// This is off the end of the window
+			return false;
+		}
 
-		index = ensureIndexExists(index);
+		int slot = slot(sequenceNumber);
+		long bit = 1L << sequenceNumber;
 
-		if (index == -1 || (receivedPackets[index] & bit) != 0L) {
+		if ((receivedPackets[slot] & bit) != 0L) {
 			return false;
 		}
 
 		if (queueAcknowledgement) {
-			pendingAcknowledgements[index] |= bit;
+			pendingAcknowledgements[slot] |= bit;
 		}
 
-		receivedPackets[index] |= bit;
+		receivedPackets[slot] |= bit;
+
+		if (!hasReceived || sequenceNumber - newestReceived > 0) {
+			hasReceived = true;
+			newestReceived = sequenceNumber;
+			newestReceivedTime = System.nanoTime();
+		}
 
 		return true;
 	}
 
 	/**
-	 * Expands the array if needed to contain the requested index
-	 * @param index the index to translate
-	 * @return the slot in the array that the index can be found at
+	 * Recovers the full sequence number of a received datagram from its low 16 bits
 	 */
-	private int ensureIndexExists(int index) {
-		if (index - (nextFreeIndex - receivedPackets.length) < 0) {
-			// We are off the end of the array
-			return -1;
-		}
+	synchronized int expandSequenceNumber(short sequenceNumber) {
+		return SequenceNumberPool.expand(sequenceNumber, hasReceived ? newestReceived : head);
+	}
 
-		int i = Integer.remainderUnsigned(nextFreeIndex, receivedPackets.length);
-		while (index - nextFreeIndex >= 0) {
-			if (receivedPackets[i] != -1L || pendingAcknowledgements[i] != 0L) {
-				// Expand the arrays
-				int oldLength = receivedPackets.length;
-				receivedPackets = Arrays.copyOf(receivedPackets, oldLength * 2);
-				pendingAcknowledgements = Arrays.copyOf(pendingAcknowledgements, oldLength * 2);
-
-				int oldArrayIndex = i;
-				i = Integer.remainderUnsigned(nextFreeIndex, receivedPackets.length);
-
-				if (i == oldArrayIndex) {
-					// Move the tail to the end of the array
-					// [ HHH|TTT ] -> [ HHH|xxx xxx TTT ]
-					System.arraycopy(receivedPackets, i, receivedPackets, i + oldLength, oldLength - i);
-					Arrays.fill(receivedPackets, i, i + oldLength, -1L);
-
-					System.arraycopy(pendingAcknowledgements, i, pendingAcknowledgements, i + oldLength, oldLength - i);
-					Arrays.fill(pendingAcknowledgements, i, oldLength, 0L);
-				} else {
-					// Move the head up the array
-					// [ HHH|TTT ] -> [ xxx TTT HHH|xxx ]
-					System.arraycopy(receivedPackets, 0, receivedPackets, oldLength, oldArrayIndex);
-					Arrays.fill(receivedPackets, 0, oldArrayIndex, -1L);
-					Arrays.fill(receivedPackets, i, receivedPackets.length, -1L);
-
-					System.arraycopy(pendingAcknowledgements, 0, pendingAcknowledgements, oldLength, oldArrayIndex);
-					Arrays.fill(pendingAcknowledgements, 0, i, 0L);
-				}
-
-				LOGGER.log(System.Logger.Level.TRACE, "Expanding acknowledgement buffer from {0} to {1}", oldLength, receivedPackets.length);
-			}
+	/**
+	 * Moves the window forward so that it contains a sequence number, clearing the words that it moves over
+	 */
+	private void advance(int sequenceNumber) {
+		int newHead = (sequenceNumber & -Long.SIZE) + Long.SIZE;
+		int words = Math.min(WORDS, (newHead - head) >>> 6);
 
-			receivedPackets[i] = 0L;
+		for (int word = 0; word < words; word++) {
+			int slot = slot(head + word * Long.SIZE);
 
-			i = Integer.remainderUnsigned(++nextFreeIndex, receivedPackets.length);
+			if (pendingAcknowledgements[slot] != 0L) {
+				LOGGER.log(System.Logger.Level.TRACE, "Dropping {0} pending acknowledgements",
+						Long.bitCount(pendingAcknowledgements[slot]));
+			}
+
+			receivedPackets[slot] = 0L;
+			pendingAcknowledgements[slot] = 0L;
 		}
 
-		return i;
+		head = newHead;
 	}
 
-	synchronized Acknowledgement constructAcknowledgementField() {
-		if (nextFreeIndex == 0) {
-			return Acknowledgement.emptyAcknowledgement();
+	/**
+	 * Builds the acknowledgement field for the next datagram. The field starts at the oldest pending acknowledgement, and
+	 * has enough words to reach the newest received sequence number, up to {@link Acknowledgement#MAXIMUM_WORDS}. If
+	 * nothing is pending the newest sequence number is acknowledged again, in case earlier acknowledgements were lost.
+	 *
+	 * The field carries the time that the newest sequence number has waited for its acknowledgement. If the field is too
+	 * short to reach the newest sequence number the delay is not known, and zero is sent.
+	 */
+	Acknowledgement constructAcknowledgementField() {
+		var field = new MutableAcknowledgement();
+		constructAcknowledgementField(field);
+		return field.toAcknowledgement();
+	}
+
+	/**
+	 * Builds the acknowledgement field for the next datagram into a field that is reused
+	 * @see #constructAcknowledgementField()
+	 */
+	synchronized void constructAcknowledgementField(MutableAcknowledgement field) {
+		long[] words = field.acknowledgements;
+
+		if (!hasReceived) {
+			field.oldestAcknowledgement = 0;
+			field.words = 0;
+			field.delayMicros = 0;
+			Arrays.fill(words, 0L);
+			return;
 		}
 
-		for (int i = nextFreeIndex - receivedPackets.length - 1; i != nextFreeIndex; i++) {
-			int slot = Integer.remainderUnsigned(i, receivedPackets.length);
+		int oldest = newestReceived;
+		for (int base = head - SequenceNumberPool.WINDOW; base != head; base += Long.SIZE) {
+			long pending = pendingAcknowledgements[slot(base)];
 
-			if (pendingAcknowledgements[slot] != 0) {
-				return constructAcknowledgementField(i * Long.SIZE + Long.numberOfTrailingZeros(pendingAcknowledgements[slot]));
+			if (pending != 0L) {
+				oldest = base + Long.numberOfTrailingZeros(pending);
+				break;
 			}
 		}
 
-		return constructAcknowledgementField(nextFreeIndex * Long.SIZE);
-	}
+		int length = Math.min(Acknowledgement.MAXIMUM_WORDS, (newestReceived - oldest) / Long.SIZE + 1);
 
-	synchronized Acknowledgement constructAcknowledgementField(int oldestSequenceNumber) {
-		if (nextFreeIndex == 0) {
-			return Acknowledgement.emptyAcknowledgement();
+		for (int word = 0; word < words.length; word++) {
+			words[word] = word < length ? takeWord(oldest + word * Long.SIZE) : 0L;
 		}
 
-		// Don't allow the field to overflow the head of the array
-		oldestSequenceNumber = Math.min(nextFreeIndex * Long.SIZE - 1, oldestSequenceNumber);
-
-		// We can use bits and slots greater than these
-		int slot = Integer.divideUnsigned(oldestSequenceNumber, Long.SIZE) % receivedPackets.length;
-		int bit = Integer.remainderUnsigned(oldestSequenceNumber, Long.SIZE);
+		int delayMicros = 0;
+		if (newestReceived - oldest < length * Long.SIZE) {
+			long delay = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - newestReceivedTime);
+			delayMicros = (int) Math.min(delay, Integer.MAX_VALUE);
+		}
 
-		int bitField = (int) (receivedPackets[slot] >>> bit);
-		pendingAcknowledgements[slot] &= ~(0xffffffffL << bit);
+		field.oldestAcknowledgement = oldest;
+		field.words = length;
+		field.delayMicros = delayMicros;
+	}
 
-		if (bit > Long.SIZE - Integer.SIZE) {
-			// Add more bits
-			int secondSlot = (slot + 1) % receivedPackets.length;
-			bitField |= receivedPackets[secondSlot] << (Long.SIZE - bit);
-			pendingAcknowledgements[secondSlot] &= ~(0xffffffffL >>> (Long.SIZE - bit));
+	/**
+	 * Reads the received bits of the 64 sequence numbers from a base, and clears their pending acknowledgements
+	 */
+	private long takeWord(int base) {
+		int slot = slot(base);
+		int bit = base & Long.SIZE - 1;
+
+		long word = receivedPackets[slot] >>> bit;
+		pendingAcknowledgements[slot] &= ~(-1L << bit);
+
+		// Add the rest of the bits from the next slot, unless it is past the head of the window
+		if (bit != 0 && (base & -Long.SIZE) + Long.SIZE != head) {
+			int secondSlot = slot + 1 & WORD_MASK;
+			word |= receivedPackets[secondSlot] << (Long.SIZE - bit);
+			pendingAcknowledgements[secondSlot] &= ~(-1L >>> bit);
 		}
 
-		return new Acknowledgement(oldestSequenceNumber, bitField);
+		return word;
+	}
+
+	private static int slot(int sequenceNumber) {
+		return sequenceNumber >>> 6 & WORD_MASK;
 	}
 }
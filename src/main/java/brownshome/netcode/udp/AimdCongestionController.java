@@ -0,0 +1,97 @@
+package brownshome.netcode.udp;
+
+/**
+ * A rate based additive-increase, multiplicative-decrease congestion controller.
+ *
+ * The send rate starts in slow-start, doubling every round trip until the first loss. After that it grows by one datagram
+ * per round trip, and is cut by a constant factor when a loss is detected. At most one cut is made per round trip, as a
+ * burst of losses is usually caused by a single congestion event. The rate is not grown past a multiple of the
+ * measured delivery rate, this stops a connection that is not using its bandwidth from accumulating an unbounded rate.
+ */
+public final class AimdCongestionController implements CongestionController {
+	private static final long INITIAL_RATE = 256 * 1024;
+	private static final long MINIMUM_RATE = 16 * 1024;
+	private static final long MAXIMUM_RATE = 1024L * 1024 * 1024;
+
+	private static final double DECREASE_FACTOR = 0.7;
+	private static final double DELIVERY_RATE_HEADROOM = 2.0;
+	private static final double ROUND_TRIP_GAIN = 1.0 / 8.0;
+
+	private static final long INITIAL_ROUND_TRIP = 100_000_000L;
+	private static final long BURST_DURATION = 25_000_000L;
+
+	private final int datagramSize;
+	private final DeliveryRateSampler sampler;
+
+	private double rate = INITIAL_RATE;
+	private boolean slowStart = true;
+	private double smoothedRoundTrip = INITIAL_ROUND_TRIP;
+	private long lastDecrease;
+
+	/**
+	 * Creates a controller
+	 * @param datagramSize the typical size of a datagram, this is used as the unit of additive increase
+	 */
+	public AimdCongestionController(int datagramSize) {
+		long now = System.nanoTime();
+
+		this.datagramSize = datagramSize;
+		this.sampler = new DeliveryRateSampler(now);
+		this.lastDecrease = now - INITIAL_ROUND_TRIP;
+	}
+
+	@Override
+	public synchronized void onAcknowledged(int bytes, long roundTripNanos, long time) {
+		if (roundTripNanos > 0) {
+			smoothedRoundTrip += (roundTripNanos - smoothedRoundTrip) * ROUND_TRIP_GAIN;
+		}
+
+		sampler.onAcknowledged(bytes, (long) smoothedRoundTrip, time);
+
+		double deliveryRate = sampler.deliveryRate();
+		if (deliveryRate != 0.0 && rate > deliveryRate * DELIVERY_RATE_HEADROOM) {
+			// The connection is not using the rate that it has
+			return;
+		}
+
+		double roundTripSeconds = smoothedRoundTrip / 1e9;
+		if (slowStart) {
+			// Each round trip acknowledges roughly rate * rtt bytes, doubling the rate
+			rate += bytes / roundTripSeconds;
+		} else {
+			// Each round trip increases the rate by one datagram per round trip
+			rate += datagramSize / roundTripSeconds * bytes / (rate * roundTripSeconds);
+		}
+
+		rate = Math.min(rate, MAXIMUM_RATE);
+	}
+
+	@Override
+	public synchronized void onLost(int bytes, long time) {
+		sampler.onLost();
+
+		if (time - lastDecrease < smoothedRoundTrip) {
+			// This loss is part of the same congestion event
+			return;
+		}
+
+		slowStart = false;
+		lastDecrease = time;
+		rate = Math.max(rate * DECREASE_FACTOR, MINIMUM_RATE);
+	}
+
+	@Override
+	public synchronized long sendRate() {
+		return (long) rate;
+	}
+
+	@Override
+	public synchronized long maximumBurst() {
+		return Math.max((long) (rate * BURST_DURATION / 1e9), 4L * datagramSize);
+	}
+
+	@Override
+	public synchronized Estimate estimate() {
+		return new Estimate((long) rate, (long) sampler.deliveryRate(), sampler.lossRate());
+	}
+}
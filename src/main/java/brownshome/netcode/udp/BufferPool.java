@@ -0,0 +1,55 @@
+package brownshome.netcode.udp;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A pool of direct buffers of a fixed size. Buffers are allocated when the pool is empty, and at most a fixed number of
+ * released buffers are kept for reuse, the rest are left to the garbage collector.
+ *
+ * Buffers are little-endian, and are cleared when they are acquired.
+ */
+final class BufferPool {
+	private final int bufferSize;
+	private final BlockingQueue<ByteBuffer> buffers;
+
+	/**
+	 * Creates a pool
+	 * @param bufferSize the capacity of each buffer
+	 * @param maximumPooledBuffers the number of released buffers to keep
+	 */
+	BufferPool(int bufferSize, int maximumPooledBuffers) {
+		this.bufferSize = bufferSize;
+		this.buffers = new ArrayBlockingQueue<>(maximumPooledBuffers);
+	}
+
+	/** The capacity of the buffers in this pool */
+	int bufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Takes a buffer from the pool, or allocates one if the pool is empty
+	 * @return a cleared buffer, this should be returned with {@link #release(ByteBuffer)} when it is no longer used
+	 */
+	ByteBuffer acquire() {
+		var buffer = buffers.poll();
+
+		if (buffer == null) {
+			return ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		return buffer.clear();
+	}
+
+	/**
+	 * Returns a buffer to the pool. The buffer must not be used after this call.
+	 */
+	void release(ByteBuffer buffer) {
+		assert buffer.capacity() == bufferSize && buffer.isDirect();
+
+		buffers.offer(buffer);
+	}
+}
@@ -0,0 +1,51 @@
+package brownshome.netcode.udp;
+
+/**
+ * Decides how fast a {@link UDPConnection} may send. The controller is fed with the acknowledgements and losses of the
+ * datagrams sent on the connection, and is queried by the connection whenever a datagram needs to be paced.
+ *
+ * Each connection has its own controller, see {@link UDPConnectionManager#createCongestionController}. The methods of
+ * this interface may be called from any thread.
+ */
+public interface CongestionController {
+	/**
+	 * The current state of a congestion controller
+	 * @param sendRate the rate that the connection is sending at, in bytes per second
+	 * @param deliveryRate the measured rate at which data is being acknowledged by the remote end, in bytes per second
+	 * @param lossRate the smoothed fraction of datagrams that are being lost, between 0 and 1
+	 */
+	record Estimate(long sendRate, long deliveryRate, double lossRate) { }
+
+	/**
+	 * Called when a datagram is acknowledged for the first time
+	 * @param bytes the size of the acknowledged datagram
+	 * @param roundTripNanos the round trip time of the datagram, or -1 if no reliable sample could be taken
+	 * @param time the {@link System#nanoTime()} of the acknowledgement
+	 */
+	void onAcknowledged(int bytes, long roundTripNanos, long time);
+
+	/**
+	 * Called when a datagram is considered lost
+	 * @param bytes the size of the lost datagram
+	 * @param time the {@link System#nanoTime()} at which the loss was detected
+	 */
+	void onLost(int bytes, long time);
+
+	/**
+	 * The rate at which datagrams should be sent
+	 * @return a rate in bytes per second, this must be greater than zero
+	 */
+	long sendRate();
+
+	/**
+	 * The maximum number of bytes that may be sent in a single burst after the connection has been idle
+	 * @return a number of bytes
+	 */
+	long maximumBurst();
+
+	/**
+	 * Returns the current state of this controller
+	 * @return an estimate of the connection's capacity
+	 */
+	Estimate estimate();
+}
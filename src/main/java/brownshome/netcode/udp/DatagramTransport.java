@@ -0,0 +1,44 @@
+package brownshome.netcode.udp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * The socket that a {@link UDPConnectionManager} sends and receives datagrams through. Datagrams are received in
+ * batches, so that an implementation that can receive several datagrams per system call, such as one using
+ * {@code recvmmsg}, can be used in place of the default NIO transport.
+ *
+ * Sending may be called from any thread, while receiving is only called from the manager's listener thread.
+ */
+public interface DatagramTransport extends AutoCloseable {
+	/**
+	 * The port that this transport is bound to
+	 */
+	int localPort();
+
+	/**
+	 * Receives a batch of datagrams, blocking until at least one is available. Each datagram is written into the next
+	 * buffer starting from its position, datagrams that are larger than the space in the buffer are truncated.
+	 *
+	 * @param buffers the buffers to receive into
+	 * @param senders filled with the address that sent the datagram in each buffer
+	 * @return the number of datagrams received, this is at least one
+	 * @throws java.nio.channels.ClosedChannelException if the transport is closed, or the listener thread is interrupted
+	 * @throws IOException if there is some other error receiving
+	 */
+	int receive(ByteBuffer[] buffers, InetSocketAddress[] senders) throws IOException;
+
+	/**
+	 * Sends a datagram, consuming the remaining bytes in the buffer
+	 * @param buffer the contents of the datagram
+	 * @param target the address to send it to
+	 */
+	void send(ByteBuffer buffer, InetSocketAddress target) throws IOException;
+
+	/**
+	 * Closes the transport, this unblocks any thread waiting in {@link #receive(ByteBuffer[], InetSocketAddress[])}
+	 */
+	@Override
+	void close() throws IOException;
+}
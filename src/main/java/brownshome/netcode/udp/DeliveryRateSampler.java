@@ -0,0 +1,55 @@
+package brownshome.netcode.udp;
+
+/**
+ * Measures the rate at which acknowledged bytes arrive, and the fraction of datagrams that are lost. This is a helper
+ * for {@link CongestionController} implementations, and is not thread-safe.
+ */
+final class DeliveryRateSampler {
+	/** The shortest interval over which a delivery rate is measured */
+	private static final long MINIMUM_INTERVAL = 10_000_000L;
+	private static final double LOSS_GAIN = 1.0 / 16.0;
+	private static final double RATE_GAIN = 1.0 / 4.0;
+
+	private long intervalStart;
+	private long intervalBytes;
+
+	private double deliveryRate;
+	private double lossRate;
+
+	DeliveryRateSampler(long time) {
+		intervalStart = time;
+	}
+
+	/**
+	 * Records an acknowledged datagram
+	 * @param bytes the size of the datagram
+	 * @param interval the minimum interval to sample over, this should be around one round trip
+	 * @param time the time of the acknowledgement
+	 */
+	void onAcknowledged(int bytes, long interval, long time) {
+		lossRate -= lossRate * LOSS_GAIN;
+		intervalBytes += bytes;
+
+		long elapsed = time - intervalStart;
+		if (elapsed >= Math.max(interval, MINIMUM_INTERVAL)) {
+			double sample = intervalBytes * 1e9 / elapsed;
+			deliveryRate = deliveryRate == 0.0 ? sample : deliveryRate + (sample - deliveryRate) * RATE_GAIN;
+
+			intervalStart = time;
+			intervalBytes = 0;
+		}
+	}
+
+	void onLost() {
+		lossRate += (1.0 - lossRate) * LOSS_GAIN;
+	}
+
+	/** The smoothed delivery rate in bytes per second, or zero if no sample has been taken yet */
+	double deliveryRate() {
+		return deliveryRate;
+	}
+
+	double lossRate() {
+		return lossRate;
+	}
+}
@@ -0,0 +1,188 @@
+package brownshome.netcode.udp;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A single thread that waits on a {@link Selector}. It reads from the channels registered with it, ticks the timers added
+ * to it, and runs the tasks submitted to it, so any number of channels and timers can share one thread.
+ *
+ * All tasks are run on the loop's thread in the order that they were submitted, so the loop can be used as a single
+ * threaded executor.
+ *
+ * Each pass of the loop does a bounded amount of work: channels read a limited number of datagrams when they are
+ * readable, and a limited number of tasks are run, so that neither a flood of datagrams nor a flood of tasks delays the
+ * timers. Anything left over is handled on the next pass, which does not wait.
+ */
+final class EventLoop implements Executor {
+	private static final System.Logger LOGGER = System.getLogger(EventLoop.class.getPackageName());
+
+	/** The largest number of tasks that are run in each pass of the loop */
+	private static final int TASKS_PER_PASS = 1024;
+
+	private final Selector selector;
+	private final Thread thread;
+
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private final List<TimerWheel> timers = new CopyOnWriteArrayList<>();
+
+	/** Set when the selector has been woken, so that each wait is only woken once */
+	private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+	private volatile boolean closed = false;
+
+	/**
+	 * Opens a selector and starts the loop's thread
+	 * @param name the name of the thread
+	 */
+	EventLoop(String name) throws IOException {
+		selector = Selector.open();
+		thread = new Thread(this::run, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		if (closed) {
+			throw new RejectedExecutionException("The event loop has been closed");
+		}
+
+		tasks.add(task);
+
+		if (Thread.currentThread() != thread) {
+			wakeup();
+		}
+	}
+
+	/**
+	 * Registers a channel with this loop. The channel must be non-blocking, and is deregistered when it is closed.
+	 * @param channel the channel to read from
+	 * @param onReadable called on the loop's thread when the channel has datagrams to read. This should read a limited
+	 *                   number of datagrams and return, it is called again on the next pass if more are waiting.
+	 */
+	void register(SelectableChannel channel, Runnable onReadable) {
+		execute(() -> {
+			try {
+				channel.register(selector, SelectionKey.OP_READ, onReadable);
+			} catch (ClosedChannelException e) {
+				// The channel was closed before it was registered, there is nothing to read from
+			}
+		});
+	}
+
+	/**
+	 * Adds a timer that is ticked by this loop
+	 */
+	void addTimer(TimerWheel timer) {
+		timers.add(timer);
+		wakeup();
+	}
+
+	void removeTimer(TimerWheel timer) {
+		timers.remove(timer);
+	}
+
+	/**
+	 * Stops the loop. Tasks that have already been submitted are run before the thread exits.
+	 */
+	void close() {
+		closed = true;
+		wakeup();
+	}
+
+	void awaitTermination() throws InterruptedException {
+		thread.join();
+	}
+
+	private void wakeup() {
+		if (wakeupPending.compareAndSet(false, true)) {
+			selector.wakeup();
+		}
+	}
+
+	private void run() {
+		try {
+			while (!closed) {
+				select();
+				wakeupPending.set(false);
+
+				runTasks(TASKS_PER_PASS);
+
+				for (var timer : timers) {
+					timer.tick();
+				}
+			}
+
+			runTasks(Integer.MAX_VALUE);
+		} finally {
+			try {
+				selector.close();
+			} catch (IOException e) {
+				LOGGER.log(System.Logger.Level.WARNING, "Error closing selector", e);
+			}
+		}
+	}
+
+	private void select() {
+		try {
+			if (!tasks.isEmpty()) {
+				selector.selectNow(this::onSelected);
+			} else if (timers.isEmpty()) {
+				selector.select(this::onSelected);
+			} else {
+				selector.select(this::onSelected, timeoutMillis());
+			}
+		} catch (IOException e) {
+			LOGGER.log(System.Logger.Level.ERROR, "Error waiting on selector", e);
+		}
+	}
+
+	/** Waits until the next tick of the shortest timer, rounded up to the nearest millisecond */
+	private long timeoutMillis() {
+		long tickNanos = Long.MAX_VALUE;
+
+		for (var timer : timers) {
+			tickNanos = Math.min(tickNanos, timer.tickNanos());
+		}
+
+		return Math.max(1L, TimeUnit.NANOSECONDS.toMillis(tickNanos));
+	}
+
+	private void onSelected(SelectionKey key) {
+		if (!key.isValid() || !key.isReadable()) {
+			return;
+		}
+
+		try {
+			((Runnable) key.attachment()).run();
+		} catch (Throwable t) {
+			LOGGER.log(System.Logger.Level.ERROR, "Error reading from channel", t);
+		}
+	}
+
+	/**
+	 * Runs the waiting tasks, including the tasks that they submit
+	 * @param limit the largest number of tasks to run, the rest are run on the next pass
+	 */
+	private void runTasks(int limit) {
+		Runnable task;
+		for (int i = 0; i < limit && (task = tasks.poll()) != null; i++) {
+			try {
+				task.run();
+			} catch (Throwable t) {
+				LOGGER.log(System.Logger.Level.ERROR, "Error running event loop task", t);
+			}
+		}
+	}
+}
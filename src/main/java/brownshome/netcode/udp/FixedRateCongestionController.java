@@ -0,0 +1,50 @@
+package brownshome.netcode.udp;
+
+/**
+ * A congestion controller that always sends at the same rate. This does not react to loss, and is intended as a baseline
+ * to compare other controllers against, or for links with a known capacity.
+ */
+public final class FixedRateCongestionController implements CongestionController {
+	private final long rate;
+	private final long maximumBurst;
+	private final DeliveryRateSampler sampler = new DeliveryRateSampler(System.nanoTime());
+
+	/**
+	 * Creates a controller
+	 * @param rate the rate to send at, in bytes per second
+	 * @param maximumBurst the maximum number of bytes to send in a single burst
+	 */
+	public FixedRateCongestionController(long rate, long maximumBurst) {
+		if (rate <= 0) {
+			throw new IllegalArgumentException("The rate must be positive: " + rate);
+		}
+
+		this.rate = rate;
+		this.maximumBurst = maximumBurst;
+	}
+
+	@Override
+	public synchronized void onAcknowledged(int bytes, long roundTripNanos, long time) {
+		sampler.onAcknowledged(bytes, roundTripNanos, time);
+	}
+
+	@Override
+	public synchronized void onLost(int bytes, long time) {
+		sampler.onLost();
+	}
+
+	@Override
+	public long sendRate() {
+		return rate;
+	}
+
+	@Override
+	public long maximumBurst() {
+		return maximumBurst;
+	}
+
+	@Override
+	public synchronized Estimate estimate() {
+		return new Estimate(rate, (long) sampler.deliveryRate(), sampler.lossRate());
+	}
+}
@@ -0,0 +1,283 @@
+package brownshome.netcode.udp;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reassembles messages that were too large to fit in a single datagram and were split into fragments. Each message is
+ * identified by its message number, and its fragments may arrive in any order.
+ *
+ * The memory used is bounded. Messages larger than the maximum message size are rejected, and fragments are copied as
+ * they arrive rather than into a buffer the size of the whole message, so the memory used is the size of the fragments
+ * that have been received. Fragments are refused if they would take the bytes buffered by this reassembler, or by all of
+ * the reassemblers that share its budget, over their limits. A refused fragment must not be acknowledged, so that the
+ * sender sends it again once there may be space.
+ *
+ * Messages that do not store a fragment for the length of the timeout are discarded. Their stored fragments have been
+ * acknowledged and will not be sent again, so a later fragment of a discarded message is reported, as the message can
+ * never be completed.
+ */
+final class FragmentReassembler {
+	private static final System.Logger LOGGER = System.getLogger(FragmentReassembler.class.getPackageName());
+
+	/** Fragments smaller than this are rejected, so that a message can't be split into a huge number of tiny fragments */
+	private static final int MINIMUM_FRAGMENT_SIZE = 64;
+
+	/** The bytes counted for each slot in a message's table of fragments */
+	private static final int FRAGMENT_SLOT_SIZE = 8;
+
+	/** The number of discarded messages that are remembered */
+	private static final int DISCARDED_HISTORY = 64;
+
+	/** What was done with a received fragment */
+	enum Outcome {
+		/** The fragment was stored, or was a copy of a fragment that is already stored */
+		STORED,
+		/** The fragment was the last one of its message to be received */
+		COMPLETED,
+		/** There was no space for the fragment, it must not be acknowledged */
+		REFUSED,
+		/** The fragment does not match the other fragments of its message, or the message is too large */
+		MALFORMED,
+		/** The fragment is part of a message that was discarded after some of its fragments were stored */
+		DISCARDED
+	}
+
+	/**
+	 * The result of receiving a fragment
+	 * @param outcome what was done with the fragment
+	 * @param message the reassembled message if the outcome is {@link Outcome#COMPLETED}, or null otherwise
+	 */
+	record Result(Outcome outcome, ByteBuffer message) {
+		private static final Result STORED = new Result(Outcome.STORED, null);
+		private static final Result REFUSED = new Result(Outcome.REFUSED, null);
+		private static final Result MALFORMED = new Result(Outcome.MALFORMED, null);
+		private static final Result DISCARDED = new Result(Outcome.DISCARDED, null);
+	}
+
+	/**
+	 * A limit on the bytes buffered by a group of reassemblers, this is shared by the connections of a manager
+	 */
+	static final class Budget {
+		private final long maximumBytes;
+		private final AtomicLong bufferedBytes = new AtomicLong(0);
+
+		Budget(long maximumBytes) {
+			this.maximumBytes = maximumBytes;
+		}
+
+		boolean tryReserve(long bytes) {
+			long current;
+
+			do {
+				current = bufferedBytes.get();
+
+				if (current + bytes > maximumBytes) {
+					return false;
+				}
+			} while (!bufferedBytes.compareAndSet(current, current + bytes));
+
+			return true;
+		}
+
+		void release(long bytes) {
+			bufferedBytes.addAndGet(-bytes);
+		}
+
+		/** The bytes that are buffered by all of the reassemblers that use this budget */
+		long bufferedBytes() {
+			return bufferedBytes.get();
+		}
+	}
+
+	/** A message that has been partially received */
+	private final class PartialMessage {
+		final int messageNumber;
+		final int messageSize;
+		final int fragmentSize;
+		final ByteBuffer[] fragments;
+
+		int receivedFragments = 0;
+		long receivedBytes = 0;
+		long lastFragmentTime;
+
+		PartialMessage(int messageNumber, int messageSize, int fragmentSize) {
+			this.messageNumber = messageNumber;
+			this.messageSize = messageSize;
+			this.fragmentSize = fragmentSize;
+			this.fragments = new ByteBuffer[(messageSize + fragmentSize - 1) / fragmentSize];
+		}
+
+		/**
+		 * Copies the fragments into a single buffer, this must only be called once every fragment has been received
+		 */
+		ByteBuffer assemble() {
+			var data = ByteBuffer.allocate(messageSize).order(ByteOrder.LITTLE_ENDIAN);
+
+			for (var fragment : fragments) {
+				data.put(fragment);
+			}
+
+			return data.flip();
+		}
+
+		/**
+		 * Checks if the message has not received a fragment recently, and discards it if so. Otherwise, the check is
+		 * rescheduled for when it may have expired.
+		 */
+		void checkExpiry() {
+			long remaining;
+
+			synchronized (FragmentReassembler.this) {
+				if (messages.get(messageNumber) != this) {
+					return;
+				}
+
+				remaining = lastFragmentTime + timeoutNanos - System.nanoTime();
+
+				if (remaining <= 0) {
+					messages.remove(messageNumber);
+					release(this);
+
+					discardedMessages[discardedCount++ % DISCARDED_HISTORY] = messageNumber;
+
+					LOGGER.log(System.Logger.Level.DEBUG, "Discarded message {0}, {1} of {2} fragments were received",
+							messageNumber, receivedFragments, fragments.length);
+					return;
+				}
+			}
+
+			timer.schedule(this::checkExpiry, remaining);
+		}
+	}
+
+	private final int maximumMessageSize;
+	private final long maximumBufferedBytes;
+	private final Budget budget;
+	private final long timeoutNanos;
+	private final TimerWheel timer;
+
+	private final Map<Integer, PartialMessage> messages = new HashMap<>();
+	private long bufferedBytes = 0;
+
+	/** The most recently discarded messages, in a ring */
+	private final int[] discardedMessages = new int[DISCARDED_HISTORY];
+	private int discardedCount = 0;
+
+	/**
+	 * Creates a reassembler
+	 * @param maximumMessageSize the size of the largest message that will be accepted
+	 * @param maximumBufferedBytes the total size of the fragments that this reassembler may hold at once
+	 * @param budget the limit that this reassembler shares with others
+	 * @param timeoutNanos how long a partial message is kept after its most recent fragment
+	 * @param timer the timer used to discard partial messages
+	 */
+	FragmentReassembler(int maximumMessageSize, long maximumBufferedBytes, Budget budget, long timeoutNanos, TimerWheel timer) {
+		this.maximumMessageSize = maximumMessageSize;
+		this.maximumBufferedBytes = maximumBufferedBytes;
+		this.budget = budget;
+		this.timeoutNanos = timeoutNanos;
+		this.timer = timer;
+	}
+
+	/**
+	 * Discards all partially received messages
+	 */
+	synchronized void clear() {
+		budget.release(bufferedBytes);
+		messages.clear();
+		bufferedBytes = 0;
+	}
+
+	private void release(PartialMessage message) {
+		bufferedBytes -= message.receivedBytes;
+		budget.release(message.receivedBytes);
+	}
+
+	private boolean wasDiscarded(int messageNumber) {
+		for (int i = 0; i < Math.min(discardedCount, DISCARDED_HISTORY); i++) {
+			if (discardedMessages[i] == messageNumber) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Adds a fragment to the message that it is part of
+	 * @param messageNumber the message that the fragment is part of
+	 * @param messageSize the total size of the message
+	 * @param fragmentSize the size of every fragment except the last one
+	 * @param fragment the index of the fragment in the message
+	 * @param data the contents of the fragment
+	 * @return the result, with the encoded message if this was the last fragment to be received
+	 */
+	Result onFragmentReceived(int messageNumber, int messageSize, int fragmentSize, int fragment, ByteBuffer data) {
+		PartialMessage message;
+
+		synchronized (this) {
+			message = messages.get(messageNumber);
+
+			if (message == null) {
+				if (wasDiscarded(messageNumber)) {
+					return Result.DISCARDED;
+				}
+
+				if (messageSize <= 0 || messageSize > maximumMessageSize || fragmentSize < MINIMUM_FRAGMENT_SIZE) {
+					LOGGER.log(System.Logger.Level.INFO, "Rejected fragmented message {0} of size {1}", messageNumber, messageSize);
+					return Result.MALFORMED;
+				}
+
+				message = new PartialMessage(messageNumber, messageSize, fragmentSize);
+			}
+
+			int offset = fragment * message.fragmentSize;
+			int expectedSize = Math.min(message.fragmentSize, message.messageSize - offset);
+
+			if (message.messageSize != messageSize || message.fragmentSize != fragmentSize
+					|| fragment < 0 || fragment >= message.fragments.length || data.remaining() != expectedSize) {
+				LOGGER.log(System.Logger.Level.INFO, "Rejected malformed fragment {0} of message {1}", fragment, messageNumber);
+				return Result.MALFORMED;
+			}
+
+			if (message.fragments[fragment] != null) {
+				message.lastFragmentTime = System.nanoTime();
+				return Result.STORED;
+			}
+
+			// The table of fragments is counted along with the first fragment
+			boolean isNew = message.receivedFragments == 0;
+			long size = isNew ? expectedSize + (long) message.fragments.length * FRAGMENT_SLOT_SIZE : expectedSize;
+
+			if (bufferedBytes + size > maximumBufferedBytes || !budget.tryReserve(size)) {
+				LOGGER.log(System.Logger.Level.DEBUG, "Refused a fragment of message {0}, the reassembly buffer is full", messageNumber);
+				return Result.REFUSED;
+			}
+
+			if (isNew) {
+				messages.put(messageNumber, message);
+				timer.schedule(message::checkExpiry, timeoutNanos);
+			}
+
+			// The fragment is a view of the received datagram, so it is copied
+			message.fragments[fragment] = ByteBuffer.allocate(expectedSize).put(0, data, data.position(), expectedSize);
+			message.receivedFragments++;
+			message.receivedBytes += size;
+			message.lastFragmentTime = System.nanoTime();
+			bufferedBytes += size;
+
+			if (message.receivedFragments != message.fragments.length) {
+				return Result.STORED;
+			}
+
+			messages.remove(messageNumber);
+			release(message);
+		}
+
+		return new Result(Outcome.COMPLETED, message.assemble());
+	}
+}
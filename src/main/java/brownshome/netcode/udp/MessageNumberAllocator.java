@@ -0,0 +1,118 @@
+package brownshome.netcode.udp;
+
+/**
+ * Hands out the message numbers of outgoing messages. Numbers are handed out when a message is first packed into a
+ * datagram rather than when it is queued, so a message that waits in the queue behind higher priority messages does not
+ * fall behind the numbers that are being sent.
+ *
+ * The receiver only remembers the newest {@link MessageNumberWindow#WINDOW_SIZE} message numbers, and takes anything
+ * older for a duplicate. So a number is not handed out while a reliable message that is a whole window older has not
+ * been acknowledged, otherwise that message would be dropped when it arrived.
+ */
+final class MessageNumberAllocator {
+	private static final int WINDOW_SIZE = MessageNumberWindow.WINDOW_SIZE;
+	private static final int MASK = WINDOW_SIZE - 1;
+
+	/** The reliable messages that have not been acknowledged, by message number */
+	private final long[] unacknowledged = new long[WINDOW_SIZE / Long.SIZE];
+
+	private int nextMessageNumber = 0;
+
+	/** No message older than this is waiting for acknowledgement */
+	private int oldestUnacknowledged = 0;
+
+	/** Set when a number was asked for and none was free */
+	private boolean exhausted = false;
+
+	private final Runnable onNumbersFreed;
+
+	/**
+	 * Creates an allocator
+	 * @param onNumbersFreed called once a number can be handed out again after {@link #hasFreeNumber()} returned false.
+	 *                       This is not called while holding any lock.
+	 */
+	MessageNumberAllocator(Runnable onNumbersFreed) {
+		this.onNumbersFreed = onNumbersFreed;
+	}
+
+	/**
+	 * Checks if a number can be handed out. If this returns false the free numbers callback is run once one can.
+	 */
+	synchronized boolean hasFreeNumber() {
+		advance();
+
+		if (nextMessageNumber - oldestUnacknowledged < WINDOW_SIZE) {
+			return true;
+		}
+
+		exhausted = true;
+		return false;
+	}
+
+	/**
+	 * Whether a number was asked for and none was free, this is cleared once a number is freed
+	 */
+	synchronized boolean isExhausted() {
+		return exhausted;
+	}
+
+	/**
+	 * Hands out a number, this must only be called after {@link #hasFreeNumber()} returns true
+	 * @param reliable whether the message will be acknowledged. The numbers of reliable messages are held until they are
+	 *                 passed to {@link #release(int)}.
+	 */
+	synchronized int allocate(boolean reliable) {
+		assert nextMessageNumber - oldestUnacknowledged < WINDOW_SIZE;
+
+		int messageNumber = nextMessageNumber++;
+
+		if (reliable) {
+			unacknowledged[index(messageNumber)] |= bit(messageNumber);
+		}
+
+		return messageNumber;
+	}
+
+	/**
+	 * Records that a reliable message has been acknowledged
+	 */
+	void release(int messageNumber) {
+		boolean freed;
+
+		synchronized (this) {
+			unacknowledged[index(messageNumber)] &= ~bit(messageNumber);
+
+			freed = exhausted && advance();
+			if (freed) {
+				exhausted = false;
+			}
+		}
+
+		if (freed) {
+			onNumbersFreed.run();
+		}
+	}
+
+	/**
+	 * Moves the oldest unacknowledged number past the numbers that are no longer held
+	 * @return true if any number was freed
+	 */
+	private boolean advance() {
+		int start = oldestUnacknowledged;
+
+		while (oldestUnacknowledged != nextMessageNumber
+				&& (unacknowledged[index(oldestUnacknowledged)] & bit(oldestUnacknowledged)) == 0L) {
+			oldestUnacknowledged++;
+		}
+
+		return oldestUnacknowledged != start;
+	}
+
+	private static int index(int messageNumber) {
+		return (messageNumber & MASK) / Long.SIZE;
+	}
+
+	private static long bit(int messageNumber) {
+		return 1L << (messageNumber & MASK);
+	}
+}
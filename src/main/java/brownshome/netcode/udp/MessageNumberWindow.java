@@ -0,0 +1,80 @@
+package brownshome.netcode.udp;
+
+import java.util.Arrays;
+
+/**
+ * Tracks the message numbers of the reliable messages that have been received. A reliable message may arrive more than
+ * once if its datagram was wrongly thought to be lost, and this is used to make sure that it is only executed once.
+ *
+ * Only the most recent {@link #WINDOW_SIZE} message numbers are remembered. Messages older than that are treated as
+ * duplicates. The sender does not number a message while a reliable message a whole window older is unacknowledged, see
+ * {@link MessageNumberAllocator}, so only messages that have already been received are that old.
+ */
+final class MessageNumberWindow {
+	static final int WINDOW_SIZE = 1 << 16;
+	private static final int MASK = WINDOW_SIZE - 1;
+
+	private final long[] received = new long[WINDOW_SIZE / Long.SIZE];
+	private int newestMessageNumber = -1;
+
+	/**
+	 * Records that a message has been received
+	 * @param messageNumber the number of the message
+	 * @return true if this message has not been received before
+	 */
+	synchronized boolean onMessageReceived(int messageNumber) {
+		int age = newestMessageNumber - messageNumber;
+
+		if (age >= WINDOW_SIZE) {
+			return false;
+		}
+
+		if (age < 0) {
+			// Forget the numbers that are now too old
+			if (age <= -WINDOW_SIZE) {
+				Arrays.fill(received, 0L);
+			} else {
+				for (int n = newestMessageNumber + 1; n != messageNumber; n++) {
+					clear(n);
+				}
+
+				clear(messageNumber);
+			}
+
+			newestMessageNumber = messageNumber;
+		}
+
+		int index = (messageNumber & MASK) / Long.SIZE;
+		long bit = 1L << (messageNumber & MASK);
+
+		if ((received[index] & bit) != 0L) {
+			return false;
+		}
+
+		received[index] |= bit;
+		return true;
+	}
+
+	/**
+	 * Checks if a message has been received, without recording it
+	 * @param messageNumber the number of the message
+	 * @return true if this message has been received, or is too old to tell
+	 */
+	synchronized boolean hasReceived(int messageNumber) {
+		int age = newestMessageNumber - messageNumber;
+
+		if (age >= WINDOW_SIZE) {
+			return true;
+		}
+
+		if (age < 0) {
+			return false;
+		}
+
+		return (received[(messageNumber & MASK) / Long.SIZE] & 1L << (messageNumber & MASK)) != 0L;
+	}
+
+	private void clear(int messageNumber) {
+		received[(messageNumber & MASK) / Long.SIZE] &= ~(1L << (messageNumber & MASK));
+	}
+}
@@ -0,0 +1,78 @@
+package brownshome.netcode.udp;
+
+import java.nio.ByteBuffer;
+
+import brownshome.netcode.NetworkUtils;
+import brownshome.netcode.Packet;
+
+/**
+ * The ordering of a message. The sender keeps a count of the reliable messages of each type that have been queued, and
+ * each message records the counts of the types that it is ordered by when it is queued. The receiver holds a message
+ * back until that many messages of each of those types have finished executing, so the ordering does not depend on
+ * which datagrams the messages were sent in, or how far apart those datagrams were.
+ *
+ * Unreliable messages may never arrive, so they are not counted, and nothing waits for them.
+ *
+ * The counts are sent as variable length integers after the message.
+ *
+ * @param ordinal the number of reliable messages of the same type that were queued before this one, this is only sent
+ *                for reliable messages
+ * @param requires for each type in the ordering mask, from the lowest bit, the number of reliable messages of that type
+ *                 that were queued before this one
+ */
+record MessageOrder(int ordinal, int[] requires) {
+	/** The ordering of an unreliable message with an empty ordering mask */
+	static final MessageOrder NONE = new MessageOrder(0, new int[0]);
+
+	/**
+	 * Reads the ordering that follows a message. The reliability and ordering mask of the message are known to both
+	 * ends, so they are not sent.
+	 */
+	static MessageOrder read(Packet packet, ByteBuffer buffer) {
+		if (packet.orderingMask() == 0L && !packet.reliable()) {
+			return NONE;
+		}
+
+		int ordinal = packet.reliable() ? NetworkUtils.readVarInt(buffer) : 0;
+		int[] requires = packet.orderingMask() == 0L ? NONE.requires : new int[Long.bitCount(packet.orderingMask())];
+
+		for (int i = 0; i < requires.length; i++) {
+			requires[i] = NetworkUtils.readVarInt(buffer);
+		}
+
+		return new MessageOrder(ordinal, requires);
+	}
+
+	/**
+	 * The largest encoded size of the ordering of a message, this is used before the message has been ordered
+	 */
+	static int maximumSize(Packet packet) {
+		return ((packet.reliable() ? 1 : 0) + Long.bitCount(packet.orderingMask())) * NetworkUtils.MAXIMUM_VAR_INT_SIZE;
+	}
+
+	/**
+	 * The encoded size of this ordering
+	 */
+	int size(Packet packet) {
+		int size = packet.reliable() ? NetworkUtils.calculateVarIntSize(ordinal) : 0;
+
+		for (int requirement : requires) {
+			size += NetworkUtils.calculateVarIntSize(requirement);
+		}
+
+		return size;
+	}
+
+	/**
+	 * Writes this ordering after a message
+	 */
+	void write(Packet packet, ByteBuffer buffer) {
+		if (packet.reliable()) {
+			NetworkUtils.writeVarInt(buffer, ordinal);
+		}
+
+		for (int requirement : requires) {
+			NetworkUtils.writeVarInt(buffer, requirement);
+		}
+	}
+}
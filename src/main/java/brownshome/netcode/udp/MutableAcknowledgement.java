@@ -0,0 +1,34 @@
+package brownshome.netcode.udp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An acknowledgement field that is filled in again for each datagram that is sent, so that sending a datagram does not
+ * allocate one. It always has {@link Acknowledgement#MAXIMUM_WORDS} words, the words that are not used are zero, and it
+ * is encoded in the same way as an {@link Acknowledgement}.
+ */
+final class MutableAcknowledgement {
+	int oldestAcknowledgement;
+	final long[] acknowledgements = new long[Acknowledgement.MAXIMUM_WORDS];
+	/** The number of words that were filled in, the rest are zero */
+	int words;
+	int delayMicros;
+
+	void write(ByteBuffer buffer) {
+		Acknowledgement.write(buffer, oldestAcknowledgement, acknowledgements, delayMicros);
+	}
+
+	int size() {
+		return Acknowledgement.size(acknowledgements, delayMicros);
+	}
+
+	int sentWords() {
+		return Acknowledgement.sentWords(acknowledgements);
+	}
+
+	/** Copies this field into an immutable one */
+	Acknowledgement toAcknowledgement() {
+		return new Acknowledgement(oldestAcknowledgement, Arrays.copyOf(acknowledgements, words), delayMicros);
+	}
+}
@@ -0,0 +1,103 @@
+package brownshome.netcode.udp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * A transport using a {@link DatagramChannel}. NIO has no way of moving more than one datagram per call, so each batch
+ * received contains a single datagram.
+ *
+ * The channel is blocking unless it is registered with an {@link EventLoop}, after which datagrams are read by the loop
+ * when they arrive.
+ */
+final class NioDatagramTransport implements DatagramTransport {
+	private final DatagramChannel channel;
+	private final int port;
+	private final boolean reusesPort;
+
+	/**
+	 * Opens and binds a channel
+	 * @param port the port to bind to, or zero to pick a free port
+	 * @param socketBufferSize the size of the socket's send and receive buffers
+	 * @param reusePort whether to set SO_REUSEPORT, so that other channels can bind to the same port. This is ignored
+	 *                  if the platform does not support it.
+	 */
+	NioDatagramTransport(int port, int socketBufferSize, boolean reusePort) throws IOException {
+		channel = DatagramChannel.open(StandardProtocolFamily.INET6);
+
+		// Increase the buffer sizes to allow larger bursts of traffic.
+		channel.setOption(StandardSocketOptions.SO_SNDBUF, socketBufferSize);
+		channel.setOption(StandardSocketOptions.SO_RCVBUF, socketBufferSize);
+
+		reusesPort = reusePort && channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		if (reusesPort) {
+			channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+		}
+
+		if (port == 0) {
+			channel.bind(null);
+			port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+		} else {
+			channel.bind(new InetSocketAddress(port));
+		}
+
+		this.port = port;
+	}
+
+	/**
+	 * Makes the channel non-blocking and registers it with an event loop
+	 * @param loop the loop to read on
+	 * @param onReadable called on the loop's thread when there are datagrams to read with {@link #receiveNow(ByteBuffer)}
+	 */
+	void register(EventLoop loop, Runnable onReadable) throws IOException {
+		channel.configureBlocking(false);
+		loop.register(channel, onReadable);
+	}
+
+	/**
+	 * Receives a datagram if one is available, without blocking. This may only be used once the transport is registered.
+	 * @return the sender of the datagram, or null if there was no datagram
+	 */
+	InetSocketAddress receiveNow(ByteBuffer buffer) throws IOException {
+		assert !channel.isBlocking();
+
+		return (InetSocketAddress) channel.receive(buffer);
+	}
+
+	/** Whether other channels can bind to the same port as this one */
+	boolean reusesPort() {
+		return reusesPort;
+	}
+
+	@Override
+	public int localPort() {
+		return port;
+	}
+
+	@Override
+	public int receive(ByteBuffer[] buffers, InetSocketAddress[] senders) throws IOException {
+		InetSocketAddress sender;
+
+		do {
+			sender = (InetSocketAddress) channel.receive(buffers[0]);
+		} while (sender == null);
+
+		senders[0] = sender;
+		return 1;
+	}
+
+	@Override
+	public void send(ByteBuffer buffer, InetSocketAddress target) throws IOException {
+		// A non-blocking channel drops the datagram if the socket buffer is full, it is then resent as if it had been lost
+		channel.send(buffer, target);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
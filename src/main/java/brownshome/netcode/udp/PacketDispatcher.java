@@ -1,14 +1,13 @@
 package brownshome.netcode.udp;
 
 import java.io.IOException;
-import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.time.Duration;
-import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
+import java.util.zip.CRC32;
 
 import brownshome.netcode.*;
 
@@ -17,139 +16,412 @@ import brownshome.netcode.*;
  * of size MTU out of the messages currently waiting to be sent in the buffer. It has several goals:
  *
  * <ul>
- *     <li>Resend reliable packets</li>
+ *     <li>Resend reliable messages</li>
+ *     <li>Split messages that are too large for a single packet into fragments</li>
+ *     <li>Discover the largest datagram that can be sent to the remote end</li>
  *     <li>Annotate each packet with ordering information</li>
  *     <li>Construct packets from supplied messages</li>
  * </ul>
  *
  * To accomplish this the class will keep track of the approximate bandwidth of the connection and accumulate bits.
  * A minimum delay between packets will be introduced to ensure that bandwidth is not wasted on connection overheads.
+ * The bandwidth is decided by a {@link CongestionController}, which is fed the acknowledgements and losses of each
+ * datagram.
  **/
 abstract class PacketDispatcher {
-	private static final System.Logger LOGGER = System.getLogger(PacketDispatcher.class.getModule().getName());
+	private static final System.Logger LOGGER = System.getLogger(PacketDispatcher.class.getPackageName());
 
-	private final int maximumPayloadSize;
-	private final CompletableFuture<Long> remoteSalt;
-	private final Duration resendDelay;
+	/**
+	 * The space reserved at the start of each datagram buffer for the UDP-layer header. The payload is written after
+	 * this space, and the header is written directly in front of the payload once it is known. The fixed fields of the
+	 * largest header, a fragment, take 23 bytes with its one byte ID and 16-bit sequence number, and the acknowledgement
+	 * field is at most {@link Acknowledgement#MAXIMUM_SIZE}.
+	 */
+	private static final int HEADER_SPACE = 23 + Acknowledgement.MAXIMUM_SIZE;
+	private static final ByteBuffer NO_DATA = ByteBuffer.allocate(0);
 
-	private interface PrioritisedPacket extends Comparable<PrioritisedPacket> {
-		int priority();
-		Instant queueTime();
+	/** The number of sent datagrams that are kept for reuse once they have been acknowledged or lost */
+	private static final int POOLED_DATAGRAMS = 64;
 
-		@Override
-		default int compareTo(PrioritisedPacket p) {
-			int i = priority() - p.priority();
+	/** The largest datagram that has been confirmed to reach the remote end, this only increases */
+	private volatile int datagramSize;
+	private final PathMtuDiscovery pathMtuDiscovery;
+	private final int maximumMessageSize;
+	private final CompletableFuture<Long> remoteSalt;
+	private final RoundTripTimeEstimator roundTripTime = new RoundTripTimeEstimator();
+	private final CongestionController congestionController;
+	private final TimerWheel timer;
+	private final BufferPool buffers;
 
-			if (i == 0) {
-				return queueTime().compareTo(p.queueTime());
-			}
+	/**
+	 * A message waiting to be sent. Messages are sent in order of priority, and then in the order that they were queued.
+	 * Reliable messages that are in a lost datagram are returned to the front of the queue, and will be packed into a new
+	 * datagram.
+	 *
+	 * @param order the ordering of the message, fragments have their ordering encoded in the message data instead
+	 * @param futures the futures that are completed when the message is sent and received, or null for unreliable
+	 *                messages that nothing waits on
+	 * @param number the number identifying this message, this is used by the receiver to discard duplicate reliable
+	 *               messages, and to reassemble fragments. It is null for unreliable messages that are not fragmented.
+	 * @param attempt the number of times that this message has been resent
+	 * @param fragment the part of the message that this entry sends, or null if the whole message is sent
+	 */
+	private record QueuedPacket(Packet packet, MessageOrder order, NetworkConnection.SendResult futures,
+	                            MessageNumber number, int attempt, Fragment fragment) {
+		int priority() {
+			return packet.priority();
+		}
 
-			return i;
+		QueuedPacket resend() {
+			return new QueuedPacket(packet, order, futures, number, attempt + 1, fragment);
 		}
 	}
 
 	/**
-	 * The priority of a packet depends on its submission time and its priority. Priority takes precedence. Packets that
-	 * have been sent are recycled into the priority queue after RESEND_WAIT has expired. After this point they should have been
-	 * received and will be resent.
+	 * The number of a message. This is shared by the fragments of a message and by the copies of a message that are
+	 * resent, and is given out when the first part of the message is packed into a datagram. It is only accessed while
+	 * constructing a datagram.
 	 */
-	private record QueuedPacket(Instant queueTime, Packet packet, int type, BitSet waitsFor, NetworkConnection.SendResult futures) implements PrioritisedPacket {
-		@Override
-		public int priority() {
-			return packet.priority();
-		}
-	}
-	private final BlockingQueue<QueuedPacket> queue = new PriorityBlockingQueue<>();
+	private static final class MessageNumber {
+		/** Completes once every part of the message has been received, or null if the message is unreliable */
+		final CompletableFuture<?> received;
 
-	private record SentPacket(Instant queueTime, int priority, ByteBuffer encodedPacket, NetworkConnection.SendResult futures) implements PrioritisedPacket { }
-	private final BlockingQueue<SentPacket> resendQueue = new PriorityBlockingQueue<>();
+		boolean assigned = false;
+		int value;
 
-	private final SequenceNumberPool waitingAcks = new SequenceNumberPool();
-	private final AcknowledgementSender ackSender = new AcknowledgementSender();
+		MessageNumber(CompletableFuture<?> received) {
+			this.received = received;
+		}
+	}
+	/**
+	 * A part of a message that was too large to fit into a single packet. Each fragment is sent in a datagram of its own,
+	 * so that only the fragments that are lost need to be resent.
+	 *
+	 * @param messageSize the encoded size of the whole message
+	 * @param fragmentSize the size of each fragment of the message, except the last
+	 * @param index the index of this fragment in the message
+	 * @param data the encoded message data in this fragment
+	 */
+	private record Fragment(int messageSize, int fragmentSize, int index, ByteBuffer data) { }
+	private final PrioritySendQueue<QueuedPacket> queue = new PrioritySendQueue<>(QueuedPacket::priority);
+	private final MessageNumberAllocator messageNumbers = new MessageNumberAllocator(this::requestPacketConstruction);
 
 	/**
-	 * A list of sequence numbers that contain packets of a given type. Packets that have been received have been omitted.
+	 * The messages in a datagram that has been sent. When the datagram is acknowledged the received futures of its
+	 * messages are completed, and if it is lost first then its reliable messages are returned to the queue.
 	 *
-	 * Bit n in the bitfield represents newestSequenceNumber - n + 1
+	 * One of these is needed for every datagram, so they are reused. A datagram is held by the thread that sends it, by
+	 * the sequence number pool and by its resend timer, and is returned to the dispatcher once all of them have released
+	 * it. The datagram is also its resend timer's task.
 	 */
-	private record InFlightTypes(int newestSequenceNumber, int bitfield, int numberOfOlderNumbers) {
-		InFlightTypes {
-			assert numberOfOlderNumbers >= 0;
-		}
+	private final class SentDatagram implements SequenceNumberPool.Datagram, Runnable {
+		private static final AtomicIntegerFieldUpdater<SentDatagram> STATE = AtomicIntegerFieldUpdater.newUpdater(SentDatagram.class, "state");
+		private static final AtomicIntegerFieldUpdater<SentDatagram> REFERENCES = AtomicIntegerFieldUpdater.newUpdater(SentDatagram.class, "references");
 
-		InFlightTypes() {
-			this(-1, 0, 0);
-		}
+		private static final int PENDING = 0;
+		private static final int ACKNOWLEDGED = 1;
+		private static final int LOST = 2;
 
-		InFlightTypes addPacket(int sequenceNumber) {
-			assert sequenceNumber > newestSequenceNumber;
+		/** This is allocated once the datagram is known to have something in it */
+		int sequenceNumber;
+		boolean hasMessages = false;
+		/** The messages that have futures, these are completed as the datagram is sent and acknowledged */
+		final List<QueuedPacket> trackedMessages = new ArrayList<>();
 
-			int newBitField = bitfield << sequenceNumber - newestSequenceNumber | 1;
-			return new InFlightTypes(sequenceNumber,
-					newBitField,
-					numberOfOlderNumbers + Integer.bitCount(bitfield) - Integer.bitCount(newBitField) + 1);
-		}
+		/** The encoded datagram, this is only held until it has been sent */
+		ByteBuffer buffer;
+		int bytes;
+		TimerWheel.Timeout resendTimer;
 
-		InFlightTypes addAcknowledgementReceived(int sequenceNumber) {
-			assert sequenceNumber <= newestSequenceNumber;
+		private volatile int state = PENDING;
+		private volatile int references;
 
-			int bit = 1 << newestSequenceNumber - sequenceNumber;
+		/** Sends the datagram once it has waited for bandwidth */
+		final Runnable pacedSend = () -> {
+			transmit(this);
 
-			if (bit == 0) {
-				// Too old
-				return new InFlightTypes(newestSequenceNumber, bitfield, numberOfOlderNumbers - 1);
-			} else {
-				return new InFlightTypes(newestSequenceNumber, bitfield & ~bit, numberOfOlderNumbers);
+			// Allow the next packet to be constructed, now that this one has used its bandwidth
+			nextPacketConstructed.set(false);
+
+			if (hasDataToSend()) {
+				requestPacketConstruction();
+			}
+		};
+
+		/** The number of times that the messages in this datagram have been sent before */
+		int attempt() {
+			int attempt = 0;
+
+			for (int i = 0; i < trackedMessages.size(); i++) {
+				var message = trackedMessages.get(i);
+				if (message.futures.received() != null) {
+					attempt = Math.max(attempt, message.attempt);
+				}
+			}
+
+			return attempt;
+		}
+
+		/** Runs when the resend timer expires */
+		@Override
+		public void run() {
+			try {
+				onDatagramLost(this);
+			} finally {
+				release();
 			}
 		}
 
 		/**
-		 * Returns the sequence numbers in this wait-set encoded relative to the given sequence number
-		 * @param sequenceNumber the sequence number
-		 * @return a 32-bit number representing the sequence numbers in this type, or -1 if there are packets that are too
-		 *         old to encode that have not been acknowledged.
+		 * Marks this datagram as lost
+		 * @return true if it had not already been acknowledged or lost
 		 */
-		long makeRequiredPacketsField(int sequenceNumber) {
-			if (numberOfOlderNumbers > 0) {
-				return -1;
+		boolean lose() {
+			return STATE.compareAndSet(this, PENDING, LOST);
+		}
+
+		@Override
+		public void onAcknowledged() {
+			STATE.compareAndSet(this, PENDING, ACKNOWLEDGED);
+			cancelResendTimer();
+
+			// This completes the messages even if the datagram was lost, as their resent copies are then not needed
+			for (int i = 0; i < trackedMessages.size(); i++) {
+				var message = trackedMessages.get(i);
+				var received = message.futures.received();
+
+				if (received != null && received.complete(null) && message.fragment == null) {
+					messageNumbers.release(message.number.value);
+				}
 			}
+		}
 
-			assert sequenceNumber > newestSequenceNumber;
-			int encoded = bitfield << sequenceNumber - newestSequenceNumber - 1;
+		@Override
+		public void onClosed(Throwable reason) {
+			cancelResendTimer();
 
-			if (Integer.bitCount(encoded) != Integer.bitCount(bitfield)) {
-				return -1;
-			} else {
-				return Integer.toUnsignedLong(encoded);
+			for (int i = 0; i < trackedMessages.size(); i++) {
+				var message = trackedMessages.get(i);
+				if (message.futures.received() != null) {
+					message.futures.received().completeExceptionally(reason);
+				}
+			}
+		}
+
+		private void cancelResendTimer() {
+			if (resendTimer != null && resendTimer.cancel()) {
+				// The timer will not run, so it will not release the datagram itself
+				release();
+			}
+		}
+
+		void retain() {
+			REFERENCES.incrementAndGet(this);
+		}
+
+		@Override
+		public void release() {
+			if (REFERENCES.decrementAndGet(this) == 0) {
+				trackedMessages.clear();
+				hasMessages = false;
+				buffer = null;
+				resendTimer = null;
+				state = PENDING;
+
+				sentDatagrams.offer(this);
 			}
 		}
 	}
-	private final List<AtomicReference<InFlightTypes>> inFlightTypes;
+
+	/** Datagrams that can be reused */
+	private final BlockingQueue<SentDatagram> sentDatagrams = new ArrayBlockingQueue<>(POOLED_DATAGRAMS);
+
+	private final SequenceNumberPool waitingAcks;
+	private final AcknowledgementSender ackSender = new AcknowledgementSender();
+
+	/** The number of reliable messages of each type that have been queued, indexed by the bit of the type's mask */
+	private final int[] queuedOfType = new int[Long.SIZE];
 
 	private final AtomicBoolean nextPacketConstructed = new AtomicBoolean(false);
 
-	PacketDispatcher(Duration resendDelay,
-	                 int maximumPayloadSize,
-	                 CompletableFuture<Long> remoteSalt) {
-		this.resendDelay = resendDelay;
-		this.maximumPayloadSize = maximumPayloadSize;
+	/** The time that the last datagram was sent, this is used to send keepalives */
+	private volatile long lastSendTime = System.nanoTime();
+
+	/** Set once the dispatcher has been closed, after which no more datagrams are constructed */
+	private volatile boolean closed = false;
+
+	/** When received datagrams are acknowledged if there is no outgoing data for the acknowledgement to ride on */
+	private final UDPConnectionManager.AcknowledgementPolicy acknowledgementPolicy;
+
+	/** The number of received datagrams with messages that have not been acknowledged yet */
+	private final AtomicInteger unacknowledgedDatagrams = new AtomicInteger(0);
+
+	/**
+	 * Set when the acknowledgement policy asks for an acknowledgement to be sent. This is kept until a datagram is
+	 * constructed, so that a request made while a datagram is waiting for bandwidth is not lost.
+	 */
+	private final AtomicBoolean acknowledgementRequested = new AtomicBoolean(false);
+
+	/** The number of datagrams that have been sent with only an acknowledgement in them */
+	private final AtomicLong standaloneAcknowledgements = new AtomicLong(0L);
+
+	/** Packets that did not fit in the datagram that is being constructed, this is only used while constructing a packet */
+	private final List<QueuedPacket> invalidPackets = new ArrayList<>();
+
+	/*
+	 * These are reused for each datagram, and are only used while constructing a packet. The IDs of the UDP-layer packets
+	 * are looked up once, as their headers are written without constructing the packets.
+	 */
+	private final MutableAcknowledgement acknowledgementField = new MutableAcknowledgement();
+	private final CRC32 crc = new CRC32();
+	private int dataPacketId = -1;
+	private int fragmentPacketId = -1;
+
+	private final Runnable acknowledgementDelayExpired = this::onAcknowledgementDelayExpired;
+
+	/**
+	 * Creates a dispatcher
+	 * @param initialDatagramSize the size of the datagrams that are sent before larger sizes are discovered
+	 * @param maximumDatagramSize the largest datagram size that will be probed for
+	 * @param maximumMessageSize the largest message that may be sent in fragments
+	 * @param remoteSalt the salt of the remote end, this is completed once the connection has been established
+	 * @param congestionController the controller that sets the send rate
+	 * @param timer the timer used for pacing, resends, probes and delayed acknowledgements
+	 * @param buffers the pool that datagrams are assembled in
+	 * @param acknowledgementPolicy when to send an acknowledgement if there is no outgoing data
+	 */
+	PacketDispatcher(int initialDatagramSize,
+	                 int maximumDatagramSize,
+	                 int maximumMessageSize,
+	                 CompletableFuture<Long> remoteSalt,
+	                 CongestionController congestionController,
+	                 TimerWheel timer,
+	                 BufferPool buffers,
+	                 UDPConnectionManager.AcknowledgementPolicy acknowledgementPolicy) {
+		if (initialDatagramSize <= HEADER_SPACE || maximumDatagramSize < initialDatagramSize) {
+			throw new IllegalArgumentException("Invalid datagram sizes %d and %d".formatted(initialDatagramSize, maximumDatagramSize));
+		}
+
+		if (maximumDatagramSize > buffers.bufferSize()) {
+			throw new IllegalArgumentException("A datagram of %d bytes does not fit into buffers of size %d"
+					.formatted(maximumDatagramSize, buffers.bufferSize()));
+		}
+
+		this.datagramSize = initialDatagramSize;
+		this.maximumMessageSize = maximumMessageSize;
 		this.remoteSalt = remoteSalt;
+		this.congestionController = congestionController;
+		this.timer = timer;
+		this.buffers = buffers;
+		this.acknowledgementPolicy = acknowledgementPolicy;
+
+		waitingAcks = new SequenceNumberPool((bytes, roundTripNanos, time) -> {
+			if (roundTripNanos >= 0) {
+				roundTripTime.onSample(roundTripNanos);
+			}
+
+			congestionController.onAcknowledged(bytes, roundTripNanos, time);
+		});
+		timeOfZeroBytes = System.nanoTime() - nanosToSend(congestionController.maximumBurst());
 
-		inFlightTypes = new CopyOnWriteArrayList<>();
+		pathMtuDiscovery = new PathMtuDiscovery(new PathMtuDiscovery.Prober() {
+			@Override
+			public void sendProbe(int size) {
+				PacketDispatcher.this.sendProbe(size);
+			}
+
+			@Override
+			public long probeTimeout() {
+				return roundTripTime.retransmissionTimeout(0);
+			}
+
+			@Override
+			public void onDatagramSizeConfirmed(int size) {
+				datagramSize = size;
+			}
+		}, timer, initialDatagramSize, maximumDatagramSize);
+
+		remoteSalt.thenRun(pathMtuDiscovery::start);
+
+		// Datagrams are hashed with the remote salt, so none are constructed until the connection is established
+		remoteSalt.whenComplete((salt, error) -> {
+			if (error == null) {
+				requestPacketConstruction();
+			} else {
+				close(error);
+			}
+		});
 	}
 
+	/**
+	 * The largest datagram that has been confirmed to reach the remote end
+	 */
+	int datagramSize() {
+		return datagramSize;
+	}
+
+	/**
+	 * The space for messages in a datagram, this grows as larger datagrams are discovered
+	 */
+	private int maximumPayloadSize() {
+		return datagramSize - HEADER_SPACE;
+	}
+
+	/**
+	 * Encodes a packet, preceded by its ID. IDs are variable length integers, so the packets of small protocols have IDs
+	 * of a single byte.
+	 */
 	void encode(ByteBuffer buffer, Packet packet) {
-		buffer.putInt(protocol().computePacketID(packet));
+		NetworkUtils.writeVarInt(buffer, protocol().computePacketID(packet));
 		packet.write(buffer);
 	}
 
 	private void encodeUdpLayer(ByteBuffer buffer, Packet packet) {
-		buffer.putInt(udpLayerProtocol().computePacketID(packet));
+		NetworkUtils.writeVarInt(buffer, udpLayerProtocol().computePacketID(packet));
 		packet.write(buffer);
 	}
 
 	int encodedSize(Packet packet) {
-		return packet.size() + Integer.BYTES;
+		return NetworkUtils.calculateVarIntSize(protocol().computePacketID(packet)) + packet.size();
+	}
+
+	private int encodedUdpLayerSize(Packet packet) {
+		return NetworkUtils.calculateVarIntSize(udpLayerProtocol().computePacketID(packet)) + packet.size();
+	}
+
+	/**
+	 * Encodes a message into a data packet, and then its ordering. Reliable messages have their message number between
+	 * the two, as the difference from the message number of the previous reliable message in the datagram. The messages
+	 * in a datagram were mostly queued one after another, so the difference usually takes a single byte.
+	 * @param previousMessageNumber the message number of the previous reliable message in the datagram, or zero
+	 */
+	private void encodeMessage(ByteBuffer buffer, QueuedPacket message, int previousMessageNumber) {
+		encode(buffer, message.packet);
+
+		if (message.packet.reliable()) {
+			NetworkUtils.writeSignedVarInt(buffer, message.number.value - previousMessageNumber);
+		}
+
+		message.order.write(message.packet, buffer);
+	}
+
+	private int encodedMessageSize(QueuedPacket message, int previousMessageNumber) {
+		int size = encodedSize(message.packet) + message.order.size(message.packet);
+
+		if (message.packet.reliable()) {
+			size += NetworkUtils.calculateSignedVarIntSize(message.number.value - previousMessageNumber);
+		}
+
+		return size;
+	}
+
+	/**
+	 * The largest size that a message can be encoded in, this is used before the message has been numbered and ordered
+	 */
+	private int maximumEncodedMessageSize(Packet packet) {
+		return encodedSize(packet)
+				+ (packet.reliable() ? NetworkUtils.MAXIMUM_VAR_INT_SIZE : 0)
+				+ MessageOrder.maximumSize(packet);
 	}
 
 	abstract Protocol protocol();
@@ -157,229 +429,630 @@ abstract class PacketDispatcher {
 
 	abstract void sendBuffer(ByteBuffer buffer) throws IOException;
 
+	/** Called when a datagram is constructed that only carries an acknowledgement */
+	abstract void onStandaloneAcknowledgement();
+
 	/**
 	 * Queues a packet for sending
-	 * @param queueTime the time that the packet was queued, this is used for prioritising packets.
-	 * @param packet the packet to sent
-	 * @param type a numerical ID for the packet type
-	 * @param waitsFor the packet types to wait for; this is the same ID used in type
+	 * @param packet the packet to sent, it waits for the packets in its ordering mask
 	 * @return a pair of futures. Note, if the packet is not reliable then the received future will be null
 	 */
-	NetworkConnection.SendResult queuePacket(Instant queueTime, Packet packet, int type, BitSet waitsFor) {
+	NetworkConnection.SendResult queuePacket(Packet packet) {
+		if (closed) {
+			var exception = new IllegalStateException("The connection has been closed");
+
+			return new NetworkConnection.SendResult(CompletableFuture.failedFuture(exception),
+					packet.reliable() ? CompletableFuture.failedFuture(exception) : null);
+		}
+
+		if (maximumEncodedMessageSize(packet) > maximumPayloadSize()) {
+			return queueFragments(packet);
+		}
+
 		NetworkConnection.SendResult futures = packet.reliable()
 				? NetworkConnection.SendResult.newReliable()
 				: NetworkConnection.SendResult.newUnreliable();
 
-		queue.add(new QueuedPacket(queueTime, packet, type, waitsFor, futures));
+		var number = packet.reliable() ? new MessageNumber(futures.received()) : null;
 
-		if (nextPacketConstructed.compareAndSet(false, true)) {
-			constructNextPacket();
-		}
+		queue.add(new QueuedPacket(packet, order(packet), futures, number, 0, null));
+		requestPacketConstruction();
 
 		return futures;
 	}
 
-	void sendConnectPacket(long localSalt) {
-		var packet = new ConnectPacket(localSalt, null);
+	/**
+	 * Queues an unreliable packet without creating any futures, this is used for packets that nothing waits on
+	 * @param packet the packet to send, it waits for the packets in its ordering mask
+	 */
+	void queueUnreliable(Packet packet) {
+		assert !packet.reliable();
 
-		var buffer = ByteBuffer.allocate(encodedSize(packet)).order(ByteOrder.LITTLE_ENDIAN);
-		encode(buffer, packet);
-		buffer.flip();
+		if (closed) {
+			return;
+		}
+
+		if (maximumEncodedMessageSize(packet) > maximumPayloadSize()) {
+			// Fragmented packets are rare enough that they can use the tracked path
+			queueFragments(packet);
+			return;
+		}
+
+		queue.add(new QueuedPacket(packet, order(packet), null, null, 0, null));
+		requestPacketConstruction();
+	}
+
+	/**
+	 * Splits a packet that is too large for a single datagram into fragments, and queues each fragment. The ordering of
+	 * the packet is encoded after it, so the receiver orders the reassembled packet like any other message.
+	 */
+	private NetworkConnection.SendResult queueFragments(Packet packet) {
+		var encoded = ByteBuffer.allocate(encodedSize(packet) + MessageOrder.maximumSize(packet)).order(ByteOrder.LITTLE_ENDIAN);
+		encode(encoded, packet);
+
+		// The size of a packet may be an overestimate, so use the size that was actually written. The ordering is not known
+		// yet, so it is counted at its largest.
+		int messageSize = encoded.position() + MessageOrder.maximumSize(packet);
+
+		if (messageSize > maximumMessageSize) {
+			var exception = new IllegalArgumentException(
+					"Packet '%s' is %d bytes, the maximum is %d".formatted(packet, messageSize, maximumMessageSize));
+
+			return new NetworkConnection.SendResult(CompletableFuture.failedFuture(exception),
+					packet.reliable() ? CompletableFuture.failedFuture(exception) : null);
+		}
 
+		// The packet is only ordered once it is certain to be sent, as later packets may wait for it
+		order(packet).write(packet, encoded);
+		encoded.flip();
+		messageSize = encoded.remaining();
 
+		int fragmentSize = maximumPayloadSize();
+		int numberOfFragments = (messageSize + fragmentSize - 1) / fragmentSize;
+		var futures = new NetworkConnection.SendResult[numberOfFragments];
+		var sent = new CompletableFuture<?>[numberOfFragments];
+		var received = new CompletableFuture<?>[numberOfFragments];
+
+		for (int i = 0; i < numberOfFragments; i++) {
+			futures[i] = packet.reliable()
+					? NetworkConnection.SendResult.newReliable()
+					: NetworkConnection.SendResult.newUnreliable();
+
+			sent[i] = futures[i].sent();
+			received[i] = futures[i].received();
+		}
+
+		var result = new NetworkConnection.SendResult(CompletableFuture.allOf(sent),
+				packet.reliable() ? CompletableFuture.allOf(received) : null);
+
+		// The fragments share a message number, the receiver uses it to put them back together
+		var number = new MessageNumber(result.received());
+
+		for (int i = 0; i < numberOfFragments; i++) {
+			int offset = i * fragmentSize;
+			var data = encoded.slice(offset, Math.min(fragmentSize, messageSize - offset));
+
+			queue.add(new QueuedPacket(packet, MessageOrder.NONE, futures[i], number, 0,
+					new Fragment(messageSize, fragmentSize, i, data)));
+		}
+
+		requestPacketConstruction();
+
+		return result;
+	}
+
+	void sendConnectPacket(long localSalt, long cookie) {
+		sendUdpPacket(new ConnectPacket(localSalt, cookie, null));
 	}
 
+	/**
+	 * Sends a UDP-layer packet in a datagram of its own, once there is bandwidth for it. These packets are not
+	 * acknowledged or resent.
+	 */
 	void sendUdpPacket(Packet packet) {
-		var buffer = ByteBuffer.allocate(encodedSize(packet)).order(ByteOrder.LITTLE_ENDIAN);
-		encode(buffer, packet);
+		var buffer = buffers.acquire();
+		encodeUdpLayer(buffer, packet);
 		buffer.flip();
+
+		long nanosToWait = reserveBandwidth(buffer.remaining());
+
+		if (nanosToWait < timer.tickNanos()) {
+			sendUdpBuffer(packet, buffer);
+		} else {
+			timer.schedule(() -> sendUdpBuffer(packet, buffer), nanosToWait);
+		}
 	}
 
+	private void sendUdpBuffer(Packet packet, ByteBuffer buffer) {
+		try {
+			sendBuffer(buffer);
+		} catch (IOException e) {
+			LOGGER.log(System.Logger.Level.WARNING, "Failed to send " + packet, e);
+		} finally {
+			buffers.release(buffer);
+		}
+	}
+
+	private void sendProbe(int size) {
+		long salt = remoteSalt.join();
+		int paddingSize = size - UDPPackets.PROBE_HEADER_SIZE;
+
+		sendUdpPacket(new UdpProbePacket(UDPPackets.hashProbePacket(salt, size), size, ByteBuffer.allocate(paddingSize)));
+	}
+
+	/**
+	 * Acknowledges a probe that was received from the remote end
+	 * @param size the size of the probe
+	 */
+	void acknowledgeProbe(int size) {
+		if (!remoteSalt.isDone() || remoteSalt.isCompletedExceptionally()) {
+			// The connection has not been established
+			return;
+		}
+
+		long salt = remoteSalt.join();
+
+		sendUdpPacket(new UdpProbeAcknowledgementPacket(UDPPackets.hashProbePacket(salt, size), size));
+	}
+
+	void onProbeAcknowledged(int size) {
+		pathMtuDiscovery.onProbeAcknowledged(size);
+	}
+
+	/**
+	 * Records a received datagram. Datagrams with messages are acknowledged on the next datagram that is sent, and a
+	 * datagram is sent just for the acknowledgement once the acknowledgement policy's count or delay is reached.
+	 * @param queueAcknowledgement whether the datagram should be acknowledged
+	 * @return true if this sequence number has not been received before
+	 */
 	boolean onSequenceNumberReceived(int sequenceNumber, boolean queueAcknowledgement) {
 		boolean isNew = ackSender.onSequenceNumberReceived(sequenceNumber, queueAcknowledgement);
 
 		if (isNew && queueAcknowledgement) {
-			constructNextPacket();
+			int unacknowledged = unacknowledgedDatagrams.incrementAndGet();
+
+			if (unacknowledged >= acknowledgementPolicy.datagrams()) {
+				requestAcknowledgement();
+			} else if (unacknowledged == 1) {
+				timer.schedule(acknowledgementDelayExpired, acknowledgementPolicy.delay().toNanos());
+			}
 		}
 
 		return isNew;
 	}
 
-	void onAcknowledgementReceived(int sequenceNumber) {
-		waitingAcks.onAcknowledgementReceived(sequenceNumber);
+	private void onAcknowledgementDelayExpired() {
+		// The acknowledgement may already have been sent with other data, this can also be a timer from an earlier batch
+		if (unacknowledgedDatagrams.get() > 0) {
+			requestAcknowledgement();
+		}
+	}
+
+	private void requestAcknowledgement() {
+		acknowledgementRequested.set(true);
+		requestPacketConstruction();
 	}
 
-	private long computeWaitForValue(BitSet waits, int sequenceNumber) {
-		long result = 0;
+	/**
+	 * Sends a datagram if none has been sent for the given time, so that the other end sees that this end is alive. The
+	 * datagram is an acknowledgement, so it is sent even if there is nothing to acknowledge.
+	 */
+	void keepAlive(long idleNanos) {
+		if (!closed && System.nanoTime() - lastSendTime >= idleNanos) {
+			requestAcknowledgement();
+		}
+	}
 
-		// Iterate set bits in the wait set
-		for (int i = waits.nextSetBit(0); i >= 0; i = waits.nextSetBit(i + 1)) {
-			if (inFlightTypes.size() <= i) {
-				break;
-			}
+	/**
+	 * The number of datagrams that have been sent with only an acknowledgement in them
+	 */
+	long standaloneAcknowledgements() {
+		return standaloneAcknowledgements.get();
+	}
 
-			long requiredPackets = inFlightTypes.get(i).get().makeRequiredPacketsField(sequenceNumber);
+	void onAcknowledgementsReceived(Acknowledgement acknowledgement) {
+		waitingAcks.onAcknowledgementsReceived(acknowledgement);
+	}
+
+	int expandSequenceNumber(short sequenceNumber) {
+		return ackSender.expandSequenceNumber(sequenceNumber);
+	}
+
+	/**
+	 * Places a message in the ordering of its type, and records the messages of other types that it must wait for. This is
+	 * done when the message is queued, so it holds no matter which datagrams the messages are sent in.
+	 */
+	private MessageOrder order(Packet packet) {
+		long orderingMask = packet.orderingMask();
+
+		if (orderingMask == 0L && !packet.reliable()) {
+			return MessageOrder.NONE;
+		}
 
-			if (requiredPackets == -1) {
-				return -1;
+		int[] requires = orderingMask == 0L ? MessageOrder.NONE.requires() : new int[Long.bitCount(orderingMask)];
+		int ordinal = 0;
+
+		// The counts are read and incremented together, so that two messages can never wait for each other
+		synchronized (queuedOfType) {
+			int i = 0;
+			for (long types = orderingMask; types != 0L; types &= types - 1) {
+				requires[i++] = queuedOfType[Long.numberOfTrailingZeros(types)];
 			}
 
-			result |= requiredPackets;
+			if (packet.reliable()) {
+				ordinal = queuedOfType[Long.numberOfTrailingZeros(packet.typeMask())]++;
+			}
 		}
 
-		return result;
+		return new MessageOrder(ordinal, requires);
+	}
+
+	/**
+	 * Stops sending. The futures of every message that is queued or awaiting acknowledgement are failed, and all timers
+	 * are cancelled, so that nothing refers to the dispatcher once its connection has been discarded.
+	 * @param reason the exception to fail the futures with
+	 */
+	void close(Throwable reason) {
+		closed = true;
+		pathMtuDiscovery.stop();
+		waitingAcks.close(reason);
+
+		QueuedPacket queued;
+		while ((queued = queue.poll()) != null) {
+			if (queued.futures == null) {
+				continue;
+			}
+
+			queued.futures.sent().completeExceptionally(reason);
+
+			if (queued.futures.received() != null) {
+				queued.futures.received().completeExceptionally(reason);
+			}
+		}
 	}
 
 	/**
-	 * Constructs a packet and queues it for sending after enough bandwidth has been accrued
+	 * Constructs packets, unless a packet is already being constructed or is waiting for bandwidth. In that case the next
+	 * packet will be constructed once the waiting packet has been sent.
 	 */
-	private void constructNextPacket() {
+	private void requestPacketConstruction() {
+		// Construction is requested again once the connection has been established
+		if (!remoteSalt.isDone() || remoteSalt.isCompletedExceptionally()) {
+			return;
+		}
+
+		if (closed || !nextPacketConstructed.compareAndSet(false, true)) {
+			return;
+		}
+
 		/*
-		 * 1. Check the resend queue for packets
-		 * 2. Check the queue for packets
-		 * 3. Send
+		 * Datagrams that fit in the burst allowance are sent straight away, so keep constructing them in this loop until one
+		 * has to wait for bandwidth. Constructing the next datagram from the send of the previous one would use a stack
+		 * frame per datagram in the burst.
 		 */
+		do {
+			if (!constructNextPacket()) {
+				// The datagram is waiting on the timer, which will construct the next one once it has been sent
+				return;
+			}
 
-		SentPacket resend = resendQueue.peek();
+			nextPacketConstructed.set(false);
+		} while (hasDataToSend() && !closed && nextPacketConstructed.compareAndSet(false, true));
+	}
 
-		QueuedPacket queued;
-		if (resend != null && ((queued = queue.peek()) == null || resend.compareTo(queued) >= 0)) {
-			// Resend the packet
-			resend = resendQueue.poll();
-			send(resend.priority, resend.encodedPacket, resend.futures);
-		} else {
-			// Packets we can't send as there are not enough bits in the ordering constraint field. THIS SHOULD BE RARE
-			List<QueuedPacket> invalidPackets = new ArrayList<>();
-
-			var acknowledgement = ackSender.constructAcknowledgementField();
-			var futures = NetworkConnection.SendResult.newReliable();
-			var messages = ByteBuffer.allocate(maximumPayloadSize).order(ByteOrder.LITTLE_ENDIAN);
-			int waitForValues = 0;
-			int sequenceNumber = waitingAcks.allocateSequenceNumber(futures.received());
-			int priority = -1;
-
-			while ((queued = queue.poll()) != null) {
-				/*
-				 * Stop building the packet if the next message won't fit. There is no need to cram packets, we'll send
-				 * another one soon anyway.
-				 */
-				if (encodedSize(queued.packet) > messages.remaining()) {
-					invalidPackets.add(queued);
-					break;
-				}
+	/**
+	 * Whether there is anything waiting to be sent, this is checked each time a datagram is sent. Messages that are
+	 * waiting for a message number are not counted, construction is requested again once a number is free.
+	 */
+	private boolean hasDataToSend() {
+		return !queue.isEmpty() && !messageNumbers.isExhausted() || acknowledgementRequested.get();
+	}
 
-				long waits = computeWaitForValue(queued.waitsFor, sequenceNumber);
+	/**
+	 * Gives a message its number, if it needs one and does not have one yet
+	 * @return false if no number is free, the message must wait until older messages have been acknowledged
+	 */
+	private boolean assignMessageNumber(QueuedPacket message) {
+		var number = message.number;
 
-				// This packet cannot be added as the wait field is not long enough to store the dependency
-				if (waits == -1) {
-					invalidPackets.add(queued);
-					continue;
-				}
+		if (number == null || number.assigned) {
+			return true;
+		}
 
-				// Add the packet
-				waitForValues |= waits;
-				encode(messages, queued.packet);
+		if (!messageNumbers.hasFreeNumber()) {
+			return false;
+		}
 
-				// Update packet priority
-				priority = Math.max(priority, queued.priority());
+		number.value = messageNumbers.allocate(number.received != null);
+		number.assigned = true;
 
-				// In-flight types
-				while (inFlightTypes.size() <= queued.type) {
-					inFlightTypes.add(new AtomicReference<>(new InFlightTypes()));
-				}
+		// The number of a whole message is released by the datagram that it is acknowledged in. Fragments share a number,
+		// which is released once every fragment has been received.
+		if (number.received != null && message.fragment != null) {
+			int value = number.value;
+			number.received.thenRun(() -> messageNumbers.release(value));
+		}
 
-				var inFlightAtomic = inFlightTypes.get(queued.type);
-				inFlightAtomic.updateAndGet(inFlight -> inFlight.addPacket(sequenceNumber));
+		return true;
+	}
 
-				// Link the futures for this packet
-				var packetFutures = queued.futures;
-				futures.sent().thenRun(() -> packetFutures.sent().complete(null));
+	/**
+	 * Constructs a packet and sends it once enough bandwidth has been accrued. Nothing is sent if no message could be
+	 * added and no acknowledgement was requested.
+	 * @return true if the packet was sent straight away, or there was nothing to send, false if it is waiting for bandwidth
+	 */
+	private boolean constructNextPacket() {
+		// This is only called once the salt is known, it is read before any message is taken from the queue
+		long salt = remoteSalt.join();
+		boolean acknowledge = acknowledgementRequested.getAndSet(false);
+
+		// The messages are written straight into the datagram buffer, after the space for the header
+		var buffer = buffers.acquire();
+		var messages = buffer.position(HEADER_SPACE).limit(HEADER_SPACE + maximumPayloadSize());
+		var datagram = acquireDatagram();
+		QueuedPacket fragment = null;
+		int previousMessageNumber = 0;
 
-				futures.received().thenRun(() -> {
-					if (packetFutures.received() != null) {
-						packetFutures.received().complete(null);
-					}
+		QueuedPacket queued;
+		while ((queued = queue.poll()) != null) {
+			if (queued.futures != null && queued.futures.received() != null && queued.futures.received().isDone()) {
+				// This message was resent, but the original datagram has since been acknowledged
+				continue;
+			}
 
-					inFlightAtomic.updateAndGet(inFlight -> inFlight.addAcknowledgementReceived(sequenceNumber));
-				});
+			if (!assignMessageNumber(queued)) {
+				// Too many reliable messages are waiting for acknowledgement, this one is sent once the oldest have been
+				invalidPackets.add(queued);
+				break;
 			}
 
-			// Re-add invalid packets
-			queue.addAll(invalidPackets);
+			/*
+			 * Stop building the packet if the next message won't fit. There is no need to cram packets, we'll send
+			 * another one soon anyway. Fragments are always sent in a datagram of their own.
+			 */
+			boolean isFragment = queued.fragment != null;
+			if (isFragment ? messages.position() > HEADER_SPACE : encodedMessageSize(queued, previousMessageNumber) > messages.remaining()) {
+				invalidPackets.add(queued);
+				break;
+			}
 
-			long salt;
-			try {
-				salt = remoteSalt.get();
-			} catch (InterruptedException | ExecutionException e) {
-				throw new IllegalStateException(e);
+			// Add the packet
+			if (isFragment) {
+				fragment = queued;
+			} else {
+				encodeMessage(messages, queued, previousMessageNumber);
+
+				if (queued.packet.reliable()) {
+					previousMessageNumber = queued.number.value;
+				}
+			}
+
+			datagram.hasMessages = true;
+
+			// The futures of this message are completed by the datagram, untracked messages have none
+			if (queued.futures != null) {
+				datagram.trackedMessages.add(queued);
 			}
 
-			// Encode packet
-			messages.flip();
-			var hash = UDPPackets.hashDataPacket(
-					salt,
-					acknowledgement,
-					sequenceNumber, waitForValues,
-					messages.duplicate());
+			if (isFragment) {
+				break;
+			}
+		}
+
+		// Return invalid packets to the front of the queue
+		queue.addAllFirst(invalidPackets);
+		invalidPackets.clear();
+
+		if (!datagram.hasMessages && !acknowledge) {
+			buffers.release(buffer);
+			datagram.release();
+			return true;
+		}
+
+		// Every datagram carries an acknowledgement, so the received datagrams no longer need one of their own
+		unacknowledgedDatagrams.set(0);
+		ackSender.constructAcknowledgementField(acknowledgementField);
+
+		// The sequence number pool holds the datagram until it is acknowledged
+		datagram.retain();
+		datagram.sequenceNumber = waitingAcks.allocateSequenceNumber(datagram);
+		short sequenceNumber = (short) datagram.sequenceNumber;
+
+		if (!datagram.hasMessages) {
+			standaloneAcknowledgements.incrementAndGet();
+			onStandaloneAcknowledgement();
+		}
+
+		// Write the header in front of the payload that is already in the buffer
+		int headerStart;
+
+		if (fragment == null) {
+			messages.flip().position(HEADER_SPACE);
+
+			int hash = UDPPackets.hashDataPacket(crc, salt, acknowledgementField, sequenceNumber, messages);
+
+			headerStart = HEADER_SPACE - UDPPackets.dataHeaderSize(dataPacketId(), acknowledgementField);
+			assert headerStart >= 0;
 
-			var packet = new UdpDataPacket(hash, acknowledgement, sequenceNumber, waitForValues, messages.duplicate());
+			UDPPackets.writeDataHeader(buffer.position(headerStart), dataPacketId(), hash, acknowledgementField, sequenceNumber);
+		} else {
+			var data = fragment.fragment.data;
+			int length = data.remaining();
+			messages.put(HEADER_SPACE, data, data.position(), length).position(HEADER_SPACE + length).flip().position(HEADER_SPACE);
+
+			int hash = UDPPackets.hashFragmentPacket(crc, salt, acknowledgementField, sequenceNumber,
+					fragment.number.value, fragment.fragment.messageSize, fragment.fragment.fragmentSize, fragment.fragment.index,
+					messages);
 
-			var encoded = ByteBuffer.allocate(packet.size()).order(ByteOrder.LITTLE_ENDIAN);
-			packet.write(encoded);
-			encoded.flip();
+			headerStart = HEADER_SPACE - UDPPackets.fragmentHeaderSize(fragmentPacketId(), acknowledgementField);
+			assert headerStart >= 0;
 
-			// Queue send
-			send(priority, encoded, futures);
+			UDPPackets.writeFragmentHeader(buffer.position(headerStart), fragmentPacketId(), hash, acknowledgementField,
+					sequenceNumber,
+					fragment.number.value, fragment.fragment.messageSize, fragment.fragment.fragmentSize, fragment.fragment.index);
 		}
+
+		datagram.buffer = buffer.position(headerStart);
+
+		// Queue send
+		return send(datagram);
 	}
 
-	private void send(int priority, ByteBuffer encodedPacket, NetworkConnection.SendResult futures) {
-		whenBandwidthExists(encodedPacket).thenAccept(buffer -> {
-			try {
-				sendBuffer(encodedPacket.duplicate());
-				futures.sent().complete(null);
-
-				if (priority != -1) {
-					CompletableFuture.delayedExecutor(resendDelay.toNanos(), TimeUnit.NANOSECONDS).execute(() -> {
-						if (!futures.received().isDone()) {
-							resendQueue.add(new SentPacket(Instant.now(), priority, buffer, futures));
-						}
-					});
-				}
-			} catch (IOException e) {
-				throw new UncheckedIOException(e);
+	private SentDatagram acquireDatagram() {
+		var datagram = sentDatagrams.poll();
+
+		if (datagram == null) {
+			datagram = new SentDatagram();
+		}
+
+		// The constructing thread holds the datagram until it has been sent
+		datagram.references = 1;
+		return datagram;
+	}
+
+	private int dataPacketId() {
+		if (dataPacketId < 0) {
+			dataPacketId = udpLayerProtocol().computePacketID(
+					new UdpDataPacket(0, Acknowledgement.emptyAcknowledgement(), (short) 0, NO_DATA));
+		}
+
+		return dataPacketId;
+	}
+
+	private int fragmentPacketId() {
+		if (fragmentPacketId < 0) {
+			fragmentPacketId = udpLayerProtocol().computePacketID(
+					new UdpFragmentPacket(0, Acknowledgement.emptyAcknowledgement(), (short) 0, 0, 0, 0, 0, NO_DATA));
+		}
+
+		return fragmentPacketId;
+	}
+
+	/**
+	 * Called when a datagram is not acknowledged in time, or a loss is detected from the acknowledgements. The reliable
+	 * messages in the datagram are queued to be packed into a new datagram, and the unreliable messages are dropped.
+	 */
+	private void onDatagramLost(SentDatagram datagram) {
+		if (!datagram.lose()) {
+			return;
+		}
+
+		congestionController.onLost(datagram.bytes, System.nanoTime());
+
+		List<QueuedPacket> resends = new ArrayList<>();
+		for (int i = 0; i < datagram.trackedMessages.size(); i++) {
+			var message = datagram.trackedMessages.get(i);
+			if (message.futures.received() != null && !message.futures.received().isDone()) {
+				resends.add(message.resend());
 			}
-		}).exceptionally(e -> {
-			futures.sent().completeExceptionally(e);
-			return null;
-		});
+		}
+
+		if (!resends.isEmpty()) {
+			queue.addAllFirst(resends);
+			requestPacketConstruction();
+		}
+	}
+
+	/**
+	 * Sends a datagram once there is bandwidth for it. The buffer is returned to the pool once it has been sent, as lost
+	 * datagrams are not sent again, their messages are packed into a new datagram instead.
+	 * @return true if the datagram was sent straight away, false if it is waiting for bandwidth
+	 */
+	private boolean send(SentDatagram datagram) {
+		long nanosToWait = reserveBandwidth(datagram.buffer.remaining());
 
-		futures.sent().thenRun(() -> resendQueue.add(new SentPacket(Instant.now(), priority, encodedPacket, futures)));
+		// Waits shorter than a tick are covered by the burst allowance
+		if (nanosToWait < timer.tickNanos()) {
+			transmit(datagram);
+			return true;
+		}
+
+		timer.schedule(datagram.pacedSend, nanosToWait);
+		return false;
 	}
 
-	private final long maximumByteAccumulation = 1024 * 1024;
-	private final long nanosPerByte = 1_000_000_000L / 1024 / 1024;
+	private void transmit(SentDatagram datagram) {
+		var buffer = datagram.buffer;
+
+		try {
+			int bytes = buffer.remaining();
+			datagram.bytes = bytes;
+
+			if (datagram.hasMessages) {
+				// The timer holds the datagram until it runs or is cancelled. It is run early by the sequence number pool if
+				// a loss is detected from the acknowledgements.
+				datagram.retain();
+				datagram.resendTimer = timer.schedule(datagram, roundTripTime.retransmissionTimeout(datagram.attempt()));
+			}
+
+			// Record the send first, so that a fast acknowledgement is not missed
+			waitingAcks.onSent(datagram.sequenceNumber, bytes, System.nanoTime(), datagram.resendTimer);
+			sendBuffer(buffer);
+			lastSendTime = System.nanoTime();
+
+			for (int i = 0; i < datagram.trackedMessages.size(); i++) {
+				var message = datagram.trackedMessages.get(i);
+				message.futures.sent().complete(null);
+			}
+		} catch (IOException | RuntimeException e) {
+			for (int i = 0; i < datagram.trackedMessages.size(); i++) {
+				var message = datagram.trackedMessages.get(i);
+				message.futures.sent().completeExceptionally(e);
+			}
+		} finally {
+			datagram.buffer = null;
+			buffers.release(buffer);
+			datagram.release();
+		}
+	}
 
 	/**
-	 * The time at which the connection had zero bandwidth
+	 * The smoothed round trip time of this connection
+	 * @return the round trip time, or zero if no datagram has been acknowledged yet
 	 */
-	private Instant timeOfZeroBytes = Instant.now().minusNanos(maximumByteAccumulation * nanosPerByte);
+	Duration roundTripTime() {
+		return roundTripTime.roundTripTime();
+	}
 
-	private CompletableFuture<ByteBuffer> whenBandwidthExists(ByteBuffer buffer) {
-		int bytes = buffer.remaining();
+	/**
+	 * The mean deviation of the round trip time of this connection
+	 * @return the variance, or zero if no datagram has been acknowledged yet
+	 */
+	Duration roundTripTimeVariance() {
+		return roundTripTime.roundTripTimeVariance();
+	}
 
-		var now = Instant.now();
-		var maximumTimeIntoThePast = now.minusNanos(maximumByteAccumulation * nanosPerByte);
-		timeOfZeroBytes = timeOfZeroBytes.plusNanos(bytes * nanosPerByte);
+	/**
+	 * The {@link System#nanoTime()} at which the connection had zero bandwidth
+	 */
+	private long timeOfZeroBytes;
 
-		if (maximumTimeIntoThePast.isAfter(timeOfZeroBytes)) {
+	/**
+	 * The current estimate of the connection's capacity
+	 * @return the estimate made by the congestion controller
+	 */
+	CongestionController.Estimate congestionEstimate() {
+		return congestionController.estimate();
+	}
+
+	private long nanosToSend(long bytes) {
+		return (long) (bytes * 1e9 / congestionController.sendRate());
+	}
+
+	/**
+	 * Takes the bandwidth for a datagram from the allowance
+	 * @param bytes the size of the datagram
+	 * @return how long to wait before the datagram is sent, in nanoseconds
+	 */
+	private synchronized long reserveBandwidth(int bytes) {
+		long now = System.nanoTime();
+		long maximumTimeIntoThePast = now - nanosToSend(congestionController.maximumBurst());
+		timeOfZeroBytes += nanosToSend(bytes);
+
+		if (maximumTimeIntoThePast - timeOfZeroBytes > 0) {
 			timeOfZeroBytes = maximumTimeIntoThePast;
 		}
 
-		long nanosToWait = Duration.between(now, timeOfZeroBytes).toNanos();
-
-		var future = new CompletableFuture<ByteBuffer>();
-		CompletableFuture.delayedExecutor(nanosToWait, TimeUnit.NANOSECONDS).execute(() -> future.complete(buffer));
-		return future;
+		return timeOfZeroBytes - now;
 	}
 }
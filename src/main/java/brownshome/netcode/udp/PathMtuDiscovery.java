@@ -0,0 +1,164 @@
+package brownshome.netcode.udp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the largest datagram that can be sent to the remote end of a connection. This sends padded probe datagrams, and
+ * performs a binary search between the largest size that has been acknowledged and the largest size that has not been
+ * ruled out. A size is ruled out if none of its probes are acknowledged.
+ *
+ * Once the search is complete it is repeated periodically, as the path to the remote end may change.
+ */
+final class PathMtuDiscovery {
+	private static final System.Logger LOGGER = System.getLogger(PathMtuDiscovery.class.getPackageName());
+
+	/** The number of probes of a size that are sent before it is ruled out */
+	private static final int MAXIMUM_ATTEMPTS = 3;
+
+	/** The search stops once it is within this many bytes of the largest size */
+	private static final int SEARCH_RESOLUTION = 16;
+
+	private static final long SEARCH_INTERVAL = TimeUnit.MINUTES.toNanos(10);
+
+	/** Sends probes on behalf of the search */
+	interface Prober {
+		/**
+		 * Sends a probe datagram
+		 * @param size the size of the datagram, including all headers
+		 */
+		void sendProbe(int size);
+
+		/** How long to wait for a probe to be acknowledged in nanoseconds */
+		long probeTimeout();
+
+		/** Called when a larger datagram size has been confirmed */
+		void onDatagramSizeConfirmed(int size);
+	}
+
+	private final Prober prober;
+	private final TimerWheel timer;
+	private final int maximumSize;
+
+	private int confirmedSize;
+	private int largestPossibleSize;
+
+	/** The size that is being probed, or zero if there is no probe in flight */
+	private int probeSize = 0;
+	private int attempts = 0;
+	private TimerWheel.Timeout probeTimer;
+	private TimerWheel.Timeout restartTimer;
+	private boolean stopped = false;
+
+	/**
+	 * Creates a search
+	 * @param prober the object used to send probes
+	 * @param timer the timer used for probe timeouts
+	 * @param initialSize a datagram size that is assumed to work
+	 * @param maximumSize the largest datagram size that will be probed
+	 */
+	PathMtuDiscovery(Prober prober, TimerWheel timer, int initialSize, int maximumSize) {
+		this.prober = prober;
+		this.timer = timer;
+		this.confirmedSize = initialSize;
+		this.largestPossibleSize = maximumSize;
+		this.maximumSize = maximumSize;
+	}
+
+	/** The largest datagram size that has been confirmed */
+	synchronized int confirmedSize() {
+		return confirmedSize;
+	}
+
+	/**
+	 * Starts the search, this should be called once the connection has been established
+	 */
+	synchronized void start() {
+		if (probeSize == 0) {
+			probeNextSize();
+		}
+	}
+
+	/**
+	 * Stops the search, no more probes are sent after this call
+	 */
+	synchronized void stop() {
+		stopped = true;
+
+		if (probeTimer != null) {
+			probeTimer.cancel();
+		}
+
+		if (restartTimer != null) {
+			restartTimer.cancel();
+		}
+	}
+
+	/**
+	 * Called when the remote end acknowledges a probe
+	 * @param size the size of the probe that was acknowledged
+	 */
+	void onProbeAcknowledged(int size) {
+		synchronized (this) {
+			if (stopped || size <= confirmedSize || size > largestPossibleSize) {
+				return;
+			}
+
+			if (probeTimer != null) {
+				probeTimer.cancel();
+			}
+
+			confirmedSize = size;
+			probeSize = 0;
+			probeNextSize();
+		}
+
+		LOGGER.log(System.Logger.Level.DEBUG, "Datagrams of {0} bytes are getting through", size);
+		prober.onDatagramSizeConfirmed(size);
+	}
+
+	private synchronized void onProbeTimeout() {
+		if (stopped) {
+			return;
+		}
+
+		if (attempts < MAXIMUM_ATTEMPTS) {
+			sendProbe();
+		} else {
+			largestPossibleSize = probeSize - 1;
+			probeSize = 0;
+			probeNextSize();
+		}
+	}
+
+	private synchronized void restartSearch() {
+		if (stopped) {
+			return;
+		}
+
+		largestPossibleSize = maximumSize;
+
+		if (probeSize == 0) {
+			probeNextSize();
+		}
+	}
+
+	private void probeNextSize() {
+		if (largestPossibleSize - confirmedSize < SEARCH_RESOLUTION) {
+			if (confirmedSize < maximumSize) {
+				restartTimer = timer.schedule(this::restartSearch, SEARCH_INTERVAL);
+			}
+
+			return;
+		}
+
+		probeSize = (confirmedSize + largestPossibleSize + 1) / 2;
+		attempts = 0;
+		sendProbe();
+	}
+
+	private void sendProbe() {
+		attempts++;
+		probeTimer = timer.schedule(this::onProbeTimeout, prober.probeTimeout());
+		prober.sendProbe(probeSize);
+	}
+}
@@ -0,0 +1,113 @@
+package brownshome.netcode.udp;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.function.ToIntFunction;
+
+/**
+ * A queue of messages waiting to be sent, with one FIFO bucket per priority. Higher priorities are polled first, and
+ * messages of the same priority are polled in the order that they were added.
+ *
+ * Adding and polling are lock-free, and do not depend on the number of messages in the queue. Messages that have been
+ * polled but could not be sent can be returned to the front of their bucket, so that they keep their place in the queue.
+ * Priorities are expected to be small, as the buckets are indexed by priority.
+ */
+final class PrioritySendQueue<E> {
+	private final ToIntFunction<? super E> priority;
+
+	/** Indexed by priority, this is only replaced while holding the lock on this queue */
+	private volatile ConcurrentLinkedDeque<E>[] buckets;
+
+	/**
+	 * Creates a queue
+	 * @param priority gets the priority of an element, this must be greater than or equal to zero
+	 */
+	@SuppressWarnings("unchecked")
+	PrioritySendQueue(ToIntFunction<? super E> priority) {
+		this.priority = priority;
+		this.buckets = (ConcurrentLinkedDeque<E>[]) new ConcurrentLinkedDeque<?>[0];
+	}
+
+	/**
+	 * Adds an element to the back of its bucket
+	 */
+	void add(E element) {
+		bucket(priority.applyAsInt(element)).addLast(element);
+	}
+
+	/**
+	 * Returns elements to the front of their buckets. The elements will be polled before any other elements of the same
+	 * priority, in the order that they are in the list.
+	 */
+	void addAllFirst(List<? extends E> elements) {
+		for (int i = elements.size() - 1; i >= 0; i--) {
+			var element = elements.get(i);
+			bucket(priority.applyAsInt(element)).addFirst(element);
+		}
+	}
+
+	/**
+	 * Removes the oldest element of the highest priority
+	 * @return the element, or null if the queue is empty
+	 */
+	E poll() {
+		var buckets = this.buckets;
+
+		for (int i = buckets.length - 1; i >= 0; i--) {
+			var bucket = buckets[i];
+
+			if (bucket != null) {
+				E element = bucket.pollFirst();
+
+				if (element != null) {
+					return element;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	boolean isEmpty() {
+		for (var bucket : buckets) {
+			if (bucket != null && !bucket.isEmpty()) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private ConcurrentLinkedDeque<E> bucket(int priority) {
+		var buckets = this.buckets;
+
+		if (priority >= 0 && priority < buckets.length && buckets[priority] != null) {
+			return buckets[priority];
+		}
+
+		return createBucket(priority);
+	}
+
+	private synchronized ConcurrentLinkedDeque<E> createBucket(int priority) {
+		if (priority < 0) {
+			throw new IllegalArgumentException("Priority must not be negative: " + priority);
+		}
+
+		var buckets = this.buckets;
+
+		if (priority >= buckets.length) {
+			buckets = Arrays.copyOf(buckets, priority + 1);
+		} else if (buckets[priority] != null) {
+			return buckets[priority];
+		} else {
+			buckets = buckets.clone();
+		}
+
+		var bucket = new ConcurrentLinkedDeque<E>();
+		buckets[priority] = bucket;
+		this.buckets = buckets;
+
+		return bucket;
+	}
+}
@@ -0,0 +1,60 @@
+package brownshome.netcode.udp;
+
+import java.time.Duration;
+
+/**
+ * Tracks the smoothed round trip time and round trip variance of a connection, and derives a retransmission timeout
+ * from them. This follows the algorithm in RFC 6298, with bounds that are more suited to real-time traffic.
+ */
+final class RoundTripTimeEstimator {
+	private static final long INITIAL_TIMEOUT = Duration.ofMillis(200).toNanos();
+	private static final long MINIMUM_TIMEOUT = Duration.ofMillis(10).toNanos();
+	private static final long MAXIMUM_TIMEOUT = Duration.ofSeconds(2).toNanos();
+
+	/** The smallest allowed variance term, this stops scheduling jitter from causing spurious resends on stable links */
+	private static final long MINIMUM_VARIANCE_TERM = Duration.ofMillis(2).toNanos();
+
+	private static final double ALPHA = 1.0 / 8.0;
+	private static final double BETA = 1.0 / 4.0;
+
+	private boolean hasSample = false;
+	private double smoothedRoundTrip;
+	private double roundTripVariance;
+
+	synchronized void onSample(long roundTripNanos) {
+		if (!hasSample) {
+			hasSample = true;
+			smoothedRoundTrip = roundTripNanos;
+			roundTripVariance = roundTripNanos / 2.0;
+		} else {
+			roundTripVariance += (Math.abs(smoothedRoundTrip - roundTripNanos) - roundTripVariance) * BETA;
+			smoothedRoundTrip += (roundTripNanos - smoothedRoundTrip) * ALPHA;
+		}
+	}
+
+	/**
+	 * Computes the time to wait for an acknowledgement before resending
+	 * @param attempt the number of times that the datagram has already been resent, each resend doubles the timeout
+	 * @return a timeout in nanoseconds
+	 */
+	synchronized long retransmissionTimeout(int attempt) {
+		long timeout = hasSample
+				? (long) (smoothedRoundTrip + Math.max(MINIMUM_VARIANCE_TERM, 4.0 * roundTripVariance))
+				: INITIAL_TIMEOUT;
+
+		timeout = Math.max(timeout, MINIMUM_TIMEOUT);
+
+		// Avoid overflowing the shift
+		return Math.min(timeout << Math.min(attempt, 16), MAXIMUM_TIMEOUT);
+	}
+
+	/** The smoothed round trip time, or zero if no sample has been taken */
+	synchronized Duration roundTripTime() {
+		return Duration.ofNanos((long) smoothedRoundTrip);
+	}
+
+	/** The mean deviation of the round trip time, or zero if no sample has been taken */
+	synchronized Duration roundTripTimeVariance() {
+		return Duration.ofNanos((long) roundTripVariance);
+	}
+}
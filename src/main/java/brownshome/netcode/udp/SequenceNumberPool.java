@@ -1,68 +1,299 @@
 package brownshome.netcode.udp;
 
-import java.util.Arrays;
-import java.util.concurrent.CompletableFuture;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
- * A pool of sequence number awaiting acknowledgement. This class allocates new sequence numbers and signals futures
- * when they are acknowledged.
+ * A pool of sequence number awaiting acknowledgement. This class allocates new sequence numbers and signals their
+ * datagrams when they are acknowledged.
+ *
+ * The pool tracks a fixed window of the newest {@link #WINDOW} sequence numbers in a ring, and sequence numbers are
+ * compared with serial number arithmetic so that they may wrap around. A sequence number that leaves the window without
+ * being acknowledged is treated as lost.
+ *
+ * The pool also performs fast loss detection. A sent sequence number is considered lost once a sequence number
+ * {@link #LOSS_THRESHOLD} or more newer than it has been acknowledged, and its resend timer is run straight away rather
+ * than waiting for it to expire.
+ *
+ * Resend timers are run after the pool's lock has been released, as resending a datagram queues its messages and may
+ * construct a new datagram, which allocates from this pool.
  */
 final class SequenceNumberPool {
+	/**
+	 * A datagram that is awaiting acknowledgement. The pool holds a datagram from when its sequence number is allocated
+	 * until it is acknowledged, leaves the window or the pool is closed, and then releases it.
+	 */
+	interface Datagram {
+		/**
+		 * Called the first time that the datagram is acknowledged, this may be after its resend timer has run. The resend
+		 * timer is not cancelled by the pool, the datagram should cancel it.
+		 */
+		void onAcknowledged();
+
+		/** Called if the pool is closed before the datagram is acknowledged */
+		void onClosed(Throwable reason);
+
+		/** Called once the pool no longer refers to the datagram, after any of the other calls */
+		void release();
+	}
+
+	/**
+	 * Receives the size and round trip time of each sequence number as it is acknowledged.
+	 */
+	interface AcknowledgementListener {
+		/**
+		 * Called when a sent sequence number is acknowledged for the first time
+		 * @param bytes the size of the datagram that was acknowledged
+		 * @param roundTripNanos the time between the send and the acknowledgement, less the time that the receiver held
+		 *                       the acknowledgement back. This is -1 if the datagram was sent more than once, or if it
+		 *                       was not the newest datagram in its acknowledgement field, as the sample is ambiguous.
+		 * @param time the {@link System#nanoTime()} of the acknowledgement
+		 */
+		void onAcknowledged(int bytes, long roundTripNanos, long time);
+	}
+
+	/**
+	 * The number of sequence numbers that are tracked, this is a power of two. Acknowledgements for sequence numbers that
+	 * are this far behind the newest one are ignored, by both the sender and the receiver.
+	 */
+	static final int WINDOW = 2048;
+
+	private static final int MASK = WINDOW - 1;
+
+	/** How far behind the newest acknowledgement a sequence number must be before it is considered lost */
+	static final int LOSS_THRESHOLD = 3;
+
+	private static final long NOT_SENT = -1L;
+	private static final long RESENT = -2L;
+
+	private final AcknowledgementListener listener;
+
 	private int nextSequenceNumber = 0;
-	@SuppressWarnings("unchecked")
-	private CompletableFuture<Void>[] futures = (CompletableFuture<Void>[]) new CompletableFuture<?>[64];
+
+	private boolean hasAcknowledgement = false;
+	private int newestAcknowledgement;
+
+	/** The oldest sequence number that has not been checked for loss */
+	private int lossScanStart = 0;
+
+	/** The datagrams that have not been acknowledged, an acknowledged datagram is removed */
+	private final Datagram[] datagrams = new Datagram[WINDOW];
+	private final long[] sendTimes = new long[WINDOW];
+	private final int[] sizes = new int[WINDOW];
+	private final TimerWheel.Timeout[] resendTimers = new TimerWheel.Timeout[WINDOW];
+
+	SequenceNumberPool(AcknowledgementListener listener) {
+		this.listener = listener;
+	}
 
 	/**
-	 * Allocates a new sequence number and stores the future for activation later. The future may be null.
-	 * @param receiveFuture a future to complete when the packet is acknowledged
+	 * Allocates a new sequence number and stores the datagram for activation later. The datagram may be null.
+	 * @param datagram the datagram to signal when the sequence number is acknowledged
 	 * @return a new sequence number. Sequence numbers will increase monotonically, but will wrap around eventually
 	 */
-	synchronized int allocateSequenceNumber(CompletableFuture<Void> receiveFuture) {
-		int freeIndex = index(nextSequenceNumber);
-		var oldFuture = futures[freeIndex];
-
-		if (oldFuture != null && !oldFuture.isDone()) {
-			// Expand the array
-			int oldFreeIndex = freeIndex;
-			futures = Arrays.copyOf(futures, futures.length);
-			freeIndex = index(nextSequenceNumber);
-
-			if (oldFreeIndex == freeIndex) {
-				// Move the tail to the end of the array
-				System.arraycopy(futures, oldFreeIndex, futures, freeIndex, futures.length - freeIndex);
-				Arrays.fill(futures, oldFreeIndex, futures.length / 2, null);
-			} else {
-				// Move the head up the array
-				System.arraycopy(futures, 0, futures, futures.length / 2, oldFreeIndex);
-				Arrays.fill(futures, 0, freeIndex, null);
+	int allocateSequenceNumber(Datagram datagram) {
+		TimerWheel.Timeout lost = null;
+		Datagram left;
+		int sequenceNumber;
+
+		synchronized (this) {
+			int freeIndex = index(nextSequenceNumber);
+			left = datagrams[freeIndex];
+
+			if (left != null) {
+				// The sequence number leaving the window was never acknowledged, it can be treated as lost
+				lost = resendTimers[freeIndex];
+			}
+
+			datagrams[freeIndex] = datagram;
+			sendTimes[freeIndex] = NOT_SENT;
+			sizes[freeIndex] = 0;
+			resendTimers[freeIndex] = null;
+			sequenceNumber = nextSequenceNumber++;
+		}
+
+		if (lost != null) {
+			lost.runNow();
+		}
+
+		if (left != null) {
+			left.release();
+		}
+
+		return sequenceNumber;
+	}
+
+	/**
+	 * Records that a sequence number has been written to the channel. If the sequence number is sent more than once its
+	 * round trip time will no longer be sampled, as it is not possible to tell which send the acknowledgement was for.
+	 *
+	 * @param sequenceNumber the sequence number that was sent
+	 * @param bytes the size of the datagram
+	 * @param time the {@link System#nanoTime()} of the send
+	 * @param resendTimer the timer that will resend the datagram if it is not acknowledged, or null if the datagram
+	 *                    will not be resent. This is run early if the datagram is detected as lost.
+	 */
+	void onSent(int sequenceNumber, int bytes, long time, TimerWheel.Timeout resendTimer) {
+		synchronized (this) {
+			if (sequenceNumber - oldestSequenceNumber() >= 0) {
+				int index = index(sequenceNumber);
+				sendTimes[index] = sendTimes[index] == NOT_SENT ? time : RESENT;
+				sizes[index] = bytes;
+				resendTimers[index] = resendTimer;
+				return;
 			}
 		}
 
-		futures[freeIndex] = receiveFuture;
-		return nextSequenceNumber++;
+		// The window has moved past this sequence number before it was sent, so it can never be acknowledged
+		if (resendTimer != null) {
+			resendTimer.runNow();
+		}
+	}
+
+	/**
+	 * Informs the pool of the acknowledgements in a received acknowledgement field. The round trip time is only sampled
+	 * from the newest sequence number in the field, as that is the only one whose acknowledgement delay is known.
+	 */
+	void onAcknowledgementsReceived(Acknowledgement acknowledgement) {
+		List<TimerWheel.Timeout> lost;
+
+		synchronized (this) {
+			int oldestAcknowledgement = expand(acknowledgement.oldestAcknowledgement(), nextSequenceNumber - 1);
+			int newestAcknowledgement = acknowledgement.newestAcknowledgement(oldestAcknowledgement);
+			long delay = TimeUnit.MICROSECONDS.toNanos(acknowledgement.delayMicros());
+			long[] words = acknowledgement.acknowledgements();
+
+			for (int word = 0; word < words.length; word++) {
+				int base = oldestAcknowledgement + word * Long.SIZE;
+
+				for (long bits = words[word]; bits != 0L; bits &= bits - 1) {
+					int sequenceNumber = base + Long.numberOfTrailingZeros(bits);
+					onAcknowledgementReceived(sequenceNumber, sequenceNumber == newestAcknowledgement ? delay : -1L);
+				}
+			}
+
+			lost = detectLosses();
+		}
+
+		if (lost != null) {
+			for (var resendTimer : lost) {
+				resendTimer.runNow();
+			}
+		}
 	}
 
 	/**
 	 * Informs the pool that a packed has been acknowledged
 	 * @param sequenceNumber the sequence number to acknowledge
+	 * @param acknowledgementDelay how long the receiver held the acknowledgement back, or -1 if this is not known
 	 */
-	synchronized void onAcknowledgementReceived(int sequenceNumber) {
-		if (sequenceNumber < oldestSequenceNumber()) {
+	private void onAcknowledgementReceived(int sequenceNumber, long acknowledgementDelay) {
+		if (sequenceNumber - oldestSequenceNumber() < 0 || sequenceNumber - nextSequenceNumber >= 0) {
 			return;
 		}
 
 		int index = index(sequenceNumber);
-		var future = futures[index];
-		if (future != null) {
-			future.complete(null);
+		var datagram = datagrams[index];
+		if (datagram != null) {
+			long now = System.nanoTime();
+			long sendTime = sendTimes[index];
+
+			datagrams[index] = null;
+			resendTimers[index] = null;
+			datagram.onAcknowledged();
+			datagram.release();
+
+			if (sendTime != NOT_SENT) {
+				listener.onAcknowledged(sizes[index], roundTripSample(now - sendTime, sendTime, acknowledgementDelay), now);
+			}
+		}
+
+		if (!hasAcknowledgement || sequenceNumber - newestAcknowledgement > 0) {
+			hasAcknowledgement = true;
+			newestAcknowledgement = sequenceNumber;
 		}
 	}
 
+	/**
+	 * Takes the acknowledgement delay out of a round trip time, a delay that is longer than the round trip itself is
+	 * ignored
+	 */
+	private static long roundTripSample(long roundTrip, long sendTime, long acknowledgementDelay) {
+		if (sendTime == RESENT || acknowledgementDelay < 0) {
+			return -1L;
+		}
+
+		return acknowledgementDelay < roundTrip ? roundTrip - acknowledgementDelay : roundTrip;
+	}
+
+	/**
+	 * Releases every datagram that is awaiting acknowledgement, telling each that the pool has closed. The datagrams
+	 * should cancel their resend timers.
+	 * @param reason the exception to close the datagrams with
+	 */
+	synchronized void close(Throwable reason) {
+		for (int i = 0; i < datagrams.length; i++) {
+			resendTimers[i] = null;
+
+			if (datagrams[i] != null) {
+				datagrams[i].onClosed(reason);
+				datagrams[i].release();
+				datagrams[i] = null;
+			}
+		}
+	}
+
+	/**
+	 * Takes the resend timer of every sequence number that is far enough behind the newest acknowledgement
+	 * @return the timers to run once the lock is released, or null if nothing was lost
+	 */
+	private List<TimerWheel.Timeout> detectLosses() {
+		if (!hasAcknowledgement) {
+			return null;
+		}
+
+		if (lossScanStart - oldestSequenceNumber() < 0) {
+			lossScanStart = oldestSequenceNumber();
+		}
+
+		int lossScanEnd = newestAcknowledgement - LOSS_THRESHOLD;
+		List<TimerWheel.Timeout> lost = null;
+
+		for (; lossScanStart - lossScanEnd <= 0; lossScanStart++) {
+			int index = index(lossScanStart);
+			var resendTimer = resendTimers[index];
+
+			if (resendTimer != null) {
+				resendTimers[index] = null;
+
+				if (lost == null) {
+					lost = new ArrayList<>();
+				}
+
+				lost.add(resendTimer);
+			}
+		}
+
+		return lost;
+	}
+
+	/**
+	 * Recovers a sequence number from its low 16 bits. Only the newest {@link #WINDOW} sequence numbers are in use, so
+	 * sequence numbers are sent as their low 16 bits, and the sequence number that is closest to a recent one is taken.
+	 * @param truncated the low 16 bits of the sequence number
+	 * @param reference a recent sequence number
+	 */
+	static int expand(int truncated, int reference) {
+		int difference = (short) (truncated - reference);
+		return reference + difference;
+	}
+
 	private int index(int sequenceNumber) {
-		return (int) (Integer.toUnsignedLong(sequenceNumber) % futures.length);
+		return sequenceNumber & MASK;
 	}
 
 	private int oldestSequenceNumber() {
-		return nextSequenceNumber - futures.length;
+		return nextSequenceNumber - WINDOW;
 	}
 }
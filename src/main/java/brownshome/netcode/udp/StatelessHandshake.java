@@ -0,0 +1,126 @@
+package brownshome.netcode.udp;
+
+import java.net.InetSocketAddress;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Issues and checks the cookies that a client must echo before a connection is created for it. A cookie is a keyed hash
+ * of the client's address, its salt and the current time bucket, so the server can check a cookie without having stored
+ * anything when it was issued. A client that spoofs its address never sees the cookie, and so cannot make the server
+ * allocate a connection.
+ *
+ * The hash is SipHash-2-4, keyed with a random secret that is created for each manager. Cookies are accepted for the time
+ * bucket that they were issued in and the one after it.
+ */
+final class StatelessHandshake {
+	private static final SecureRandom KEY_PROVIDER = new SecureRandom();
+
+	/** The length of a time bucket, a cookie is valid for between one and two of these */
+	static final long BUCKET_LENGTH = TimeUnit.SECONDS.toNanos(10);
+
+	private final long key0 = KEY_PROVIDER.nextLong();
+	private final long key1 = KEY_PROVIDER.nextLong();
+	private final long startTime = System.nanoTime();
+
+	/**
+	 * Creates the cookie for a client
+	 * @param address the address that the connect packet was received from
+	 * @param clientSalt the salt in the connect packet
+	 */
+	long cookie(InetSocketAddress address, long clientSalt) {
+		return cookie(address, clientSalt, System.nanoTime());
+	}
+
+	/**
+	 * Creates the cookie for a client
+	 * @param now the current {@link System#nanoTime()}
+	 */
+	long cookie(InetSocketAddress address, long clientSalt, long now) {
+		return hash(address, clientSalt, bucket(now));
+	}
+
+	/**
+	 * Checks a cookie that has been echoed by a client
+	 * @return true if the cookie was issued to this address and salt recently
+	 */
+	boolean isValid(InetSocketAddress address, long clientSalt, long cookie) {
+		return isValid(address, clientSalt, cookie, System.nanoTime());
+	}
+
+	/**
+	 * Checks a cookie that has been echoed by a client
+	 * @param now the current {@link System#nanoTime()}
+	 */
+	boolean isValid(InetSocketAddress address, long clientSalt, long cookie, long now) {
+		long bucket = bucket(now);
+
+		return cookie == hash(address, clientSalt, bucket) || cookie == hash(address, clientSalt, bucket - 1);
+	}
+
+	private long bucket(long now) {
+		return (now - startTime) / BUCKET_LENGTH;
+	}
+
+	private long hash(InetSocketAddress address, long clientSalt, long bucket) {
+		byte[] ip = address.getAddress().getAddress();
+
+		long high = 0, low = 0;
+		for (int i = 0; i < ip.length; i++) {
+			if (i < 8) {
+				high = high << 8 | ip[i] & 0xff;
+			} else {
+				low = low << 8 | ip[i] & 0xff;
+			}
+		}
+
+		var hash = new SipHash(key0, key1);
+		hash.update(high);
+		hash.update(low);
+		hash.update((long) ip.length << 32 | address.getPort());
+		hash.update(clientSalt);
+		hash.update(bucket);
+		return hash.digest();
+	}
+
+	/** SipHash-2-4 over a sequence of 64-bit words */
+	private static final class SipHash {
+		private long v0, v1, v2, v3;
+		private int words = 0;
+
+		SipHash(long key0, long key1) {
+			v0 = key0 ^ 0x736f6d6570736575L;
+			v1 = key1 ^ 0x646f72616e646f6dL;
+			v2 = key0 ^ 0x6c7967656e657261L;
+			v3 = key1 ^ 0x7465646279746573L;
+		}
+
+		void update(long word) {
+			v3 ^= word;
+			round();
+			round();
+			v0 ^= word;
+			words++;
+		}
+
+		long digest() {
+			// The final block holds the message length in bytes in its top byte
+			update((long) words * Long.BYTES << 56);
+
+			v2 ^= 0xff;
+			round();
+			round();
+			round();
+			round();
+
+			return v0 ^ v1 ^ v2 ^ v3;
+		}
+
+		private void round() {
+			v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+			v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+			v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+			v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+		}
+	}
+}
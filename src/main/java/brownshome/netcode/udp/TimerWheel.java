@@ -0,0 +1,229 @@
+package brownshome.netcode.udp;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A hashed timer wheel. Timeouts are hashed into a ring of buckets by the tick that they expire on, and each call to
+ * {@link #tick()} expires the buckets that have come due. Scheduling and cancelling a timeout are O(1), and the cost of a
+ * tick is proportional to the number of timeouts in the expiring bucket.
+ *
+ * Timeouts may be scheduled and cancelled from any thread. {@link #tick()} must only be called from one thread at a time,
+ * and all tasks are run on that thread, so tasks should be short. Tasks are run no earlier than their delay, but may
+ * be run up to one tick late.
+ */
+final class TimerWheel {
+	private static final System.Logger LOGGER = System.getLogger(TimerWheel.class.getPackageName());
+
+	/** A task that has been scheduled on the wheel */
+	static final class Timeout {
+		private static final AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+		private static final int PENDING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		private final Runnable task;
+		private final long deadline;
+
+		private volatile int state = PENDING;
+
+		// This is only accessed by the ticking thread
+		private long remainingRounds;
+
+		/** The next timeout in the stack of new timeouts, and then in the bucket, this is set before the timeout is shared */
+		private Timeout next;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels this timeout. The task will not be run if this call succeeds.
+		 * @return true if the task was cancelled, false if it has already run or been cancelled
+		 */
+		boolean cancel() {
+			return STATE.compareAndSet(this, PENDING, CANCELLED);
+		}
+
+		/**
+		 * Runs the task on this thread, without waiting for the timeout to expire
+		 * @return true if the task was run, false if it has already run or been cancelled
+		 */
+		boolean runNow() {
+			if (!expire()) {
+				return false;
+			}
+
+			task.run();
+			return true;
+		}
+
+		private boolean expire() {
+			return STATE.compareAndSet(this, PENDING, EXPIRED);
+		}
+
+		private boolean isDone() {
+			return state != PENDING;
+		}
+	}
+
+	private final long tickNanos;
+	private final long startTime;
+	private final Timeout[] buckets;
+	private final int mask;
+
+	/**
+	 * Timeouts that have been scheduled, but not yet added to a bucket. This is a stack linked through the timeouts
+	 * themselves, so that scheduling a timeout allocates nothing else.
+	 */
+	private final AtomicReference<Timeout> newTimeouts = new AtomicReference<>();
+
+	/** The next tick to be expired, this is only accessed by the ticking thread */
+	private long currentTick = 0;
+
+	/**
+	 * Creates a wheel
+	 * @param tickNanos the length of a tick in nanoseconds
+	 * @param size the number of buckets in the wheel, this must be a power of two
+	 */
+	TimerWheel(long tickNanos, int size) {
+		if (Integer.bitCount(size) != 1) {
+			throw new IllegalArgumentException("The size must be a power of two: " + size);
+		}
+
+		this.tickNanos = tickNanos;
+		this.startTime = System.nanoTime();
+		this.buckets = new Timeout[size];
+		this.mask = size - 1;
+	}
+
+	/** The length of a tick in nanoseconds */
+	long tickNanos() {
+		return tickNanos;
+	}
+
+	/**
+	 * Schedules a task to run after a delay
+	 * @param task the task to run
+	 * @param delayNanos the minimum delay in nanoseconds
+	 * @return a timeout that can be used to cancel the task
+	 */
+	Timeout schedule(Runnable task, long delayNanos) {
+		long elapsed = System.nanoTime() - startTime + Math.max(delayNanos, 0L);
+
+		// Round up, so that the task is never run early
+		var timeout = new Timeout(task, Math.floorDiv(elapsed + tickNanos - 1, tickNanos));
+
+		Timeout head;
+		do {
+			head = newTimeouts.get();
+			timeout.next = head;
+		} while (!newTimeouts.compareAndSet(head, timeout));
+
+		return timeout;
+	}
+
+	/**
+	 * Expires all ticks that have elapsed since the last call. This should be called once per tick.
+	 */
+	void tick() {
+		long lastElapsedTick = Math.floorDiv(System.nanoTime() - startTime, tickNanos);
+
+		while (currentTick <= lastElapsedTick) {
+			transferNewTimeouts();
+			expireBucket((int) (currentTick & mask));
+			currentTick++;
+		}
+	}
+
+	private void transferNewTimeouts() {
+		Timeout next;
+		for (var timeout = newTimeouts.getAndSet(null); timeout != null; timeout = next) {
+			next = timeout.next;
+			timeout.next = null;
+
+			if (timeout.isDone()) {
+				continue;
+			}
+
+			long ticks = Math.max(timeout.deadline, currentTick);
+			timeout.remainingRounds = (ticks - currentTick) / buckets.length;
+
+			int bucket = (int) (ticks & mask);
+			timeout.next = buckets[bucket];
+			buckets[bucket] = timeout;
+		}
+	}
+
+	private void expireBucket(int bucket) {
+		Timeout previous = null;
+		Timeout timeout = buckets[bucket];
+
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			boolean remove;
+
+			if (timeout.isDone()) {
+				remove = true;
+			} else if (timeout.remainingRounds <= 0) {
+				remove = true;
+				run(timeout);
+			} else {
+				remove = false;
+				timeout.remainingRounds--;
+			}
+
+			if (remove) {
+				if (previous == null) {
+					buckets[bucket] = next;
+				} else {
+					previous.next = next;
+				}
+
+				timeout.next = null;
+			} else {
+				previous = timeout;
+			}
+
+			timeout = next;
+		}
+	}
+
+	/**
+	 * Counts the timeouts that have been scheduled and have not yet run or been cancelled. This must only be called from
+	 * the ticking thread, for example from a task on the wheel.
+	 */
+	int pendingTimeouts() {
+		int count = 0;
+
+		for (var timeout = newTimeouts.get(); timeout != null; timeout = timeout.next) {
+			if (!timeout.isDone()) {
+				count++;
+			}
+		}
+
+		for (var bucket : buckets) {
+			for (var timeout = bucket; timeout != null; timeout = timeout.next) {
+				if (!timeout.isDone()) {
+					count++;
+				}
+			}
+		}
+
+		return count;
+	}
+
+	private static void run(Timeout timeout) {
+		if (!timeout.expire()) {
+			return;
+		}
+
+		try {
+			timeout.task.run();
+		} catch (Throwable t) {
+			LOGGER.log(System.Logger.Level.ERROR, "Error running timer task", t);
+		}
+	}
+}
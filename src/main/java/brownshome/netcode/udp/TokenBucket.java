@@ -0,0 +1,58 @@
+package brownshome.netcode.udp;
+
+/**
+ * A token bucket rate limiter. Tokens are added at a fixed rate up to the size of the bucket, and each datagram that is
+ * let through takes one token.
+ */
+final class TokenBucket {
+	private final double tokensPerNano;
+	private final double size;
+
+	private double tokens;
+	private long lastRefill;
+
+	/**
+	 * Creates a full bucket
+	 * @param limit the rate and burst size of the bucket
+	 * @param now the current {@link System#nanoTime()}
+	 */
+	TokenBucket(UDPConnectionManager.RateLimit limit, long now) {
+		this.tokensPerNano = limit.datagramsPerSecond() / 1e9;
+		this.size = limit.burst();
+		this.tokens = size;
+		this.lastRefill = now;
+	}
+
+	/**
+	 * Takes a token if there is one
+	 * @param now the current {@link System#nanoTime()}
+	 * @return true if a token was taken, false if the datagram should be dropped
+	 */
+	synchronized boolean tryAcquire(long now) {
+		refill(now);
+
+		if (tokens < 1.0) {
+			return false;
+		}
+
+		tokens -= 1.0;
+		return true;
+	}
+
+	/**
+	 * Whether the bucket has refilled completely, in which case it can be discarded and replaced by a new bucket
+	 */
+	synchronized boolean isFull(long now) {
+		refill(now);
+
+		return tokens >= size;
+	}
+
+	private void refill(long now) {
+		// Threads may read the clock in a different order to the order that they take the lock
+		if (now - lastRefill > 0) {
+			tokens = Math.min(size, tokens + (now - lastRefill) * tokensPerNano);
+			lastRefill = now;
+		}
+	}
+}
@@ -2,22 +2,21 @@ package brownshome.netcode.udp;
 
 import brownshome.netcode.*;
 import brownshome.netcode.NetworkConnection;
-import brownshome.netcode.util.PacketQueue;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 import java.time.Duration;
-import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.*;
 
 public final class UDPConnection extends NetworkConnection<InetSocketAddress, UDPConnectionManager> {
-	private static final System.Logger LOGGER = System.getLogger(UDPConnection.class.getModule().getName());
+	private static final System.Logger LOGGER = System.getLogger(UDPConnection.class.getPackageName());
 
 	private static final SecureRandom SALT_PROVIDER = new SecureRandom();
-	private static final Protocol UDP_PROTOCOL = new Protocol(List.of(new UdpSchema()));
+	static final Protocol UDP_PROTOCOL = new Protocol(List.of(new UdpSchema()));
 
 	/**
 	 * The salt used by this connection object
@@ -30,9 +29,35 @@ public final class UDPConnection extends NetworkConnection<InetSocketAddress, UD
 	private final CompletableFuture<Long> remoteSalt;
 	private boolean startedConnection = false;
 
+	/** The cookie that the server asked to be echoed, or zero if no retry packet has been received */
+	private long cookie = 0;
+
+	/**
+	 * The size of the datagrams that are sent before larger sizes have been discovered. This is the minimum IPv6 MTU less
+	 * the IPv6 and UDP headers, so it will get through any IPv6 path.
+	 */
+	private static final int MINIMUM_DATAGRAM_SIZE = 1232;
+
+	/** The largest message that can be sent, messages larger than the payload size are split into fragments */
+	private static final int MAXIMUM_MESSAGE_SIZE = 1024 * 1024;
+	/** The total size of the fragments of partially received messages that a connection may hold at once */
+	private static final long MAXIMUM_REASSEMBLY_SIZE = 16L * 1024 * 1024;
+	private static final long REASSEMBLY_TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+
+	/** Connect packets are resent at this interval until the server responds */
+	private static final long CONNECT_RESEND_INTERVAL = TimeUnit.MILLISECONDS.toNanos(250);
+	private static final int CONNECT_ATTEMPTS = 20;
+
 	private final class UDPPacketDispatcher extends PacketDispatcher {
-		UDPPacketDispatcher() {
-			super(Duration.ofMillis(200), 1024, remoteSalt);
+		UDPPacketDispatcher(int initialDatagramSize, int maximumDatagramSize) {
+			super(initialDatagramSize,
+					maximumDatagramSize,
+					MAXIMUM_MESSAGE_SIZE,
+					remoteSalt,
+					connectionManager().createCongestionController(address(), initialDatagramSize),
+					connectionManager().timer(),
+					connectionManager().sendBuffers(),
+					connectionManager().acknowledgementPolicy());
 		}
 
 		@Override
@@ -47,10 +72,29 @@ public final class UDPConnection extends NetworkConnection<InetSocketAddress, UD
 
 		@Override
 		void sendBuffer(ByteBuffer buffer) throws IOException {
-			connectionManager().channel().send(buffer, address());
+			transport.send(buffer, address());
+		}
+
+		@Override
+		void onStandaloneAcknowledgement() {
+			connectionManager().onStandaloneAcknowledgement();
 		}
 	}
 	private final PacketDispatcher packetDispatcher;
+	private final FragmentReassembler reassembler;
+
+	/** The thread that handles the UDP layer of this connection, and the transport that it sends from */
+	private final Executor shard;
+	private final DatagramTransport transport;
+	private final UdpPacketExecutor executor;
+
+	/** Limits the datagrams received on this connection, this is checked by the manager before they are decoded */
+	private final TokenBucket receiveLimit;
+
+	/** Set once the connection has been released, after which no more keepalives are scheduled */
+	private volatile boolean released = false;
+	/** The next keepalive check, this is cancelled when the connection is released */
+	private volatile TimerWheel.Timeout keepAlive;
 
 	public UDPConnection(UDPConnectionManager manager, InetSocketAddress other) {
 		super(manager,
@@ -61,34 +105,233 @@ public final class UDPConnection extends NetworkConnection<InetSocketAddress, UD
 		localSalt = SALT_PROVIDER.nextLong();
 		remoteSalt = new CompletableFuture<>();
 
-		packetDispatcher = new UDPPacketDispatcher();
+		int shard = manager.shard(other);
+		this.shard = manager.shardExecutor(shard);
+		transport = manager.transport(shard);
+		executor = new UdpPacketExecutor(this, this.shard,
+				() -> fail("Too many messages were received ahead of a message that did not arrive"));
+		receiveLimit = new TokenBucket(manager.connectionRateLimit(), System.nanoTime());
+
+		int maximumDatagramSize = Math.min(manager.maximumDatagramSize(other), manager.maximumDatagramSize());
+		packetDispatcher = new UDPPacketDispatcher(Math.min(MINIMUM_DATAGRAM_SIZE, maximumDatagramSize), maximumDatagramSize);
+		reassembler = new FragmentReassembler(MAXIMUM_MESSAGE_SIZE, MAXIMUM_REASSEMBLY_SIZE, manager.reassemblyBudget(),
+				REASSEMBLY_TIMEOUT, manager.timer());
+
+		long keepaliveInterval = manager.keepaliveInterval().toNanos();
+		remoteSalt.thenRun(() -> scheduleKeepAlive(keepaliveInterval));
+	}
+
+	@Override
+	public SendResult queueForSending(Packet packet) {
+		return packetDispatcher.queuePacket(packet);
 	}
 
 	@Override
-	public SendResult queueForSending(Packet packet, int id, BitSet bitSet) {
-		return packetDispatcher.queuePacket(Instant.now(), packet, id, bitSet);
+	public void queueUnreliable(Packet packet) {
+		packetDispatcher.queueUnreliable(packet);
+	}
+
+	/**
+	 * Gets the current estimate of the capacity of this connection
+	 * @return the estimate made by this connection's congestion controller
+	 */
+	public CongestionController.Estimate congestionEstimate() {
+		return packetDispatcher.congestionEstimate();
+	}
+
+	/**
+	 * Gets the size of the largest datagram that has been confirmed to reach the other end of this connection. This starts
+	 * at a size that should get through any path, and grows as larger datagrams are probed.
+	 * @return the size of the datagram, including the UDP-layer headers
+	 */
+	public int datagramSize() {
+		return packetDispatcher.datagramSize();
+	}
+
+	/**
+	 * Gets the smoothed round trip time of this connection. This is measured from the send and acknowledgement times of
+	 * each datagram.
+	 * @return the round trip time, or zero if no datagram has been acknowledged yet
+	 */
+	public Duration roundTripTime() {
+		return packetDispatcher.roundTripTime();
+	}
+
+	/**
+	 * Gets the mean deviation of the round trip time of this connection
+	 * @return the variance, or zero if no datagram has been acknowledged yet
+	 */
+	public Duration roundTripTimeVariance() {
+		return packetDispatcher.roundTripTimeVariance();
+	}
+
+	/**
+	 * Gets the number of datagrams that this connection has sent with only an acknowledgement in them. Acknowledgements
+	 * are usually sent with outgoing messages, so this counts the acknowledgements that had nothing to ride on.
+	 */
+	public long standaloneAcknowledgements() {
+		return packetDispatcher.standaloneAcknowledgements();
 	}
 
 	@Override
 	public synchronized CompletableFuture<Void> connect(List<Schema> schemas) {
 		if (!startedConnection) {
 			startedConnection = true;
-			packetDispatcher.sendConnectPacket(localSalt);
+			resendConnectPacket(1);
 		}
 
 		return super.connect(schemas);
 	}
 
+	/**
+	 * Sends a connect packet, and schedules it to be sent again if the server does not respond
+	 * @param attempt the number of connect packets that have been sent, including this one
+	 */
+	private synchronized void resendConnectPacket(int attempt) {
+		if (remoteSalt.isDone()) {
+			return;
+		}
+
+		if (attempt > CONNECT_ATTEMPTS) {
+			remoteSalt.completeExceptionally(new NetworkException("The server did not respond", this));
+			return;
+		}
+
+		packetDispatcher.sendConnectPacket(localSalt, cookie);
+		connectionManager().timer().schedule(() -> resendConnectPacket(attempt + 1), CONNECT_RESEND_INTERVAL);
+	}
+
+	/**
+	 * Sends a keepalive if this connection has been quiet, and checks again after the interval, until the connection is
+	 * released
+	 */
+	private void keepAlive(long interval) {
+		if (released) {
+			return;
+		}
+
+		packetDispatcher.keepAlive(interval);
+		scheduleKeepAlive(interval);
+	}
+
+	private void scheduleKeepAlive(long interval) {
+		var timeout = connectionManager().timer().schedule(() -> keepAlive(interval), interval);
+		keepAlive = timeout;
+
+		// If the connection was released while this was being scheduled, the release may not have seen this timeout
+		if (released) {
+			timeout.cancel();
+		}
+	}
+
+	/**
+	 * Releases the state of this connection once it has been evicted from its manager for being idle. Messages that are
+	 * waiting to be sent or acknowledged are failed, and messages that are waiting to be handled are dropped. The other
+	 * end is told that the connection has been dropped.
+	 */
+	void evict() {
+		release(new NetworkException("The connection was evicted after being idle", this), true);
+	}
+
+	/**
+	 * Releases this connection after the other end has dropped it
+	 */
+	void receiveClose() {
+		if (connectionManager().dropConnection(this)) {
+			release(new NetworkException("The connection was closed by the other end", this), false);
+		}
+	}
+
+	/**
+	 * Drops this connection after the other end broke the protocol. Its datagrams have already been acknowledged, so the
+	 * messages in them can't be recovered, and the messages that are ordered after them would wait forever. The
+	 * connection is removed from its manager, and a new connection is made if the address is used again.
+	 */
+	private void fail(String message) {
+		LOGGER.log(System.Logger.Level.INFO, () -> String.format("Dropping connection to '%s': %s", address(), message));
+
+		if (connectionManager().dropConnection(this)) {
+			release(new NetworkException(message, this), true);
+		}
+	}
+
+	/**
+	 * Releases the state of this connection
+	 * @param notify whether to send a close packet to the other end, this is only sent if the connection was established
+	 */
+	private void release(NetworkException reason, boolean notify) {
+		released = true;
+
+		var timeout = keepAlive;
+		if (timeout != null) {
+			timeout.cancel();
+		}
+
+		closeConnection(true);
+
+		if (notify && remoteSalt.isDone() && !remoteSalt.isCompletedExceptionally()) {
+			// This is sent once and not acknowledged, if it is lost the other end evicts the connection once it is idle
+			packetDispatcher.sendUdpPacket(new UdpClosePacket(UDPPackets.hashClosePacket(remoteSalt.join())));
+		}
+
+		remoteSalt.completeExceptionally(reason);
+		packetDispatcher.close(reason);
+		reassembler.clear();
+		shard.execute(executor::clear);
+	}
+
 	/* *********** CALLBACKS FROM PACKET RECEIVE *********** */
 
+	TokenBucket receiveLimit() {
+		return receiveLimit;
+	}
+
 	long localSalt() {
 		return localSalt;
 	}
 
+	/**
+	 * Completes once the UDP-layer handshake has finished and both salts are known, this is before the protocol has been
+	 * negotiated
+	 */
+	CompletableFuture<Void> handshake() {
+		return remoteSalt.thenRun(() -> { });
+	}
+
+	/**
+	 * Handles a received datagram. The packet may refer to the contents of the buffer, so the buffer is returned to the
+	 * pool once the packet has been handled, and all of the messages in it have been decoded.
+	 *
+	 * The UDP layer is handled on this connection's shard, so the acknowledgement and ordering state of a connection is
+	 * only touched by a single thread.
+	 */
 	void receive(ByteBuffer buffer) {
-		Packet incoming = UDP_PROTOCOL.createPacket(buffer);
+		var receiveBuffers = connectionManager().receiveBuffers();
+		Packet incoming;
+
+		try {
+			incoming = UDP_PROTOCOL.createPacket(NetworkUtils.readVarInt(buffer), buffer);
+		} catch (IllegalArgumentException | BufferUnderflowException e) {
+			connectionManager().onDatagramDropped(UDPConnectionManager.DropReason.MALFORMED);
+			receiveBuffers.release(buffer);
+			LOGGER.log(System.Logger.Level.INFO, () -> String.format("Malformed datagram received from '%s'", address()), e);
+			return;
+		}
+
 		LOGGER.log(System.Logger.Level.DEBUG, () -> String.format("Remote address '%s' sent '%s'", address(), incoming));
-		connectionManager().executorService(incoming.getClass()).execute(() -> UDP_PROTOCOL.handle(this, incoming));
+
+		try {
+			shard.execute(() -> {
+				try {
+					UDP_PROTOCOL.handle(this, incoming);
+				} finally {
+					receiveBuffers.release(buffer);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			receiveBuffers.release(buffer);
+			throw e;
+		}
 	}
 
 	synchronized void receiveConnectPacket(long clientSalt) {
@@ -96,8 +339,8 @@ public final class UDPConnection extends NetworkConnection<InetSocketAddress, UD
 			if (startedConnection || remoteSalt.isCompletedExceptionally()) {
 				packetDispatcher.sendUdpPacket(new ConnectionDeniedPacket(
 						UDPPackets.hashConnectionDeniedPacket(clientSalt)));
-			} else if (!remoteSalt.complete(clientSalt) && remoteSalt.get() == clientSalt) {
-				// Resend the challenge packet
+			} else if (remoteSalt.complete(clientSalt) || remoteSalt.get() == clientSalt) {
+				// Send the challenge packet, or resend it if the first one was lost
 				packetDispatcher.sendUdpPacket(new ChallengePacket(
 						UDPPackets.hashChallengePacket(clientSalt, localSalt),
 						localSalt));
@@ -113,28 +356,135 @@ public final class UDPConnection extends NetworkConnection<InetSocketAddress, UD
 		}
 	}
 
+	/**
+	 * Called when the server asks for its cookie to be echoed, the connect packet is sent again with the cookie
+	 */
+	synchronized void receiveRetry(long cookie) {
+		if (startedConnection && !remoteSalt.isDone() && this.cookie != cookie) {
+			this.cookie = cookie;
+			packetDispatcher.sendConnectPacket(localSalt, cookie);
+		}
+	}
+
 	synchronized void receiveChallengeSalt(long serverSalt) {
 		if (startedConnection) {
 			remoteSalt.complete(serverSalt);
 		}
 	}
 
+	void receiveProbe(int probeSize) {
+		packetDispatcher.acknowledgeProbe(probeSize);
+	}
+
+	void receiveProbeAcknowledgement(int probeSize) {
+		packetDispatcher.onProbeAcknowledged(probeSize);
+	}
+
 	boolean onSequenceNumberReceived(int sequenceNumber, boolean queueAcknowledgement) {
 		return packetDispatcher.onSequenceNumberReceived(sequenceNumber, queueAcknowledgement);
 	}
 
 	/**
-	 * Called when an acknowledgement is received, this should be used to communicate completed transmission.
+	 * Called when an acknowledgement field is received, this should be used to communicate completed transmission.
 	 **/
-	void receiveAcknowledgement(int sequenceNumber) {
-		packetDispatcher.onAcknowledgementReceived(sequenceNumber);
+	void receiveAcknowledgements(Acknowledgement acknowledgement) {
+		packetDispatcher.onAcknowledgementsReceived(acknowledgement);
+	}
+
+	/**
+	 * Recovers the full sequence number of a received datagram from the low 16 bits that are sent
+	 */
+	int expandSequenceNumber(short sequenceNumber) {
+		return packetDispatcher.expandSequenceNumber(sequenceNumber);
+	}
+
+	private final MessageNumberWindow receivedMessages = new MessageNumberWindow();
+	public void receiveMessages(ByteBuffer messages) {
+		try {
+			decodeMessages(messages);
+		} catch (IllegalArgumentException | BufferUnderflowException e) {
+			connectionManager().onDatagramDropped(UDPConnectionManager.DropReason.MALFORMED);
+			fail("A malformed message was received");
+		}
 	}
 
-	private final UdpPacketExecutor executor = new UdpPacketExecutor(this);
-	public void receiveMessages(int sequenceNumber, int olderRequiredPackets, ByteBuffer messages) {
+	private void decodeMessages(ByteBuffer messages) {
+		int messageNumber = 0;
+
 		while (messages.hasRemaining()) {
-			var packet = protocol().createPacket(messages);
-			executor.execute(sequenceNumber, olderRequiredPackets, packet);
+			var packet = protocol().createPacket(NetworkUtils.readVarInt(messages), messages);
+
+			// Reliable messages are followed by the difference from the previous message number, and every message is
+			// followed by its ordering
+			if (packet.reliable()) {
+				messageNumber += NetworkUtils.readSignedVarInt(messages);
+			}
+
+			var order = MessageOrder.read(packet, messages);
+
+			if (packet.reliable() && !receivedMessages.onMessageReceived(messageNumber)) {
+				LOGGER.log(System.Logger.Level.DEBUG, () -> String.format("Rejected duplicate message '%s' from '%s'", packet, address()));
+				continue;
+			}
+
+			executor.execute(packet, order);
+		}
+	}
+
+	/**
+	 * Passes a fragment to the reassembler, and acknowledges its datagram once it has been stored. A fragment that the
+	 * reassembler has no space for is not acknowledged, so that it is sent again.
+	 */
+	void receiveFragment(int sequenceNumber, int messageNumber, int messageSize, int fragmentSize, int fragment, ByteBuffer data) {
+		if (receivedMessages.hasReceived(messageNumber)) {
+			// A late copy of a fragment from a message that has already been reassembled
+			onSequenceNumberReceived(sequenceNumber, true);
+			return;
 		}
+
+		var result = reassembler.onFragmentReceived(messageNumber, messageSize, fragmentSize, fragment, data);
+
+		var outcome = result.outcome();
+
+		if (outcome == FragmentReassembler.Outcome.REFUSED) {
+			connectionManager().onDatagramDropped(UDPConnectionManager.DropReason.REASSEMBLY_FULL);
+			return;
+		}
+
+		if (outcome == FragmentReassembler.Outcome.MALFORMED) {
+			connectionManager().onDatagramDropped(UDPConnectionManager.DropReason.MALFORMED);
+			fail("A malformed fragment was received");
+			return;
+		}
+
+		if (outcome == FragmentReassembler.Outcome.DISCARDED) {
+			// The stored fragments of the message were acknowledged, so they will not be sent again
+			fail("A fragmented message timed out before all of its fragments arrived");
+			return;
+		}
+
+		if (!onSequenceNumberReceived(sequenceNumber, true)) {
+			LOGGER.log(System.Logger.Level.DEBUG, () -> String.format("Received duplicate fragment %d from '%s'", sequenceNumber, address()));
+		}
+
+		var message = result.message();
+
+		if (message == null || !receivedMessages.onMessageReceived(messageNumber)) {
+			return;
+		}
+
+		Packet packet;
+		MessageOrder order;
+
+		try {
+			packet = protocol().createPacket(NetworkUtils.readVarInt(message), message);
+			order = MessageOrder.read(packet, message);
+		} catch (IllegalArgumentException | BufferUnderflowException e) {
+			connectionManager().onDatagramDropped(UDPConnectionManager.DropReason.MALFORMED);
+			fail("A malformed message was received");
+			return;
+		}
+
+		executor.execute(packet, order);
 	}
 }
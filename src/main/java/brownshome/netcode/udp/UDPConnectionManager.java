@@ -2,84 +2,614 @@ package brownshome.netcode.udp;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.nio.channels.ClosedByInterruptException;
-import java.nio.channels.DatagramChannel;
+import java.nio.channels.ClosedChannelException;
 import java.text.MessageFormat;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import brownshome.netcode.*;
 
-/** Represents a UDP connection that is bound to a single port on the machine. */
+/**
+ * Represents a UDP connection that is bound to a single port on the machine.
+ *
+ * The manager runs on the loops of a {@link UDPEventLoopGroup}, which may be shared with other managers. Each connection
+ * is owned by a shard, one per loop and chosen by its remote address, and the UDP-layer packets of a connection are only
+ * handled on its shard's loop. Where the platform supports {@code SO_REUSEPORT} each loop also reads from a socket of its
+ * own, bound to the same port, otherwise a single socket passes datagrams to the shards.
+ */
 public class UDPConnectionManager extends ConnectionManager<InetSocketAddress, UDPConnection> {
-	private static final ThreadGroup UDP_SEND_THREAD_GROUP = new ThreadGroup("UDP-Send");
-
 	public static final int BUFFER_SIZE = 16 * 1024 * 1024;
 
-	private final DatagramChannel channel;
+	private static final long TIMER_TICK = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final int TIMER_BUCKETS = 512;
+
+	/** The default for the largest datagram that will be sent, this is the Ethernet MTU less the IPv4 and UDP headers */
+	public static final int DEFAULT_MAXIMUM_DATAGRAM_SIZE = 1472;
+
+	/** The default for how long a connection may go without receiving a datagram before it is evicted */
+	public static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofMinutes(1);
+
+	/** How often every connection is checked for being idle, the checks are spread evenly over this interval */
+	private static final long IDLE_SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+	/** The default for the number of connections that a manager will hold */
+	public static final int DEFAULT_MAXIMUM_CONNECTIONS = 16384;
+
+	/** The default for the number of clients that may wait for a connection once the maximum has been reached */
+	public static final int DEFAULT_MAXIMUM_PENDING_CONNECTIONS = 1024;
+
+	/** How long a client waits in the pending queue, this is how long a client resends its connect packets for */
+	private static final long PENDING_CONNECTION_TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+
+	/** The default limit for the datagrams received on each connection */
+	public static final RateLimit DEFAULT_CONNECTION_RATE_LIMIT = new RateLimit(10_000.0, 1_000);
+
+	/** The default limit for the datagrams received from each IP address that has no connection */
+	public static final RateLimit DEFAULT_ADDRESS_RATE_LIMIT = new RateLimit(10.0, 20);
+
+	/** The default for when received datagrams are acknowledged if there is no outgoing data to carry the acknowledgement */
+	public static final AcknowledgementPolicy DEFAULT_ACKNOWLEDGEMENT_POLICY = new AcknowledgementPolicy(2, Duration.ofMillis(5));
+
+	/** The total size of the fragments of partially received messages that all of the connections may hold at once */
+	private static final long MAXIMUM_REASSEMBLY_SIZE = 256L * 1024 * 1024;
+
+	/**
+	 * Once this many addresses without a connection are being limited, further addresses share a limit with the other
+	 * addresses in their network
+	 */
+	private static final int MAXIMUM_LIMITED_ADDRESSES = 65536;
+
+	/** The number of shared limits, addresses are spread over these by their /24 or /48 prefix */
+	private static final int OVERFLOW_LIMITS = 4096;
+
+	/**
+	 * A limit on the rate that datagrams are received. Datagrams over the limit are dropped before they are decoded.
+	 * @param datagramsPerSecond the sustained rate
+	 * @param burst the number of datagrams that may arrive at once after a quiet period
+	 */
+	public record RateLimit(double datagramsPerSecond, int burst) {
+		public RateLimit {
+			if (!(datagramsPerSecond > 0.0) || burst < 1) {
+				throw new IllegalArgumentException("Invalid rate limit %f/s with a burst of %d".formatted(datagramsPerSecond, burst));
+			}
+		}
+	}
+
+	/**
+	 * When a connection sends a datagram that only acknowledges the datagrams it has received. Acknowledgements are sent
+	 * with every outgoing datagram, so this only applies when there is nothing else to send.
+	 * @param datagrams the number of received datagrams that are acknowledged at once
+	 * @param delay the longest time that a received datagram waits for an acknowledgement
+	 */
+	public record AcknowledgementPolicy(int datagrams, Duration delay) {
+		public AcknowledgementPolicy {
+			if (datagrams < 1 || delay.isNegative()) {
+				throw new IllegalArgumentException("Invalid acknowledgement policy of %d datagrams or %s".formatted(datagrams, delay));
+			}
+		}
+	}
+
+	/** The reasons that a received datagram may be dropped without being handled */
+	public enum DropReason {
+		/** The connection or address sent datagrams faster than its rate limit */
+		RATE_LIMITED,
+		/** The datagram came from an address without a connection, and was not a connect packet */
+		NO_CONNECTION,
+		/** The client had a valid cookie, but the manager was holding its maximum number of connections */
+		CONNECTION_LIMIT,
+		/** The datagram could not be decoded */
+		MALFORMED,
+		/** The datagram was a fragment that the reassembly buffers had no space for, it is not acknowledged so it is resent */
+		REASSEMBLY_FULL
+	}
+
+	private static final int POOLED_BUFFERS = 256;
+
+	/** The largest number of datagrams that are read from a socket at once */
+	private static final int RECEIVE_BATCH_SIZE = 32;
+
+	/**
+	 * The largest number of datagrams that are read from a transport each time its event loop finds it readable. The loop
+	 * runs its tasks and timers before reading more, so a flood of datagrams can't starve them.
+	 */
+	private static final int READS_PER_WAKEUP = 64;
+
+	private final List<DatagramTransport> transports;
 	private final InetSocketAddress address;
 
-	private final Thread listenerThread;
+	/** Listener threads for transports that cannot be registered with an event loop */
+	private final List<Thread> listenerThreads;
+
+	/** The loops that this manager runs on, each loop is the shard for the connections that it owns */
+	private final UDPEventLoopGroup group;
+	private final boolean ownsGroup;
+
+	/** The timer for pacing and resends of all connections on this manager, this is ticked by one of the loops. */
+	private final TimerWheel timer = new TimerWheel(TIMER_TICK, TIMER_BUCKETS);
+	private final EventLoop timerLoop;
+
+	/**
+	 * The largest datagram that will be sent or received. Larger incoming datagrams are truncated, and will be rejected by
+	 * the hash check.
+	 */
+	private final int maximumDatagramSize;
+
+	/** The buffers that outgoing datagrams are assembled in, these are shared by all connections on this manager. */
+	private final BufferPool sendBuffers;
+
+	/** The buffers that incoming datagrams are received into, each is released once its datagram has been handled. */
+	private final BufferPool receiveBuffers;
+
+	/** Limits the memory used to reassemble fragmented messages across all connections */
+	private final FragmentReassembler.Budget reassemblyBudget = new FragmentReassembler.Budget(MAXIMUM_REASSEMBLY_SIZE);
+
+	/** Checks that new clients can receive datagrams at their address before a connection is created for them */
+	private final StatelessHandshake handshake = new StatelessHandshake();
+
+	/** Rate limits for addresses that do not have a connection, keyed by IP address so that changing port does not help */
+	private final Map<InetAddress, TokenBucket> addressLimits = new ConcurrentHashMap<>();
+
+	/** Rate limits shared by the addresses that arrive once the address limits are full, keyed by the hash of their prefix */
+	private final Map<Integer, TokenBucket> overflowLimits = new ConcurrentHashMap<>();
+
+	/** Clients with a valid cookie that are waiting for a free connection, in the order that they arrived, with their expiry */
+	private final LinkedHashMap<InetSocketAddress, Long> pendingConnections = new LinkedHashMap<>();
 
-	/** This is a single threaded executor that should be used to dispatch items to the channel. */
-	private final ScheduledThreadPoolExecutor submissionThread = new ScheduledThreadPoolExecutor(1, task -> {
-		var t = new Thread(UDP_SEND_THREAD_GROUP, task, "UDP-Send-" + address());
-		t.setDaemon(true);
-		return t;
-	});
+	private final LongAdder standaloneAcknowledgements = new LongAdder();
+	private final Map<DropReason, LongAdder> droppedDatagrams = new EnumMap<>(DropReason.class);
+	{
+		for (var reason : DropReason.values()) {
+			droppedDatagrams.put(reason, new LongAdder());
+		}
+	}
 
 	public UDPConnectionManager(List<Schema> schema, int port) throws IOException {
+		this(schema, port, DEFAULT_MAXIMUM_DATAGRAM_SIZE);
+	}
+
+	/**
+	 * Creates a connection manager
+	 * @param schema the schemas that connections will use
+	 * @param port the port to bind to, or zero to pick a free port
+	 * @param maximumDatagramSize the largest datagram that will be sent or received, including the UDP-layer headers but
+	 *                            not the IP and UDP headers. Connections will probe for the largest size up to this
+	 *                            that reaches the other end.
+	 */
+	public UDPConnectionManager(List<Schema> schema, int port, int maximumDatagramSize) throws IOException {
+		this(schema, port, maximumDatagramSize, 1);
+	}
+
+	/**
+	 * Creates a connection manager that handles incoming datagrams on several threads
+	 * @param schema the schemas that connections will use
+	 * @param port the port to bind to, or zero to pick a free port
+	 * @param maximumDatagramSize the largest datagram that will be sent or received, including the UDP-layer headers but
+	 *                            not the IP and UDP headers. Connections will probe for the largest size up to this
+	 *                            that reaches the other end.
+	 * @param shards the number of threads to handle incoming datagrams on, this is usually the number of cores to use
+	 */
+	public UDPConnectionManager(List<Schema> schema, int port, int maximumDatagramSize, int shards) throws IOException {
+		this(schema, openTransports(port, shards), shards, maximumDatagramSize);
+	}
+
+	/**
+	 * Creates a connection manager that runs on a shared event loop group, this does not create any threads
+	 * @param schema the schemas that connections will use
+	 * @param group the loops to run on, this is not closed by the manager
+	 * @param port the port to bind to, or zero to pick a free port
+	 * @param maximumDatagramSize the largest datagram that will be sent or received, including the UDP-layer headers but
+	 *                            not the IP and UDP headers. Connections will probe for the largest size up to this
+	 *                            that reaches the other end.
+	 */
+	public UDPConnectionManager(List<Schema> schema, UDPEventLoopGroup group, int port, int maximumDatagramSize) throws IOException {
+		this(schema, openTransports(port, group.size()), group, false, maximumDatagramSize);
+	}
+
+	/**
+	 * Creates a connection manager that uses the given transport. This can be used to replace the default NIO transport
+	 * with one that moves several datagrams per system call.
+	 * @param schema the schemas that connections will use
+	 * @param transport a bound transport, this is owned and closed by the manager
+	 * @param maximumDatagramSize the largest datagram that will be sent or received, including the UDP-layer headers but
+	 *                            not the IP and UDP headers.
+	 */
+	public UDPConnectionManager(List<Schema> schema, DatagramTransport transport, int maximumDatagramSize) throws IOException {
+		this(schema, List.of(transport), 1, maximumDatagramSize);
+	}
+
+	/**
+	 * Creates a connection manager that uses the given transports. The default NIO transports are read by the event loops,
+	 * any other transport has a listener thread of its own.
+	 * @param schema the schemas that connections will use
+	 * @param transports transports bound to the same port, these are owned and closed by the manager
+	 * @param shards the number of threads to handle incoming datagrams on
+	 * @param maximumDatagramSize the largest datagram that will be sent or received, including the UDP-layer headers but
+	 *                            not the IP and UDP headers.
+	 */
+	public UDPConnectionManager(List<Schema> schema, List<? extends DatagramTransport> transports, int shards, int maximumDatagramSize) throws IOException {
+		this(schema, transports, new UDPEventLoopGroup(shards), true, maximumDatagramSize);
+	}
+
+	private UDPConnectionManager(List<Schema> schema, List<? extends DatagramTransport> transports,
+	                             UDPEventLoopGroup group, boolean ownsGroup, int maximumDatagramSize) throws IOException {
 		super(schema);
 
-		channel = DatagramChannel.open(StandardProtocolFamily.INET6);
+		if (transports.isEmpty()) {
+			throw new IllegalArgumentException("At least one transport is needed");
+		}
+
+		this.transports = List.copyOf(transports);
+		this.group = group;
+		this.ownsGroup = ownsGroup;
+		this.maximumDatagramSize = maximumDatagramSize;
+		sendBuffers = new BufferPool(maximumDatagramSize, POOLED_BUFFERS);
+		receiveBuffers = new BufferPool(maximumDatagramSize, POOLED_BUFFERS);
 
-		// Increase the buffer sizes to allow larger bursts of traffic.
-		channel.setOption(StandardSocketOptions.SO_SNDBUF, BUFFER_SIZE);
-		channel.setOption(StandardSocketOptions.SO_RCVBUF, BUFFER_SIZE);
+		address = new InetSocketAddress("::1", this.transports.get(0).localPort());
 
-		if (port == 0) {
-			channel.bind(null);
-			port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
-		} else {
-			channel.bind(new InetSocketAddress(port));
+		var threads = new ArrayList<Thread>();
+		for (int i = 0; i < this.transports.size(); i++) {
+			var transport = this.transports.get(i);
+
+			if (transport instanceof NioDatagramTransport nio) {
+				nio.register(group.loop(i % group.size()), () -> receiveAvailable(nio));
+			} else {
+				threads.add(new Thread(() -> listen(transport), String.format("Port %d UDP listener %d", address.getPort(), i)));
+			}
 		}
+		listenerThreads = List.copyOf(threads);
 
-		address = new InetSocketAddress("::1", port);
+		listenerThreads.forEach(Thread::start);
 
-		listenerThread = new Thread(() -> {
-			ByteBuffer buffer = ByteBuffer.allocate(1024);
+		timerLoop = group.next();
+		timerLoop.addTimer(timer);
+		timer.schedule(this::sweepIdleConnections, IDLE_SWEEP_INTERVAL / connectionShards());
+		timer.schedule(this::sweepAddressLimits, IDLE_SWEEP_INTERVAL);
+	}
 
-			while (true) {
-				InetSocketAddress remoteAddress;
+	/**
+	 * Evicts the idle connections in one shard of the connection table, and schedules the next sweep
+	 */
+	private void sweepIdleConnections() {
+		int evicted = evictIdleConnections(idleTimeout().toNanos());
 
-				try {
-					remoteAddress = (InetSocketAddress) channel.receive(buffer);
-				} catch (ClosedByInterruptException cbie) {
-					//Exit
-					LOGGER.log(System.Logger.Level.INFO, "Port {0} UDP listener shutting down", address.getPort());
-					return;
-				} catch (IOException e) {
-					LOGGER.log(System.Logger.Level.ERROR, "Error waiting on socket", e);
-					return;
-				}
+		if (evicted > 0) {
+			LOGGER.log(System.Logger.Level.DEBUG, "Evicted {0} idle connections from ''{1}''", evicted, address());
+		}
 
-				if (remoteAddress != null) {
-					buffer.flip();
-					getOrCreateConnection(remoteAddress).receive(buffer);
-					buffer.clear();
-				}
+		timer.schedule(this::sweepIdleConnections, IDLE_SWEEP_INTERVAL / connectionShards());
+	}
+
+	/**
+	 * Discards the address rate limits that have refilled, as a new limit would behave in the same way
+	 */
+	private void sweepAddressLimits() {
+		long now = System.nanoTime();
+		addressLimits.values().removeIf(limit -> limit.isFull(now));
+		overflowLimits.values().removeIf(limit -> limit.isFull(now));
+
+		timer.schedule(this::sweepAddressLimits, IDLE_SWEEP_INTERVAL);
+	}
+
+	/**
+	 * Opens a transport for each shard if the platform supports SO_REUSEPORT, otherwise a single transport is opened
+	 */
+	private static List<DatagramTransport> openTransports(int port, int shards) throws IOException {
+		var first = new NioDatagramTransport(port, BUFFER_SIZE, shards > 1);
+		var transports = new ArrayList<DatagramTransport>(List.of(first));
+
+		if (shards > 1 && !first.reusesPort()) {
+			LOGGER.log(System.Logger.Level.INFO, "SO_REUSEPORT is not supported, port {0} will use a single listener", first.localPort());
+			return transports;
+		}
+
+		try {
+			for (int i = 1; i < shards; i++) {
+				transports.add(new NioDatagramTransport(first.localPort(), BUFFER_SIZE, true));
+			}
+		} catch (IOException e) {
+			for (var transport : transports) {
+				transport.close();
+			}
+
+			throw e;
+		}
+
+		return transports;
+	}
+
+	/**
+	 * Reads the datagrams that are waiting on a transport, up to the limit for each wakeup. This is called by its event
+	 * loop, which calls it again on its next pass if datagrams are still waiting.
+	 */
+	private void receiveAvailable(NioDatagramTransport transport) {
+		for (int i = 0; i < READS_PER_WAKEUP; i++) {
+			var buffer = receiveBuffers.acquire();
+			InetSocketAddress sender;
+
+			try {
+				sender = transport.receiveNow(buffer);
+			} catch (IOException e) {
+				receiveBuffers.release(buffer);
+				LOGGER.log(System.Logger.Level.ERROR, "Error reading from socket", e);
+				return;
+			}
+
+			if (sender == null) {
+				receiveBuffers.release(buffer);
+				return;
+			}
+
+			buffer.flip();
+			receive(buffer, sender);
+		}
+	}
+
+	private void listen(DatagramTransport transport) {
+		var buffers = new ByteBuffer[RECEIVE_BATCH_SIZE];
+		var senders = new InetSocketAddress[RECEIVE_BATCH_SIZE];
+
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i] = receiveBuffers.acquire();
+		}
+
+		while (true) {
+			int received;
+
+			try {
+				received = transport.receive(buffers, senders);
+			} catch (ClosedChannelException cce) {
+				//Exit
+				LOGGER.log(System.Logger.Level.INFO, "Port {0} UDP listener shutting down", address.getPort());
+				return;
+			} catch (IOException e) {
+				LOGGER.log(System.Logger.Level.ERROR, "Error waiting on socket", e);
+				return;
+			}
+
+			for (int i = 0; i < received; i++) {
+				var buffer = buffers[i];
+				buffer.flip();
+
+				buffers[i] = receiveBuffers.acquire();
+				receive(buffer, senders[i]);
+			}
+		}
+	}
+
+	/**
+	 * Passes a received datagram to its connection, the connection takes ownership of the buffer and returns it to the
+	 * pool once it has been handled. Datagrams from addresses without a connection are handled by
+	 * {@link #acceptConnection(ByteBuffer, InetSocketAddress)} instead.
+	 */
+	private void receive(ByteBuffer buffer, InetSocketAddress sender) {
+		long now = System.nanoTime();
+		var connection = getConnection(sender);
+
+		if (connection == null) {
+			if (addressLimit(sender, now).tryAcquire(now)) {
+				connection = acceptConnection(buffer, sender);
+			} else {
+				onDatagramDropped(DropReason.RATE_LIMITED);
+			}
+		} else if (!connection.receiveLimit().tryAcquire(now)) {
+			onDatagramDropped(DropReason.RATE_LIMITED);
+			connection = null;
+		}
+
+		if (connection == null) {
+			receiveBuffers.release(buffer);
+			return;
+		}
+
+		connection.receive(buffer);
+	}
+
+	private TokenBucket addressLimit(InetSocketAddress sender, long now) {
+		var limit = addressLimits.get(sender.getAddress());
+
+		if (limit != null) {
+			return limit;
+		}
+
+		// Under a flood of spoofed addresses every address would be new, so cap the memory used by the limits
+		if (addressLimits.size() < MAXIMUM_LIMITED_ADDRESSES) {
+			return addressLimits.computeIfAbsent(sender.getAddress(), unused -> new TokenBucket(addressRateLimit(), now));
+		}
+
+		return overflowLimits.computeIfAbsent(overflowLimit(sender.getAddress()),
+				unused -> new TokenBucket(addressRateLimit(), now));
+	}
+
+	/**
+	 * Picks the shared limit for an address. Addresses in the same network share a limit, so a flood from one network
+	 * only starves the clients in that network, and a flood from random addresses is spread over every limit.
+	 */
+	private static int overflowLimit(InetAddress address) {
+		var bytes = address.getAddress();
+		int hash = Arrays.hashCode(Arrays.copyOf(bytes, bytes.length == 4 ? 3 : 6));
+
+		return Math.floorMod(hash ^ hash >>> 16, OVERFLOW_LIMITS);
+	}
+
+	/**
+	 * Decides whether a client with a valid cookie may have a connection. Once the maximum number of connections has
+	 * been reached clients wait in a queue, and are let in in order as connections are evicted. Clients resend their
+	 * connect packets while waiting, so the queue only holds their addresses.
+	 *
+	 * The connection is created while holding the lock, so that listeners on other threads can't admit clients into the
+	 * same free space.
+	 *
+	 * @return the new connection, or null if the client must wait
+	 */
+	UDPConnection admitConnection(InetSocketAddress address) {
+		long now = System.nanoTime();
+
+		synchronized (pendingConnections) {
+			// Remove the clients that have stopped resending
+			for (var it = pendingConnections.values().iterator(); it.hasNext() && it.next() - now < 0; ) {
+				it.remove();
+			}
+
+			int space = maximumConnections() - liveConnections();
+
+			// The client is let in if there is space for it and every client that has waited longer
+			int ahead = 0;
+			for (var it = pendingConnections.keySet().iterator(); ahead < space && it.hasNext() && !it.next().equals(address); ) {
+				ahead++;
 			}
-		}, String.format("Port %d UDP listener", address.getPort()));
 
-		listenerThread.start();
+			if (ahead < space) {
+				pendingConnections.remove(address);
+				return getOrCreateConnection(address);
+			}
+
+			if (pendingConnections.size() < maximumPendingConnections()) {
+				pendingConnections.putIfAbsent(address, now + PENDING_CONNECTION_TIMEOUT);
+			}
+
+			return null;
+		}
+	}
+
+	/**
+	 * Removes a connection whose peer broke the protocol, datagrams from the address will make a new connection
+	 * @return false if the connection had already been removed
+	 */
+	boolean dropConnection(UDPConnection connection) {
+		return removeConnection(connection);
+	}
+
+	void onDatagramDropped(DropReason reason) {
+		droppedDatagrams.get(reason).increment();
+	}
+
+	/**
+	 * The number of received datagrams that have been dropped without being handled
+	 * @param reason the reason that the datagrams were dropped
+	 */
+	public final long droppedDatagrams(DropReason reason) {
+		return droppedDatagrams.get(reason).sum();
+	}
+
+	void onStandaloneAcknowledgement() {
+		standaloneAcknowledgements.increment();
+	}
+
+	/**
+	 * The number of datagrams sent by all of the connections of this manager with only an acknowledgement in them
+	 */
+	public final long standaloneAcknowledgements() {
+		return standaloneAcknowledgements.sum();
+	}
+
+	/**
+	 * The number of clients with a valid cookie that are waiting for a connection
+	 */
+	public final int pendingConnections() {
+		synchronized (pendingConnections) {
+			return pendingConnections.size();
+		}
+	}
+
+	/**
+	 * Handles a datagram from an address that has no connection, without storing any state. A connect packet without a
+	 * valid cookie is answered with a retry packet containing the cookie, and all other datagrams are dropped. This
+	 * means that a connection is only created for a client that can receive datagrams at the address that it claims.
+	 *
+	 * @return the new connection if the datagram was a connect packet with a valid cookie, or null if it was handled
+	 */
+	private UDPConnection acceptConnection(ByteBuffer buffer, InetSocketAddress sender) {
+		Packet packet;
+
+		try {
+			var data = buffer.duplicate().order(buffer.order());
+			packet = UDPConnection.UDP_PROTOCOL.createPacket(NetworkUtils.readVarInt(data), data);
+		} catch (IllegalArgumentException | BufferUnderflowException e) {
+			onDatagramDropped(DropReason.MALFORMED);
+			return null;
+		}
+
+		if (!(packet instanceof ConnectPacket connect)) {
+			onDatagramDropped(DropReason.NO_CONNECTION);
+			return null;
+		}
+
+		if (handshake.isValid(sender, connect.clientSaltData, connect.cookieData)) {
+			var connection = admitConnection(sender);
+
+			if (connection == null) {
+				onDatagramDropped(DropReason.CONNECTION_LIMIT);
+			}
+
+			return connection;
+		}
+
+		long cookie = handshake.cookie(sender, connect.clientSaltData);
+		var retry = new UdpRetryPacket(UDPPackets.hashRetryPacket(connect.clientSaltData, cookie), cookie);
+
+		var reply = sendBuffers.acquire();
+		try {
+			NetworkUtils.writeVarInt(reply, UDPConnection.UDP_PROTOCOL.computePacketID(retry));
+			retry.write(reply);
+			reply.flip();
+
+			transport(shard(sender)).send(reply, sender);
+		} catch (IOException e) {
+			LOGGER.log(System.Logger.Level.WARNING, "Failed to send a retry packet to '" + sender + "'", e);
+		} finally {
+			sendBuffers.release(reply);
+		}
+
+		return null;
 	}
 
-	ScheduledThreadPoolExecutor submissionThread() {
-		return submissionThread;
+	/**
+	 * The shard that owns the connection to an address
+	 */
+	int shard(InetSocketAddress address) {
+		return Math.floorMod(address.hashCode(), group.size());
+	}
+
+	/**
+	 * The executor that handles the incoming datagrams of a shard. All tasks are run on a single thread.
+	 */
+	Executor shardExecutor(int shard) {
+		return group.loop(shard);
+	}
+
+	/**
+	 * The transport that a shard sends from
+	 */
+	DatagramTransport transport(int shard) {
+		return transports.get(shard % transports.size());
+	}
+
+	TimerWheel timer() {
+		return timer;
+	}
+
+	BufferPool sendBuffers() {
+		return sendBuffers;
+	}
+
+	BufferPool receiveBuffers() {
+		return receiveBuffers;
+	}
+
+	FragmentReassembler.Budget reassemblyBudget() {
+		return reassemblyBudget;
 	}
 
 	public UDPConnectionManager(List<Schema> schema) throws IOException {
@@ -91,36 +621,148 @@ public class UDPConnectionManager extends ConnectionManager<InetSocketAddress, U
 		return new UDPConnection(this, inetSocketAddress);
 	}
 
+	/**
+	 * Creates the congestion controller for a new connection. Override this to use a different congestion control
+	 * algorithm.
+	 * @param address the address of the remote end of the connection
+	 * @param datagramSize the size of the datagrams the connection will send initially
+	 * @return a new controller, this must not be shared between connections
+	 */
+	public CongestionController createCongestionController(InetSocketAddress address, int datagramSize) {
+		return new AimdCongestionController(datagramSize);
+	}
+
+	/**
+	 * The largest datagram that will be sent to or received from any connection
+	 */
+	public final int maximumDatagramSize() {
+		return maximumDatagramSize;
+	}
+
+	/**
+	 * The largest datagram that a new connection will probe for. Override this to use a different size for some
+	 * addresses, sizes larger than {@link #maximumDatagramSize()} are ignored.
+	 * @param address the address of the remote end of the connection
+	 * @return the size of the datagram, including the UDP-layer headers but not the IP and UDP headers
+	 */
+	public int maximumDatagramSize(InetSocketAddress address) {
+		return maximumDatagramSize;
+	}
+
+	/**
+	 * How long a connection may go without receiving a datagram, or being looked up, before it is evicted. Evicted
+	 * connections release all of their state, and a new connection is created if the address is used again. Override
+	 * this to use a different timeout.
+	 */
+	public Duration idleTimeout() {
+		return DEFAULT_IDLE_TIMEOUT;
+	}
+
+	/**
+	 * How long a connection may go without sending a datagram before it sends an empty one, so that the other end does
+	 * not evict it while it is quiet. This is read when a connection is established, and should be well below the other
+	 * end's idle timeout. Override this to use a different interval.
+	 */
+	public Duration keepaliveInterval() {
+		return idleTimeout().dividedBy(4);
+	}
+
+	/**
+	 * The largest number of connections that this manager will hold. New clients wait in a queue once this is reached.
+	 * Override this to use a different limit.
+	 */
+	public int maximumConnections() {
+		return DEFAULT_MAXIMUM_CONNECTIONS;
+	}
+
+	/**
+	 * The largest number of clients that may wait for a connection, further clients are turned away. Override this to
+	 * use a different limit.
+	 */
+	public int maximumPendingConnections() {
+		return DEFAULT_MAXIMUM_PENDING_CONNECTIONS;
+	}
+
+	/**
+	 * The limit on the datagrams received on each connection. This is read when the connection is created. Override
+	 * this to use a different limit.
+	 */
+	public RateLimit connectionRateLimit() {
+		return DEFAULT_CONNECTION_RATE_LIMIT;
+	}
+
+	/**
+	 * The limit on the datagrams received from each IP address that does not have a connection, these are connect
+	 * packets or stray datagrams. Override this to use a different limit.
+	 */
+	public RateLimit addressRateLimit() {
+		return DEFAULT_ADDRESS_RATE_LIMIT;
+	}
+
+	/**
+	 * When connections acknowledge received datagrams if they have nothing else to send. This is read when a connection is
+	 * created. Override this to use a different policy, the delay should be well below the retransmission timeout.
+	 */
+	public AcknowledgementPolicy acknowledgementPolicy() {
+		return DEFAULT_ACKNOWLEDGEMENT_POLICY;
+	}
+
+	@Override
+	protected void onConnectionEvicted(UDPConnection connection) {
+		connection.evict();
+	}
+
 	@Override
 	public void close() throws InterruptedException {
 		super.close();
 
-		listenerThread.interrupt();
+		stopListener();
 
-		LOGGER.log(System.Logger.Level.INFO, "Shutting down submission thread for ''{0}''", address());
-		submissionThread.shutdown();
-		submissionThread.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		for (var thread : listenerThreads) {
+			thread.join();
+		}
 
-		listenerThread.join();
+		if (ownsGroup) {
+			group.close();
+		}
 	}
 
 	@Override
 	public CompletableFuture<Void> closeAsync() {
 		return super.closeAsync().whenComplete((unused, throwable) -> {
-			listenerThread.interrupt();
-			LOGGER.log(System.Logger.Level.INFO, "Shutting down submission thread for ''{0}''", address());
-			submissionThread.shutdown();
+			stopListener();
 		}).thenRunAsync(() -> {
 			try {
-				submissionThread.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+				for (var thread : listenerThreads) {
+					thread.join();
+				}
+
+				if (ownsGroup) {
+					group.close();
+				}
 			} catch (InterruptedException e) {
 				throw new IllegalStateException(e);
 			}
 		});
 	}
 
-	DatagramChannel channel() {
-		return channel;
+	/**
+	 * Stops the timer and closes the transports, which stops the listener threads and deregisters the transports from
+	 * their loops
+	 */
+	private void stopListener() {
+		LOGGER.log(System.Logger.Level.INFO, "Closing the transports for ''{0}''", address());
+
+		timerLoop.removeTimer(timer);
+		listenerThreads.forEach(Thread::interrupt);
+
+		for (var transport : transports) {
+			try {
+				transport.close();
+			} catch (IOException e) {
+				LOGGER.log(System.Logger.Level.WARNING, "Error closing the transport for '" + address() + "'", e);
+			}
+		}
 	}
 
 	@Override
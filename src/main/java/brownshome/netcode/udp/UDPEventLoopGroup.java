@@ -0,0 +1,79 @@
+package brownshome.netcode.udp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of event loop threads that can be shared by any number of {@link UDPConnectionManager}s. Each loop waits on
+ * a selector, and handles the receiving, timers and per-connection work of the managers assigned to it, so the number of
+ * threads does not grow with the number of ports that are open.
+ *
+ * The group is not closed by the managers that use it, it should be closed once they have all been closed.
+ */
+public final class UDPEventLoopGroup implements AutoCloseable {
+	private static final AtomicInteger GROUP_NUMBER = new AtomicInteger(0);
+
+	private final List<EventLoop> loops;
+	private final AtomicInteger nextLoop = new AtomicInteger(0);
+
+	/**
+	 * Creates a group with one loop per available processor
+	 */
+	public UDPEventLoopGroup() throws IOException {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a group
+	 * @param threads the number of event loops, each has a thread of its own
+	 */
+	public UDPEventLoopGroup(int threads) throws IOException {
+		if (threads < 1) {
+			throw new IllegalArgumentException("At least one thread is needed: " + threads);
+		}
+
+		int group = GROUP_NUMBER.getAndIncrement();
+		var loops = new ArrayList<EventLoop>(threads);
+
+		try {
+			for (int i = 0; i < threads; i++) {
+				loops.add(new EventLoop(String.format("UDP event loop %d-%d", group, i)));
+			}
+		} catch (IOException e) {
+			loops.forEach(EventLoop::close);
+			throw e;
+		}
+
+		this.loops = List.copyOf(loops);
+	}
+
+	/** The number of loops in this group */
+	public int size() {
+		return loops.size();
+	}
+
+	EventLoop loop(int index) {
+		return loops.get(index);
+	}
+
+	/**
+	 * Picks a loop, the loops are picked in turn so that work is spread over them
+	 */
+	EventLoop next() {
+		return loops.get(Math.floorMod(nextLoop.getAndIncrement(), loops.size()));
+	}
+
+	/**
+	 * Stops all of the loops and waits for their threads to exit
+	 */
+	@Override
+	public void close() throws InterruptedException {
+		loops.forEach(EventLoop::close);
+
+		for (var loop : loops) {
+			loop.awaitTermination();
+		}
+	}
+}
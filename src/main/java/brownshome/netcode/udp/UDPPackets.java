@@ -4,6 +4,7 @@ import java.nio.ByteBuffer;
 import java.util.zip.CRC32;
 
 import brownshome.netcode.Connection;
+import brownshome.netcode.NetworkUtils;
 import brownshome.netcode.annotation.ConnectionParam;
 import brownshome.netcode.annotation.DefinePacket;
 import brownshome.netcode.annotation.converter.Converter;
@@ -13,12 +14,19 @@ import brownshome.netcode.annotation.converter.UseConverter;
  * This class contains packets that are sent directly over the UDP connection. They should not be sent by clients
  */
 final class UDPPackets {
-	private static final System.Logger LOGGER = System.getLogger(UDPPackets.class.getModule().getName());
+	private static final System.Logger LOGGER = System.getLogger(UDPPackets.class.getPackageName());
+
+	/**
+	 * The size of a probe packet without its padding, this is the packet ID, the hash and the probe size. UDP-layer packet
+	 * IDs always fit in a single byte.
+	 */
+	static final int PROBE_HEADER_SIZE = NetworkUtils.BYTE_SIZE + NetworkUtils.INT_SIZE * 2;
 
 	private UDPPackets() { }
 
 	/** This is a special converter that reads the remaining data from the packet into a buffer, it must only be used for
-	 * raw data access, and only for the UDP base packets. */
+	 * raw data access, and only for the UDP base packets. The data is not copied, the buffer that is read is a view of the
+	 * received datagram, and is only valid until the packet has been handled. */
 	static class TrailingByteBufferConverter implements Converter<ByteBuffer> {
 		@Override
 		public void write(ByteBuffer buffer, ByteBuffer object) {
@@ -27,9 +35,9 @@ final class UDPPackets {
 
 		@Override
 		public ByteBuffer read(ByteBuffer buffer) {
-			byte[] array = new byte[buffer.remaining()];
-			buffer.get(array);
-			return ByteBuffer.wrap(array);
+			var data = buffer.slice().order(buffer.order());
+			buffer.position(buffer.limit());
+			return data;
 		}
 
 		@Override
@@ -39,11 +47,16 @@ final class UDPPackets {
 	}
 
 	/**
-	 * This method represents the connect-packet on the UDP layer that is sent before the connection is set up.
+	 * This method represents the connect-packet on the UDP layer that is sent before the connection is set up. The first
+	 * connect packet has no cookie, and is answered by a udpRetry packet without creating a connection. The connection
+	 * is only created once the cookie is echoed back in a second connect packet, this check is made by the connection
+	 * manager, so this is only called once the connection exists.
+	 *
+	 * @param cookie the cookie from the server's udpRetry packet, or zero if none has been received
 	 */
 	// Client to Server
 	@DefinePacket
-	public static void connect(@ConnectionParam Connection<?, ?> connection, long clientSalt, @UseConverter(Padding.class) Void unused) {
+	public static void connect(@ConnectionParam Connection<?, ?> connection, long clientSalt, long cookie, @UseConverter(Padding.class) Void unused) {
 		UDPConnection udpConnection;
 
 		try {
@@ -103,6 +116,17 @@ final class UDPPackets {
 		}
 	}
 
+	/**
+	 * Creates a hash for a retry packet, the client salt is the salt from the connect packet that is being answered.
+	 */
+	public static int hashRetryPacket(long clientSalt, long cookie) {
+		CRC32 crc = new CRC32();
+		update(crc, clientSalt);
+		update(crc, cookie);
+
+		return (int) crc.getValue();
+	}
+
 	public static int hashConnectionDeniedPacket(long clientSalt) {
 		CRC32 crc = new CRC32();
 		update(crc, clientSalt);
@@ -126,20 +150,102 @@ final class UDPPackets {
 	 * The buffer will be consumer in this process
 	 */
 	public static int hashDataPacket(long remoteSalt, Acknowledgement acknowledgement,
-	                                 int sequenceNumber, int olderRequiredPackets, ByteBuffer messages) {
+	                                 short sequenceNumber, ByteBuffer messages) {
 		CRC32 crc = new CRC32();
 
 		update(crc, remoteSalt);
-		update(crc, acknowledgement.oldestAcknowledgement());
-		update(crc, acknowledgement.acknowledgement());
+		update(crc, acknowledgement);
 		update(crc, sequenceNumber);
-		update(crc, olderRequiredPackets);
 
 		crc.update(messages);
 
 		return (int) crc.getValue();
 	}
 
+	/**
+	 * Creates a hash for an outgoing data packet, reusing a CRC. The position of the messages is left where it was.
+	 */
+	static int hashDataPacket(CRC32 crc, long remoteSalt, MutableAcknowledgement acknowledgement,
+	                          short sequenceNumber, ByteBuffer messages) {
+		crc.reset();
+
+		update(crc, remoteSalt);
+		update(crc, acknowledgement);
+		update(crc, sequenceNumber);
+
+		update(crc, messages);
+
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Creates a hash for a fragment packet, the remote salt is the client salt, and the localSalt is the server salt.
+	 *
+	 * The buffer will be consumer in this process
+	 */
+	public static int hashFragmentPacket(long remoteSalt, Acknowledgement acknowledgement,
+	                                     short sequenceNumber,
+	                                     int messageNumber, int messageSize, int fragmentSize, int fragment,
+	                                     ByteBuffer data) {
+		CRC32 crc = new CRC32();
+
+		update(crc, remoteSalt);
+		update(crc, acknowledgement);
+		update(crc, sequenceNumber);
+		update(crc, messageNumber);
+		update(crc, messageSize);
+		update(crc, fragmentSize);
+		update(crc, fragment);
+
+		crc.update(data);
+
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Creates a hash for an outgoing fragment packet, reusing a CRC. The position of the data is left where it was.
+	 */
+	static int hashFragmentPacket(CRC32 crc, long remoteSalt, MutableAcknowledgement acknowledgement,
+	                              short sequenceNumber,
+	                              int messageNumber, int messageSize, int fragmentSize, int fragment,
+	                              ByteBuffer data) {
+		crc.reset();
+
+		update(crc, remoteSalt);
+		update(crc, acknowledgement);
+		update(crc, sequenceNumber);
+		update(crc, messageNumber);
+		update(crc, messageSize);
+		update(crc, fragmentSize);
+		update(crc, fragment);
+
+		update(crc, data);
+
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Creates a hash for a close packet, the remote salt is the salt of the receiver.
+	 */
+	public static int hashClosePacket(long remoteSalt) {
+		CRC32 crc = new CRC32();
+		update(crc, remoteSalt);
+		update(crc, remoteSalt);
+
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Creates a hash for a probe packet or probe acknowledgement, the remote salt is the salt of the receiver.
+	 */
+	public static int hashProbePacket(long remoteSalt, int probeSize) {
+		CRC32 crc = new CRC32();
+		update(crc, remoteSalt);
+		update(crc, probeSize);
+
+		return (int) crc.getValue();
+	}
+
 	private static void update(CRC32 crc, long val) {
 		crc.update((int) (val));
 		crc.update((int) (val << 8));
@@ -152,6 +258,37 @@ final class UDPPackets {
 		crc.update((int) (val << 56));
 	}
 
+	private static void update(CRC32 crc, Acknowledgement acknowledgement) {
+		update(crc, acknowledgement.oldestAcknowledgement(), acknowledgement.acknowledgements(), acknowledgement.sentWords(),
+				acknowledgement.delayMicros());
+	}
+
+	private static void update(CRC32 crc, MutableAcknowledgement acknowledgement) {
+		update(crc, acknowledgement.oldestAcknowledgement, acknowledgement.acknowledgements, acknowledgement.sentWords(),
+				acknowledgement.delayMicros);
+	}
+
+	private static void update(CRC32 crc, int oldestAcknowledgement, long[] acknowledgements, int words, int delayMicros) {
+		// Only the parts of the field that are sent are hashed, as the receiver does not see the rest
+		update(crc, words == 0 ? 0 : (short) oldestAcknowledgement);
+		update(crc, words);
+
+		for (int i = 0; i < words; i++) {
+			update(crc, acknowledgements[i]);
+		}
+
+		if (words != 0) {
+			update(crc, delayMicros);
+		}
+	}
+
+	/** Hashes the remaining bytes of a buffer, without moving its position */
+	private static void update(CRC32 crc, ByteBuffer data) {
+		int position = data.position();
+		crc.update(data);
+		data.position(position);
+	}
+
 	private static void update(CRC32 crc, int val) {
 		crc.update(val);
 		crc.update(val << 8);
@@ -159,20 +296,58 @@ final class UDPPackets {
 		crc.update(val << 24);
 	}
 
+	/**
+	 * The size of the header of a data packet, this is a {@link UdpDataPacket} and its ID, without the messages
+	 */
+	static int dataHeaderSize(int packetId, MutableAcknowledgement acknowledgement) {
+		return NetworkUtils.calculateVarIntSize(packetId) + NetworkUtils.INT_SIZE + acknowledgement.size() + NetworkUtils.SHORT_SIZE;
+	}
+
+	/**
+	 * Writes the header of a data packet. This is encoded in the same way as a {@link UdpDataPacket} and its ID, so that
+	 * the header can be written in front of messages that are already in the datagram without constructing the packet.
+	 */
+	static void writeDataHeader(ByteBuffer buffer, int packetId, int hash, MutableAcknowledgement acknowledgement,
+	                            short sequenceNumber) {
+		NetworkUtils.writeVarInt(buffer, packetId);
+		buffer.putInt(hash);
+		acknowledgement.write(buffer);
+		buffer.putShort(sequenceNumber);
+	}
+
+	/**
+	 * The size of the header of a fragment packet, this is a {@link UdpFragmentPacket} and its ID, without the data
+	 */
+	static int fragmentHeaderSize(int packetId, MutableAcknowledgement acknowledgement) {
+		return dataHeaderSize(packetId, acknowledgement) + NetworkUtils.INT_SIZE * 4;
+	}
+
+	/**
+	 * Writes the header of a fragment packet, in the same way as {@link #writeDataHeader}
+	 */
+	static void writeFragmentHeader(ByteBuffer buffer, int packetId, int hash, MutableAcknowledgement acknowledgement,
+	                                short sequenceNumber,
+	                                int messageNumber, int messageSize, int fragmentSize, int fragment) {
+		writeDataHeader(buffer, packetId, hash, acknowledgement, sequenceNumber);
+		buffer.putInt(messageNumber);
+		buffer.putInt(messageSize);
+		buffer.putInt(fragmentSize);
+		buffer.putInt(fragment);
+	}
+
 	/**
 	 * A packet of UDP data
 	 * @param connection the connection
 	 * @param hash a hash of the local salt and all other fields
 	 * @param acknowledgement previous acknowledgements
-	 * @param sequenceNumber the sequence number of this packet
-	 * @param olderRequiredPackets older sequence numbers that need to be received before this packet can be received
+	 * @param sequenceNumber the low 16 bits of the sequence number of this packet
 	 * @param messages the data in the packet
 	 */
 	@DefinePacket
 	public static void udpData(@ConnectionParam Connection<?, ?> connection,
 	                           int hash,
 	                           Acknowledgement acknowledgement,
-							   int sequenceNumber, int olderRequiredPackets,
+							   short sequenceNumber,
 							   @UseConverter(TrailingByteBufferConverter.class) ByteBuffer messages) {
 
 		if (!(connection instanceof UDPConnection udpConnection)) {
@@ -181,22 +356,151 @@ final class UDPPackets {
 
 		long localSalt = udpConnection.localSalt();
 
-		int digest = hashDataPacket(localSalt, acknowledgement, sequenceNumber, olderRequiredPackets, messages.duplicate());
+		int digest = hashDataPacket(localSalt, acknowledgement, sequenceNumber, messages.duplicate());
 
 		if (hash != digest) {
 			// Ignore the packet, this is corrupt, or malicious
 			LOGGER.log(System.Logger.Level.INFO, "Corrupt packet received from '" + connection.address() + "'");
 		} else {
-			for (int i : acknowledgement) {
-				udpConnection.receiveAcknowledgement(i);
-			}
+			udpConnection.receiveAcknowledgements(acknowledgement);
 
-			if (!udpConnection.onSequenceNumberReceived(sequenceNumber, messages.hasRemaining())) {
-				LOGGER.log(System.Logger.Level.DEBUG, "Rejected duplicate message " + sequenceNumber + " from '" + connection.address() + "'");
+			int fullSequenceNumber = udpConnection.expandSequenceNumber(sequenceNumber);
+			if (!udpConnection.onSequenceNumberReceived(fullSequenceNumber, messages.hasRemaining())) {
+				LOGGER.log(System.Logger.Level.DEBUG, "Rejected duplicate message " + fullSequenceNumber + " from '" + connection.address() + "'");
 				return;
 			}
 
-			udpConnection.receiveMessages(sequenceNumber, olderRequiredPackets, messages);
+			udpConnection.receiveMessages(messages);
+		}
+	}
+
+	/**
+	 * A fragment of a message that was too large to fit into a single data packet. Each fragment is sent in a datagram
+	 * of its own, and is acknowledged and resent in the same way as a data packet.
+	 * @param connection the connection
+	 * @param hash a hash of the local salt and all other fields
+	 * @param acknowledgement previous acknowledgements
+	 * @param sequenceNumber the low 16 bits of the sequence number of this packet
+	 * @param messageNumber the number of the message that this is a fragment of
+	 * @param messageSize the size of the whole message
+	 * @param fragmentSize the size of every fragment of the message, except for the last one
+	 * @param fragment the index of this fragment
+	 * @param data the data in this fragment
+	 */
+	@DefinePacket
+	public static void udpFragment(@ConnectionParam Connection<?, ?> connection,
+	                               int hash,
+	                               Acknowledgement acknowledgement,
+	                               short sequenceNumber,
+	                               int messageNumber, int messageSize, int fragmentSize, int fragment,
+	                               @UseConverter(TrailingByteBufferConverter.class) ByteBuffer data) {
+
+		if (!(connection instanceof UDPConnection udpConnection)) {
+			throw new IllegalStateException("'UDPFragment' can only be received by a UDP connection");
+		}
+
+		long localSalt = udpConnection.localSalt();
+
+		int digest = hashFragmentPacket(localSalt, acknowledgement, sequenceNumber,
+				messageNumber, messageSize, fragmentSize, fragment, data.duplicate());
+
+		if (hash != digest) {
+			// Ignore the packet, this is corrupt, or malicious
+			LOGGER.log(System.Logger.Level.INFO, "Corrupt packet received from '" + connection.address() + "'");
+		} else {
+			udpConnection.receiveAcknowledgements(acknowledgement);
+
+			// The fragment is only acknowledged once the reassembler has stored it
+			int fullSequenceNumber = udpConnection.expandSequenceNumber(sequenceNumber);
+			udpConnection.receiveFragment(fullSequenceNumber, messageNumber, messageSize, fragmentSize, fragment, data);
+		}
+	}
+
+	/**
+	 * A datagram padded to a given size, this is used to discover the largest datagram that can be sent to the other end
+	 * of the connection. It is acknowledged with a probe acknowledgement if it arrives intact.
+	 * @param connection the connection
+	 * @param hash a hash of the local salt and the probe size
+	 * @param probeSize the size of the datagram
+	 * @param padding zeros, to pad the datagram to the probe size
+	 */
+	@DefinePacket
+	public static void udpProbe(@ConnectionParam Connection<?, ?> connection,
+	                            int hash,
+	                            int probeSize,
+	                            @UseConverter(TrailingByteBufferConverter.class) ByteBuffer padding) {
+
+		if (!(connection instanceof UDPConnection udpConnection)) {
+			throw new IllegalStateException("'UDPProbe' can only be received by a UDP connection");
+		}
+
+		if (hash != hashProbePacket(udpConnection.localSalt(), probeSize)) {
+			// Ignore the packet, this is corrupt, or malicious
+			LOGGER.log(System.Logger.Level.INFO, "Corrupt packet received from '" + connection.address() + "'");
+		} else if (padding.remaining() + PROBE_HEADER_SIZE == probeSize) {
+			// Probes that were truncated on receipt are not acknowledged
+			udpConnection.receiveProbe(probeSize);
+		}
+	}
+
+	/**
+	 * Acknowledges that a probe datagram was received intact
+	 * @param connection the connection
+	 * @param hash a hash of the local salt and the probe size
+	 * @param probeSize the size of the probe that was received
+	 */
+	@DefinePacket
+	public static void udpProbeAcknowledgement(@ConnectionParam Connection<?, ?> connection, int hash, int probeSize) {
+		if (!(connection instanceof UDPConnection udpConnection)) {
+			throw new IllegalStateException("'UDPProbeAcknowledgement' can only be received by a UDP connection");
+		}
+
+		if (hash != hashProbePacket(udpConnection.localSalt(), probeSize)) {
+			// Ignore the packet, this is corrupt, or malicious
+			LOGGER.log(System.Logger.Level.INFO, "Corrupt packet received from '" + connection.address() + "'");
+		} else {
+			udpConnection.receiveProbeAcknowledgement(probeSize);
+		}
+	}
+
+	/**
+	 * Answers a connect packet from an address that has no connection, without the server storing any state
+	 * @param connection the connection
+	 * @param hash a hash of the client salt and the cookie
+	 * @param cookie the value that must be echoed in the next connect packet
+	 */
+	// Server to Client
+	@DefinePacket
+	public static void udpRetry(@ConnectionParam Connection<?, ?> connection, int hash, long cookie) {
+		if (!(connection instanceof UDPConnection udpConnection)) {
+			throw new IllegalStateException("'UDPRetry' can only be received by a UDP connection");
+		}
+
+		if (hash != hashRetryPacket(udpConnection.localSalt(), cookie)) {
+			// Ignore the packet, this is corrupt, or malicious
+			LOGGER.log(System.Logger.Level.INFO, "Corrupt packet received from '" + connection.address() + "'");
+		} else {
+			udpConnection.receiveRetry(cookie);
+		}
+	}
+
+	/**
+	 * Tells the other end that this end has dropped the connection, so that it can release the connection rather than
+	 * wait for it to go idle
+	 * @param connection the connection
+	 * @param hash a hash of the local salt
+	 */
+	@DefinePacket
+	public static void udpClose(@ConnectionParam Connection<?, ?> connection, int hash) {
+		if (!(connection instanceof UDPConnection udpConnection)) {
+			throw new IllegalStateException("'UDPClose' can only be received by a UDP connection");
+		}
+
+		if (hash != hashClosePacket(udpConnection.localSalt())) {
+			// Ignore the packet, this is corrupt, or malicious
+			LOGGER.log(System.Logger.Level.INFO, "Corrupt packet received from '" + connection.address() + "'");
+		} else {
+			udpConnection.receiveClose();
 		}
 	}
 }
@@ -1,106 +1,191 @@
 package brownshome.netcode.udp;
 
-import java.util.BitSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Executor;
 
 import brownshome.netcode.*;
-import brownshome.netcode.util.*;
 
-final class UdpPacketExecutor extends PacketQueue<UdpPacketExecutor.ExecutionInformation> {
-	class ExecutionInformation {
-		final int sequenceNumber;
-		final int receivedSequenceNumbers;
-		final BitSet awaitingExecution;
+/**
+ * Executes the messages received on a UDP connection in the order given by their {@link MessageOrder}.
+ *
+ * Each type counts the reliable messages of that type that have finished executing. A message that needs more messages
+ * of a type to have finished waits on that type, and is released when the count reaches what it needs, so each message
+ * that finishes only looks at the messages that it releases.
+ *
+ * Unreliable messages are not counted by the sender, as they may never arrive. Instead they are numbered in the order
+ * that they are received, and counted in the same way as they finish, so a message never starts while an unreliable
+ * message of a type that it is ordered by, which was received before it, is still executing.
+ *
+ * The schedule is only touched by the connection's shard thread.
+ *
+ * A message that never arrives holds back the messages that are ordered after it, so the number of messages that each
+ * type holds is limited. A peer that goes over the limit is not following the protocol, and the overflow handler is run.
+ */
+final class UdpPacketExecutor {
+	/** Compares ordinals using serial number arithmetic, so that they may wrap around */
+	private static final Comparator<Integer> SERIAL_ORDER = (a, b) -> Integer.signum(a - b);
 
-		private ExecutionInformation() {
-			this(firstNumberNotReceived.get() - 1, ~0, new BitSet());
-		}
+	/**
+	 * The number of messages that a type may hold while they wait for an older message. The sender never has more than
+	 * this many reliable messages unacknowledged, so only a stalled handler or a broken peer will reach it.
+	 */
+	private static final int MAXIMUM_HELD_MESSAGES = MessageNumberWindow.WINDOW_SIZE;
+
+	/** A received message that has not been started */
+	private static final class Execution {
+		final CompletableFuture<Void> start = new CompletableFuture<>();
+
+		/** The number of types that this message is waiting for */
+		int blockingTypes = 0;
+	}
+
+	/**
+	 * A message that is waiting for a type
+	 * @param requires the number of messages of the type that must have finished
+	 */
+	private record Waiting(int requires, Execution execution) { }
+
+	/** The progress of the messages of a single type */
+	private static final class TypeOrder {
+		/** The number of messages of this type that have finished, ordinals below this have all finished */
+		int finished = 0;
+
+		/** The number of unreliable messages of this type that have been received, this numbers them */
+		int received = 0;
+
+		/**
+		 * Ordinals that finished before an older message of this type, these are counted once the gap closes. This is a
+		 * ring of bits indexed by ordinal, covering the ordinals after {@link #finished}. It is created when a message
+		 * first finishes early, and grows to cover the furthest ordinal.
+		 */
+		long[] finishedEarly;
+		int finishedEarlyCount = 0;
+
+		/** Messages that are waiting for more messages of this type to finish, the least demanding first */
+		final PriorityQueue<Waiting> waiting = new PriorityQueue<>(
+				Comparator.comparing(Waiting::requires, SERIAL_ORDER));
 
-		private ExecutionInformation(int sequenceNumber, int receivedSequenceNumbers, BitSet awaitingExecution) {
-			this.sequenceNumber = sequenceNumber;
-			this.receivedSequenceNumbers = receivedSequenceNumbers;
-			this.awaitingExecution = awaitingExecution;
+		boolean isFull() {
+			return finishedEarlyCount + waiting.size() >= MAXIMUM_HELD_MESSAGES;
 		}
 
-		private ExecutionInformation shiftUnreceived(int newSequenceNumber) {
-			if (firstNumberNotReceived.compareAndSet(newSequenceNumber, newSequenceNumber + 1)) {
-				// We have not found a sequence number not received yet
-				return new ExecutionInformation(newSequenceNumber, ~0, awaitingExecution);
-			} else {
-				int newReceived = (receivedSequenceNumbers << newSequenceNumber - sequenceNumber) | 1;
-				return new ExecutionInformation(newSequenceNumber, newReceived, awaitingExecution);
+		/**
+		 * Records an ordinal that finished while an older message of this type had not
+		 * @return false if the ordinal is too far ahead to be held
+		 */
+		boolean finishEarly(int ordinal) {
+			int distance = ordinal - finished;
+
+			if (distance >= MAXIMUM_HELD_MESSAGES) {
+				return false;
+			}
+
+			if (finishedEarly == null || distance >= finishedEarly.length * Long.SIZE) {
+				grow(distance);
 			}
+
+			int bit = ordinal & finishedEarly.length * Long.SIZE - 1;
+			finishedEarly[bit >>> 6] |= 1L << bit;
+			finishedEarlyCount++;
+
+			return true;
 		}
-	}
 
-	private record PacketExecution(
-			int sequenceNumber,
-			int waitingSequenceNumbers,
-			PacketTypeMap.PacketType type,
-			CompletableFuture<Void> start,
-			CompletableFuture<Void> finish) implements ScheduledItem<ExecutionInformation> {
-		@Override
-		public ProcessingResult<ExecutionInformation> processType(ExecutionInformation previous) {
-			assert type.isComplete();
-
-			var next = previous.shiftUnreceived(sequenceNumber);
-
-			if ((next.receivedSequenceNumbers & waitingSequenceNumbers) == 0
-					&& !type.waitsFor().intersects(previous.awaitingExecution)) {
-				start.complete(null);
+		/** Counts an ordinal that has finished, along with any newer ordinals that were waiting for it */
+		void finish() {
+			finished++;
+
+			while (finishedEarlyCount > 0) {
+				int bit = finished & finishedEarly.length * Long.SIZE - 1;
+				long mask = 1L << bit;
+
+				if ((finishedEarly[bit >>> 6] & mask) == 0L) {
+					break;
+				}
+
+				finishedEarly[bit >>> 6] &= ~mask;
+				finishedEarlyCount--;
+				finished++;
 			}
+		}
+
+		/** Makes the ring large enough to hold an ordinal this far ahead of the finished count */
+		private void grow(int distance) {
+			int bits = Math.max(Long.SIZE, Integer.highestOneBit(distance) << 1);
+			var grown = new long[bits / Long.SIZE];
 
-			if (!finish.isDone()) {
-				next.awaitingExecution.set(type.id());
-				return ProcessingResult.keep(next);
-			} else {
-				return ProcessingResult.remove(next);
+			if (finishedEarly != null) {
+				int oldMask = finishedEarly.length * Long.SIZE - 1;
+
+				for (int ordinal = finished + 1; ordinal - finished <= oldMask; ordinal++) {
+					if ((finishedEarly[(ordinal & oldMask) >>> 6] & 1L << ordinal) != 0L) {
+						grown[(ordinal & bits - 1) >>> 6] |= 1L << ordinal;
+					}
+				}
 			}
+
+			finishedEarly = grown;
 		}
-	}
 
-	private final PacketTypeMap types;
-	private final Connection<?, ?> connection;
-	private final AtomicInteger firstNumberNotReceived = new AtomicInteger(0);
+		void clear() {
+			waiting.clear();
 
-	UdpPacketExecutor(Connection<?, ?> connection) {
-		this.types = new PacketTypeMap(0);
-		this.connection = connection;
-	}
+			if (finishedEarly != null) {
+				Arrays.fill(finishedEarly, 0L);
+			}
 
-	@Override
-	protected ExecutionInformation startingCommunication() {
-		return new ExecutionInformation();
+			finishedEarlyCount = 0;
+		}
 	}
 
-	private void schedule(PacketExecution item) {
-		var older = startingCommunication();
+	private final Connection<?, ?> connection;
+	private final Executor shard;
+	private final Runnable onOverflow;
+	private boolean overflowed = false;
 
-		for (var it = scheduled().listIterator(); it.hasNext(); ) {
-			var next = (PacketExecution) it.next();
+	/** The progress of the reliable messages of each type, indexed by the bit of the type's mask */
+	private final TypeOrder[] types = new TypeOrder[Long.SIZE];
 
-			if (item != null && item.sequenceNumber <= next.sequenceNumber) {
-				it.previous();
-				it.add(item);
-				it.next();
-				item = null;
-			}
+	/** The progress of the unreliable messages of each type, indexed by the bit of the type's mask */
+	private final TypeOrder[] unreliableTypes = new TypeOrder[Long.SIZE];
 
-			var result = it.next().processType(older);
+	/**
+	 * Creates an executor
+	 * @param connection the connection that packets are received on
+	 * @param shard the single threaded executor that owns the schedule, packets must be passed to this executor from it
+	 * @param onOverflow run on the shard if a type holds too many messages, the messages that are held are discarded
+	 */
+	UdpPacketExecutor(Connection<?, ?> connection, Executor shard, Runnable onOverflow) {
+		this.connection = connection;
+		this.shard = shard;
+		this.onOverflow = onOverflow;
+	}
 
-			if (result.shouldRemove()) {
-				it.remove();
+	/**
+	 * Discards the packets that are waiting to be executed, this must be called from the shard's thread
+	 */
+	void clear() {
+		for (int i = 0; i < Long.SIZE; i++) {
+			if (types[i] != null) {
+				types[i].clear();
 			}
 
-			older = result.communication();
+			if (unreliableTypes[i] != null) {
+				unreliableTypes[i].clear();
+			}
 		}
 	}
 
-	CompletableFuture<Void> execute(int sequenceNumber, int waitingSequenceNumbers, Packet packet) {
-		var type = types.getType(packet);
-		var startFuture = new CompletableFuture<Void>();
-		var finishFuture = startFuture.thenRunAsync(() -> {
+	CompletableFuture<Void> execute(Packet packet, MessageOrder order) {
+		if (overflowed) {
+			return CompletableFuture.completedFuture(null);
+		}
+
+		var execution = new Execution();
+		var finishFuture = execution.start.thenRunAsync(() -> {
 			try {
 				connection.protocol().handle(connection, packet);
 			} catch (NetworkException ne) {
@@ -108,9 +193,93 @@ final class UdpPacketExecutor extends PacketQueue<UdpPacketExecutor.ExecutionInf
 			}
 		}, connection.connectionManager().executorService(packet.getClass()));
 
-		schedule(new PacketExecution(sequenceNumber, waitingSequenceNumbers, type, startFuture, finishFuture));
-		finishFuture.whenComplete((unused, throwable) -> sweepSchedule());
+		int i = 0;
+		for (long remaining = packet.orderingMask(); remaining != 0L; remaining &= remaining - 1) {
+			int bit = Long.numberOfTrailingZeros(remaining);
+
+			if (!waitFor(type(types, bit), order.requires()[i++], execution)) {
+				return CompletableFuture.completedFuture(null);
+			}
+
+			// Wait for the unreliable messages of the type that were received before this one
+			var unreliable = unreliableTypes[bit];
+			if (unreliable != null && !waitFor(unreliable, unreliable.received, execution)) {
+				return CompletableFuture.completedFuture(null);
+			}
+		}
+
+		int bit = Long.numberOfTrailingZeros(packet.typeMask());
+		TypeOrder type;
+		int ordinal;
+
+		if (packet.reliable()) {
+			type = type(types, bit);
+			ordinal = order.ordinal();
+		} else {
+			type = type(unreliableTypes, bit);
+			ordinal = type.received++;
+		}
+
+		// The schedule is only touched by the shard's thread
+		finishFuture.whenCompleteAsync((unused, throwable) -> onFinished(type, ordinal), shard);
+
+		if (execution.blockingTypes == 0) {
+			execution.start.complete(null);
+		}
 
 		return finishFuture;
 	}
+
+	/**
+	 * Makes an execution wait until a number of messages of a type have finished
+	 * @return false if the type holds too many messages, in which case the executor has overflowed
+	 */
+	private boolean waitFor(TypeOrder type, int requires, Execution execution) {
+		if (requires - type.finished > 0) {
+			if (type.isFull()) {
+				overflow();
+				return false;
+			}
+
+			execution.blockingTypes++;
+			type.waiting.add(new Waiting(requires, execution));
+		}
+
+		return true;
+	}
+
+	private void onFinished(TypeOrder type, int ordinal) {
+		if (ordinal != type.finished) {
+			if (ordinal - type.finished > 0 && !overflowed && (type.isFull() || !type.finishEarly(ordinal))) {
+				overflow();
+			}
+
+			return;
+		}
+
+		type.finish();
+
+		while (!type.waiting.isEmpty() && type.waiting.peek().requires() - type.finished <= 0) {
+			var released = type.waiting.poll().execution();
+
+			if (--released.blockingTypes == 0) {
+				released.start.complete(null);
+			}
+		}
+	}
+
+	private void overflow() {
+		overflowed = true;
+		clear();
+		onOverflow.run();
+	}
+
+	private static TypeOrder type(TypeOrder[] types, int index) {
+		if (types[index] == null) {
+			// Most connections only use a few types, so the progress of a type is created when it is first needed
+			types[index] = new TypeOrder();
+		}
+
+		return types[index];
+	}
 }
@@ -0,0 +1,310 @@
+package brownshome.netcode.util;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+
+import brownshome.netcode.Packet;
+
+/**
+ * Manages an ordered queue of actions on packets.
+ *
+ * Each packet waits for the older packets whose type is in its ordering mask, using the type masks of {@link Packet}.
+ * Barriers and waits hold back everything that is queued after them, and flushes and barriers wait for everything that
+ * was queued before them.
+ *
+ * Rather than checking the whole queue each time something completes, the queue keeps the unfinished items of each type
+ * in the order that they were queued. When the oldest item of a type finishes, only the items that were waiting on that
+ * type are checked, so each event costs time in proportion to the number of items that it releases.
+ *
+ * This class is thread-safe without locking. Packets may be queued from any thread, and the futures that finish items
+ * may complete on any thread. Each change is added to a concurrent queue of events, and the thread that adds an event to
+ * an empty queue applies events until the queue is empty again. Only one thread applies events at a time, so the state
+ * of the queue is never shared, and a thread never waits for another thread to finish applying events. A thread applies
+ * a limited number of events before handing the rest to the common pool, so that a busy queue does not hold on to the
+ * thread that happened to find it empty.
+ */
+public class TypeMaskPacketQueue {
+	private static final System.Logger LOGGER = System.getLogger(TypeMaskPacketQueue.class.getPackageName());
+
+	/** The number of events that a thread applies before handing the rest to the common pool */
+	private static final int MAXIMUM_EVENTS_PER_DRAIN = 256;
+
+	/**
+	 * An entry in the queue. The number of each item gives the order that they were queued in.
+	 */
+	private static final class Item {
+		/** Set when the item is applied to the queue */
+		long number;
+
+		final long typeMask;
+		final long orderingMask;
+		final CompletableFuture<Void> start;
+
+		/** The number of types that this item is waiting for */
+		int blockingTypes = 0;
+
+		/** Set once this item no longer holds back items of its type */
+		boolean typeFinished = false;
+
+		/** Set once this item no longer holds back flushes and barriers */
+		boolean finished = false;
+
+		Item(long typeMask, long orderingMask, CompletableFuture<Void> start) {
+			this.typeMask = typeMask;
+			this.orderingMask = orderingMask;
+			this.start = start;
+		}
+	}
+
+	/** Changes to the queue that have not been applied yet */
+	private final Queue<Runnable> events = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pendingEvents = new AtomicInteger(0);
+
+	// The fields below are only used by the thread that is applying events
+
+	private long nextNumber = 0L;
+
+	/** The unfinished items of each type, indexed by the bit of the type. Finished items are removed once they are oldest */
+	@SuppressWarnings("unchecked")
+	private final ArrayDeque<Item>[] unfinishedTypes = (ArrayDeque<Item>[]) new ArrayDeque<?>[Long.SIZE];
+
+	/** The items that are waiting for an older item of each type, indexed by the bit of the type */
+	@SuppressWarnings("unchecked")
+	private final ArrayDeque<Item>[] waitingForTypes = (ArrayDeque<Item>[]) new ArrayDeque<?>[Long.SIZE];
+
+	/** Every unfinished item, flushes and barriers wait until none of these are older than them */
+	private final ArrayDeque<Item> unfinished = new ArrayDeque<>();
+
+	/** Flushes and barriers that are waiting for the items before them to finish */
+	private final ArrayDeque<Item> draining = new ArrayDeque<>();
+
+	/** Barriers and waits that have not finished */
+	private final ArrayDeque<Item> barriers = new ArrayDeque<>();
+
+	/** Packets that were queued after a barrier or wait that has not finished */
+	private final ArrayDeque<Item> behindBarriers = new ArrayDeque<>();
+
+	/**
+	 * Queues a packet
+	 * @param packet the packet, its masks decide which older packets it waits for
+	 * @param start completed once the packet may start
+	 * @param typeFinished once this completes newer packets ordered by this packet's type no longer wait for this packet
+	 * @param finished once this completes flushes and barriers no longer wait for this packet, this must not complete
+	 *                 before typeFinished
+	 */
+	protected void schedule(Packet packet,
+	                        CompletableFuture<Void> start,
+	                        CompletableFuture<?> typeFinished,
+	                        CompletableFuture<?> finished) {
+		var item = new Item(packet.typeMask(), packet.orderingMask(), start);
+
+		submit(() -> {
+			item.number = nextNumber++;
+
+			unfinished.add(item);
+			for (long types = item.typeMask; types != 0L; types &= types - 1) {
+				deque(unfinishedTypes, Long.numberOfTrailingZeros(types)).add(item);
+			}
+
+			if (oldest(barriers, false) < item.number) {
+				behindBarriers.add(item);
+			} else {
+				admit(item);
+			}
+		});
+
+		// These are registered after the item is submitted, so they are always applied after it
+		typeFinished.whenComplete((unused, throwable) -> submit(() -> onTypeFinished(item)));
+		finished.whenComplete((unused, throwable) -> submit(() -> onFinished(item)));
+	}
+
+	/**
+	 * Makes a future that completes when all previous submissions have been completed, including barriers and waits
+	 * @return a future
+	 */
+	public CompletableFuture<Void> flush() {
+		var item = new Item(0L, 0L, new CompletableFuture<>());
+
+		submit(() -> {
+			item.number = nextNumber++;
+			draining.add(item);
+			onFinished();
+		});
+
+		return item.start;
+	}
+
+	/**
+	 * Causes all future executions, flushes and barriers to wait on this future to complete
+	 * @param wait the future to wait for
+	 */
+	public void wait(CompletableFuture<Void> wait) {
+		var item = new Item(0L, 0L, null);
+
+		submit(() -> {
+			item.number = nextNumber++;
+			unfinished.add(item);
+			barriers.add(item);
+		});
+
+		wait.whenComplete((unused, throwable) -> submit(() -> onBarrierFinished(item)));
+	}
+
+	/**
+	 * Causes all future executions to wait for all previous executions and a given action to run
+	 * @param barrier a transformation between the start of the barrier and the end of the barrier
+	 */
+	public CompletableFuture<Void> barrier(UnaryOperator<CompletableFuture<Void>> barrier) {
+		var startFuture = new CompletableFuture<Void>();
+		var finishFuture = barrier.apply(startFuture);
+
+		var item = new Item(0L, 0L, startFuture);
+
+		// The barrier might be able to start already
+		submit(() -> {
+			item.number = nextNumber++;
+			unfinished.add(item);
+			barriers.add(item);
+			draining.add(item);
+			onFinished();
+		});
+
+		finishFuture.whenComplete((unused, throwable) -> submit(() -> onBarrierFinished(item)));
+
+		return finishFuture;
+	}
+
+	/**
+	 * Applies an event to the queue. If another thread is applying events then the event is left for that thread,
+	 * otherwise this thread applies events until there are none left.
+	 */
+	private void submit(Runnable event) {
+		events.add(event);
+
+		if (pendingEvents.getAndIncrement() == 0) {
+			drain();
+		}
+	}
+
+	/**
+	 * Applies events until there are none left, or until the limit is reached and the rest are handed to the common pool.
+	 * Only the thread that moved the count of pending events from zero, or the task that it handed over to, calls this.
+	 */
+	private void drain() {
+		int applied = 0;
+
+		do {
+			if (applied++ == MAXIMUM_EVENTS_PER_DRAIN) {
+				ForkJoinPool.commonPool().execute(this::drain);
+				return;
+			}
+
+			// Starting an item may run code that submits more events, these are queued rather than applied recursively
+			try {
+				events.poll().run();
+			} catch (RuntimeException e) {
+				// The count must still be decremented, or no thread would apply events again
+				LOGGER.log(System.Logger.Level.ERROR, "Error applying a change to a packet queue", e);
+			}
+		} while (pendingEvents.decrementAndGet() != 0);
+	}
+
+	/**
+	 * Starts an item that is no longer held back by a barrier, or records the types that it must wait for
+	 */
+	private void admit(Item item) {
+		for (long types = item.orderingMask; types != 0L; types &= types - 1) {
+			int type = Long.numberOfTrailingZeros(types);
+
+			if (oldest(unfinishedTypes[type], true) < item.number) {
+				item.blockingTypes++;
+				deque(waitingForTypes, type).add(item);
+			}
+		}
+
+		if (item.blockingTypes == 0) {
+			item.start.complete(null);
+		}
+	}
+
+	private void onTypeFinished(Item item) {
+		item.typeFinished = true;
+
+		for (long types = item.typeMask; types != 0L; types &= types - 1) {
+			int type = Long.numberOfTrailingZeros(types);
+			var waiting = waitingForTypes[type];
+
+			if (waiting == null) {
+				continue;
+			}
+
+			// Items are released in the order that they were queued, each waits only for the older items of the type. An
+			// item may be unfinished in the type that it waits for, so it is released once it is the oldest.
+			long oldestUnfinished = oldest(unfinishedTypes[type], true);
+			while (!waiting.isEmpty() && waiting.peek().number <= oldestUnfinished) {
+				var released = waiting.poll();
+
+				if (--released.blockingTypes == 0) {
+					released.start.complete(null);
+				}
+			}
+		}
+	}
+
+	private void onFinished(Item item) {
+		item.finished = true;
+		onFinished();
+	}
+
+	/**
+	 * Starts the flushes and barriers that no longer have older unfinished items
+	 */
+	private void onFinished() {
+		long oldestUnfinished = oldest(unfinished, false);
+
+		// A barrier is counted as unfinished itself, so it may start once it is the oldest
+		while (!draining.isEmpty() && draining.peek().number <= oldestUnfinished) {
+			draining.poll().start.complete(null);
+		}
+	}
+
+	private void onBarrierFinished(Item barrier) {
+		onFinished(barrier);
+
+		long oldestBarrier = oldest(barriers, false);
+		while (!behindBarriers.isEmpty() && behindBarriers.peek().number < oldestBarrier) {
+			admit(behindBarriers.poll());
+		}
+	}
+
+	/**
+	 * Finds the number of the oldest unfinished item in a queue, discarding the finished items at its head
+	 * @param byType whether the items in the queue are removed once their type is finished, rather than once finished
+	 * @return the number, or {@link Long#MAX_VALUE} if there is none
+	 */
+	private static long oldest(ArrayDeque<Item> items, boolean byType) {
+		if (items == null) {
+			return Long.MAX_VALUE;
+		}
+
+		while (!items.isEmpty() && (byType ? items.peek().typeFinished : items.peek().finished)) {
+			items.poll();
+		}
+
+		return items.isEmpty() ? Long.MAX_VALUE : items.peek().number;
+	}
+
+	private static ArrayDeque<Item> deque(ArrayDeque<Item>[] deques, int type) {
+		if (deques[type] == null) {
+			// Most connections only use a few types, so the queues are created when they are first needed
+			deques[type] = new ArrayDeque<>();
+		}
+
+		return deques[type];
+	}
+}
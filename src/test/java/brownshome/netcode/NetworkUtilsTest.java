@@ -0,0 +1,68 @@
+package brownshome.netcode;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NetworkUtilsTest {
+	private static final int[] VALUES = {
+			0, 1, -1, 63, -64, 64, -65, 127, 128, 255, 16_383, 16_384, -8_192, -8_193,
+			2_097_151, 2_097_152, 268_435_455, 268_435_456, Integer.MAX_VALUE, Integer.MIN_VALUE
+	};
+
+	@Test
+	void varIntsRoundTrip() {
+		var buffer = ByteBuffer.allocate(NetworkUtils.MAXIMUM_VAR_INT_SIZE);
+
+		for (int value : VALUES) {
+			buffer.clear();
+			NetworkUtils.writeVarInt(buffer, value);
+
+			assertEquals(NetworkUtils.calculateVarIntSize(value), buffer.position(), "Size of " + value);
+
+			buffer.flip();
+			assertEquals(value, NetworkUtils.readVarInt(buffer));
+			assertFalse(buffer.hasRemaining());
+		}
+	}
+
+	@Test
+	void signedVarIntsRoundTrip() {
+		var buffer = ByteBuffer.allocate(NetworkUtils.MAXIMUM_VAR_INT_SIZE);
+
+		for (int value : VALUES) {
+			buffer.clear();
+			NetworkUtils.writeSignedVarInt(buffer, value);
+
+			assertEquals(NetworkUtils.calculateSignedVarIntSize(value), buffer.position(), "Size of " + value);
+
+			buffer.flip();
+			assertEquals(value, NetworkUtils.readSignedVarInt(buffer));
+			assertFalse(buffer.hasRemaining());
+		}
+	}
+
+	@Test
+	void varIntSizesStepEverySevenBits() {
+		assertEquals(1, NetworkUtils.calculateVarIntSize(0));
+		assertEquals(1, NetworkUtils.calculateVarIntSize(127));
+		assertEquals(2, NetworkUtils.calculateVarIntSize(128));
+		assertEquals(3, NetworkUtils.calculateVarIntSize(16_384));
+		assertEquals(5, NetworkUtils.calculateVarIntSize(-1));
+
+		// Values close to zero take one byte whatever their sign
+		assertEquals(1, NetworkUtils.calculateSignedVarIntSize(-64));
+		assertEquals(1, NetworkUtils.calculateSignedVarIntSize(63));
+		assertEquals(2, NetworkUtils.calculateSignedVarIntSize(64));
+		assertEquals(5, NetworkUtils.calculateSignedVarIntSize(Integer.MIN_VALUE));
+	}
+
+	@Test
+	void overlongVarIntIsRejected() {
+		var buffer = ByteBuffer.wrap(new byte[] { (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0 });
+
+		assertThrows(IllegalArgumentException.class, () -> NetworkUtils.readVarInt(buffer));
+	}
+}
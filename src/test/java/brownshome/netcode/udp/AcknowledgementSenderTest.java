@@ -0,0 +1,138 @@
+package brownshome.netcode.udp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AcknowledgementSenderTest {
+	private static List<Integer> acknowledged(Acknowledgement field) {
+		var sequenceNumbers = new ArrayList<Integer>();
+		field.forEach(field.oldestAcknowledgement(), sequenceNumbers::add);
+		return sequenceNumbers;
+	}
+
+	@Test
+	void duplicatesAreRejected() {
+		var sender = new AcknowledgementSender();
+
+		assertTrue(sender.onSequenceNumberReceived(0, true));
+		assertTrue(sender.onSequenceNumberReceived(2, true));
+		assertFalse(sender.onSequenceNumberReceived(0, true));
+		assertTrue(sender.onSequenceNumberReceived(1, false));
+		assertFalse(sender.onSequenceNumberReceived(1, true));
+	}
+
+	@Test
+	void sequenceNumbersBehindTheWindowAreRejected() {
+		var sender = new AcknowledgementSender();
+		int newest = SequenceNumberPool.WINDOW * 3;
+
+		assertTrue(sender.onSequenceNumberReceived(newest, true));
+		assertFalse(sender.onSequenceNumberReceived(newest - SequenceNumberPool.WINDOW - Long.SIZE, true));
+		assertTrue(sender.onSequenceNumberReceived(newest - SequenceNumberPool.WINDOW + Long.SIZE, true));
+	}
+
+	@Test
+	void fieldStartsAtTheOldestPendingAcknowledgement() {
+		var sender = new AcknowledgementSender();
+
+		sender.onSequenceNumberReceived(10, false);
+		sender.onSequenceNumberReceived(12, true);
+		sender.onSequenceNumberReceived(100, true);
+		sender.onSequenceNumberReceived(150, false);
+
+		var field = sender.constructAcknowledgementField();
+
+		assertEquals(12, field.oldestAcknowledgement());
+		assertEquals(List.of(12, 100, 150), acknowledged(field));
+	}
+
+	@Test
+	void newestIsAcknowledgedAgainWhenNothingIsPending() {
+		var sender = new AcknowledgementSender();
+
+		assertEquals(0, sender.constructAcknowledgementField().acknowledgements().length);
+
+		sender.onSequenceNumberReceived(5, true);
+		sender.onSequenceNumberReceived(6, true);
+		assertEquals(List.of(5, 6), acknowledged(sender.constructAcknowledgementField()));
+
+		assertEquals(List.of(6), acknowledged(sender.constructAcknowledgementField()));
+	}
+
+	@Test
+	void fieldIsLimitedToTheMaximumWords() {
+		var sender = new AcknowledgementSender();
+		int span = Acknowledgement.MAXIMUM_WORDS * Long.SIZE;
+
+		for (int i = 0; i < span * 2; i++) {
+			sender.onSequenceNumberReceived(i, true);
+		}
+
+		var first = sender.constructAcknowledgementField();
+		assertEquals(Acknowledgement.MAXIMUM_WORDS, first.acknowledgements().length);
+		assertEquals(0, first.oldestAcknowledgement());
+		assertEquals(0, first.delayMicros());
+
+		var second = sender.constructAcknowledgementField();
+		assertEquals(span, second.oldestAcknowledgement());
+		assertEquals(span, acknowledged(second).size());
+	}
+
+	@Test
+	void windowMovesPastTheWraparound() {
+		var sender = new AcknowledgementSender();
+		int start = Integer.MAX_VALUE - 20;
+
+		for (int i = 0; i < 40; i++) {
+			assertTrue(sender.onSequenceNumberReceived(start + i, true));
+		}
+
+		assertFalse(sender.onSequenceNumberReceived(Integer.MAX_VALUE, true));
+		assertFalse(sender.onSequenceNumberReceived(Integer.MIN_VALUE, true));
+
+		var field = sender.constructAcknowledgementField();
+		var expected = new ArrayList<Integer>();
+		for (int i = 0; i < 40; i++) {
+			expected.add(start + i);
+		}
+
+		assertEquals(expected, acknowledged(field));
+		assertEquals(Integer.MIN_VALUE + 3, sender.expandSequenceNumber((short) (Integer.MIN_VALUE + 3)));
+	}
+
+	@Test
+	void fieldsAcknowledgeEverySentSequenceNumber() {
+		var sender = new AcknowledgementSender();
+		var pool = new SequenceNumberPool((bytes, roundTripNanos, time) -> { });
+		var futures = new ArrayList<CompletableFuture<Void>>();
+
+		// Send through most of a window, losing every seventh datagram
+		for (int i = 0; i < SequenceNumberPool.WINDOW - 100; i++) {
+			var future = new CompletableFuture<Void>();
+			int sequenceNumber = pool.allocateSequenceNumber(new SequenceNumberPoolTest.TestDatagram(future));
+			pool.onSent(sequenceNumber, 100, System.nanoTime(), null);
+			futures.add(future);
+
+			if (i % 7 != 0) {
+				sender.onSequenceNumberReceived(sender.expandSequenceNumber((short) sequenceNumber), true);
+			}
+
+			if (i % 50 == 0) {
+				pool.onAcknowledgementsReceived(sender.constructAcknowledgementField());
+			}
+		}
+
+		for (int i = 0; i < 10; i++) {
+			pool.onAcknowledgementsReceived(sender.constructAcknowledgementField());
+		}
+
+		for (int i = 0; i < futures.size(); i++) {
+			assertEquals(i % 7 != 0, futures.get(i).isDone(), "Sequence number " + i);
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package brownshome.netcode.udp;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AcknowledgementTest {
+	/** Writes a field and reads it back, checking that the size matches what was written */
+	private static Acknowledgement roundTrip(Acknowledgement field) {
+		var buffer = ByteBuffer.allocate(Acknowledgement.MAXIMUM_SIZE);
+		field.write(buffer);
+
+		assertEquals(field.size(), buffer.position());
+
+		buffer.flip();
+		var read = new Acknowledgement(buffer);
+		assertFalse(buffer.hasRemaining());
+
+		return read;
+	}
+
+	@Test
+	void emptyFieldIsOneByte() {
+		var read = roundTrip(Acknowledgement.emptyAcknowledgement());
+
+		assertEquals(1, Acknowledgement.emptyAcknowledgement().size());
+		assertEquals(0, read.acknowledgements().length);
+	}
+
+	@Test
+	void multiWordFieldRoundTrips() {
+		long[] words = { 0x8000_0000_0000_0001L, -1L, 0L, 0x0000_0000_00ff_0000L };
+		var field = new Acknowledgement(70_000, words, 300);
+
+		var read = roundTrip(field);
+
+		assertEquals((short) 70_000, (short) read.oldestAcknowledgement());
+		assertArrayEquals(words, read.acknowledgements());
+		assertEquals(300, read.delayMicros());
+
+		int oldest = SequenceNumberPool.expand(read.oldestAcknowledgement(), 70_100);
+		assertEquals(70_000, oldest);
+		assertEquals(field.newestAcknowledgement(70_000), read.newestAcknowledgement(oldest));
+	}
+
+	@Test
+	void trailingZeroBytesAreNotSent() {
+		var field = new Acknowledgement(5, new long[] { 0b1011L, 0L, 0L, 0L }, 0);
+
+		// Length, start, one byte of bits and the delay
+		assertEquals(5, field.size());
+		assertEquals(1, field.sentWords());
+
+		var read = roundTrip(field);
+		assertArrayEquals(new long[] { 0b1011L }, read.acknowledgements());
+	}
+
+	@Test
+	void forEachVisitsAcknowledgementsInOrder() {
+		var field = new Acknowledgement(100, new long[] { 0b101L, 1L << 63 }, 0);
+		var visited = new StringBuilder();
+
+		field.forEach(100, sequenceNumber -> visited.append(sequenceNumber).append(' '));
+
+		assertEquals("100 102 227 ", visited.toString());
+		assertEquals(227, field.newestAcknowledgement(100));
+	}
+
+	@Test
+	void invalidFieldsAreRejected() {
+		assertThrows(IllegalArgumentException.class,
+				() -> new Acknowledgement(0, new long[Acknowledgement.MAXIMUM_WORDS + 1], 0));
+		assertThrows(IllegalArgumentException.class, () -> new Acknowledgement(0, new long[1], -1));
+
+		var tooLong = ByteBuffer.wrap(new byte[] { (byte) (Acknowledgement.MAXIMUM_WORDS * Long.BYTES + 1), 0, 0 });
+		assertThrows(IllegalArgumentException.class, () -> new Acknowledgement(tooLong));
+	}
+}
@@ -0,0 +1,92 @@
+package brownshome.netcode.udp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AimdCongestionControllerTest {
+	private static final int DATAGRAM_SIZE = 1200;
+
+	/** The rate and round trip that a controller starts with */
+	private static final long INITIAL_RATE = 256 * 1024;
+	private static final long ROUND_TRIP = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private AimdCongestionController controller;
+	private long start;
+
+	@BeforeEach
+	void createController() {
+		controller = new AimdCongestionController(DATAGRAM_SIZE);
+		start = System.nanoTime();
+	}
+
+	/** Acknowledges a round trip's worth of datagrams at the current rate, before the delivery rate is sampled */
+	private void acknowledgeRoundTrip() {
+		long bytes = controller.sendRate() * ROUND_TRIP / TimeUnit.SECONDS.toNanos(1);
+
+		for (long acknowledged = 0; acknowledged < bytes; acknowledged += DATAGRAM_SIZE) {
+			controller.onAcknowledged(DATAGRAM_SIZE, ROUND_TRIP, start);
+		}
+	}
+
+	@Test
+	void slowStartDoublesEachRoundTrip() {
+		acknowledgeRoundTrip();
+
+		assertEquals(2.0 * INITIAL_RATE, controller.sendRate(), INITIAL_RATE * 0.02);
+	}
+
+	@Test
+	void lossCutsTheRateOncePerRoundTrip() {
+		controller.onLost(DATAGRAM_SIZE, start + ROUND_TRIP);
+		assertEquals((long) (INITIAL_RATE * 0.7), controller.sendRate());
+
+		// Part of the same congestion event
+		controller.onLost(DATAGRAM_SIZE, start + ROUND_TRIP + ROUND_TRIP / 2);
+		assertEquals((long) (INITIAL_RATE * 0.7), controller.sendRate());
+
+		controller.onLost(DATAGRAM_SIZE, start + 3 * ROUND_TRIP);
+		assertEquals((long) (INITIAL_RATE * 0.7 * 0.7), controller.sendRate());
+	}
+
+	@Test
+	void rateDoesNotFallBelowTheMinimum() {
+		for (int i = 1; i <= 100; i++) {
+			controller.onLost(DATAGRAM_SIZE, start + i * TimeUnit.SECONDS.toNanos(1));
+		}
+
+		assertEquals(16 * 1024, controller.sendRate());
+	}
+
+	@Test
+	void congestionAvoidanceAddsOneDatagramEachRoundTrip() {
+		controller.onLost(DATAGRAM_SIZE, start + ROUND_TRIP);
+		long rate = controller.sendRate();
+
+		acknowledgeRoundTrip();
+
+		double datagramPerRoundTrip = DATAGRAM_SIZE * 1e9 / ROUND_TRIP;
+		assertEquals(rate + datagramPerRoundTrip, controller.sendRate(), datagramPerRoundTrip * 0.05);
+	}
+
+	@Test
+	void unusedRateDoesNotGrow() {
+		// A single small datagram over a whole second, the connection is far below its rate
+		controller.onAcknowledged(100, ROUND_TRIP, start + TimeUnit.SECONDS.toNanos(1));
+
+		assertEquals(INITIAL_RATE, controller.sendRate());
+		assertEquals(100, controller.estimate().deliveryRate(), 10);
+	}
+
+	@Test
+	void burstCoversAtLeastFourDatagrams() {
+		for (int i = 1; i <= 100; i++) {
+			controller.onLost(DATAGRAM_SIZE, start + i * TimeUnit.SECONDS.toNanos(1));
+		}
+
+		assertEquals(4L * DATAGRAM_SIZE, controller.maximumBurst());
+	}
+}
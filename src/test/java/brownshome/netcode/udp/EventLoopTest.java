@@ -0,0 +1,66 @@
+package brownshome.netcode.udp;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EventLoopTest {
+	private EventLoop loop;
+
+	@BeforeEach
+	void startLoop() throws Exception {
+		loop = new EventLoop("Test loop");
+	}
+
+	@AfterEach
+	void stopLoop() throws Exception {
+		loop.close();
+		loop.awaitTermination();
+	}
+
+	@Test
+	@Timeout(10)
+	void tasksRunInOrder() throws Exception {
+		var order = new StringBuilder();
+		var done = new CompletableFuture<String>();
+
+		for (int i = 0; i < 10; i++) {
+			int task = i;
+			loop.execute(() -> order.append(task));
+		}
+
+		loop.execute(() -> done.complete(order.toString()));
+
+		assertEquals("0123456789", done.get());
+	}
+
+	@Test
+	@Timeout(10)
+	void floodOfTasksDoesNotStarveTimers() throws Exception {
+		var timer = new TimerWheel(TimeUnit.MILLISECONDS.toNanos(1), 256);
+		var fired = new CompletableFuture<Void>();
+
+		// Each task submits another, so the task queue is never empty
+		Runnable flood = new Runnable() {
+			@Override
+			public void run() {
+				if (!fired.isDone()) {
+					loop.execute(this);
+				}
+			}
+		};
+
+		loop.addTimer(timer);
+		loop.execute(flood);
+		loop.execute(flood);
+		timer.schedule(() -> fired.complete(null), TimeUnit.MILLISECONDS.toNanos(5));
+
+		fired.get();
+	}
+}
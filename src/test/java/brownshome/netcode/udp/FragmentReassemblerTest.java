@@ -0,0 +1,149 @@
+package brownshome.netcode.udp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FragmentReassemblerTest {
+	private static final int FRAGMENT_SIZE = 100;
+	private static final long TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+
+	private TimerWheel timer;
+
+	@BeforeEach
+	void createTimer() {
+		timer = new TimerWheel(TimeUnit.MILLISECONDS.toNanos(1), 256);
+	}
+
+	private static ByteBuffer message(int size) {
+		var message = ByteBuffer.allocate(size);
+
+		for (int i = 0; i < size; i++) {
+			message.put((byte) i);
+		}
+
+		return message.flip();
+	}
+
+	private static ByteBuffer fragment(ByteBuffer message, int index) {
+		int offset = index * FRAGMENT_SIZE;
+		return message.slice(offset, Math.min(FRAGMENT_SIZE, message.limit() - offset));
+	}
+
+	/** Passes a fragment of a message to a reassembler, and returns what was done with it */
+	private static FragmentReassembler.Outcome receive(FragmentReassembler reassembler, int messageNumber, ByteBuffer message, int index) {
+		return reassembler.onFragmentReceived(messageNumber, message.limit(), FRAGMENT_SIZE, index, fragment(message, index)).outcome();
+	}
+
+	@Test
+	void reassemblesFragmentsInAnyOrder() {
+		var budget = new FragmentReassembler.Budget(1 << 20);
+		var reassembler = new FragmentReassembler(1 << 16, 1 << 20, budget, TIMEOUT, timer);
+		var message = message(250);
+
+		assertEquals(FragmentReassembler.Outcome.STORED, receive(reassembler, 7, message, 2));
+		assertEquals(FragmentReassembler.Outcome.STORED, receive(reassembler, 7, message, 0));
+		assertEquals(FragmentReassembler.Outcome.STORED, receive(reassembler, 7, message, 0));
+
+		var result = reassembler.onFragmentReceived(7, 250, FRAGMENT_SIZE, 1, fragment(message, 1));
+
+		assertEquals(FragmentReassembler.Outcome.COMPLETED, result.outcome());
+		assertEquals(message, result.message());
+		assertEquals(0, budget.bufferedBytes());
+	}
+
+	@Test
+	void onlyCountsReceivedFragments() {
+		var budget = new FragmentReassembler.Budget(1 << 20);
+		var reassembler = new FragmentReassembler(1 << 16, 1 << 20, budget, TIMEOUT, timer);
+		var message = message(FRAGMENT_SIZE * 600);
+
+		reassembler.onFragmentReceived(1, message.limit(), FRAGMENT_SIZE, 0, fragment(message, 0));
+
+		// One fragment, and the table of 600 fragments
+		assertTrue(budget.bufferedBytes() < FRAGMENT_SIZE * 600 / 4);
+	}
+
+	@Test
+	void sharedBudgetLimitsAllReassemblers() {
+		var budget = new FragmentReassembler.Budget(FRAGMENT_SIZE * 3);
+		var first = new FragmentReassembler(1 << 16, 1 << 20, budget, TIMEOUT, timer);
+		var second = new FragmentReassembler(1 << 16, 1 << 20, budget, TIMEOUT, timer);
+		var message = message(FRAGMENT_SIZE * 2);
+
+		assertEquals(FragmentReassembler.Outcome.STORED, receive(first, 1, message, 0));
+		assertEquals(FragmentReassembler.Outcome.STORED, receive(second, 1, message, 0));
+
+		// The budget is full, so the last fragment of the second message is refused
+		assertEquals(FragmentReassembler.Outcome.REFUSED, receive(second, 1, message, 1));
+
+		first.clear();
+		assertEquals(message, second.onFragmentReceived(1, message.limit(), FRAGMENT_SIZE, 1, fragment(message, 1)).message());
+		assertEquals(0, budget.bufferedBytes());
+	}
+
+	@Test
+	void rejectsMalformedFragments() {
+		var budget = new FragmentReassembler.Budget(1 << 20);
+		var reassembler = new FragmentReassembler(1 << 16, 1 << 20, budget, TIMEOUT, timer);
+		var message = message(250);
+
+		var malformed = FragmentReassembler.Outcome.MALFORMED;
+
+		assertEquals(malformed, reassembler.onFragmentReceived(1, 1 << 17, FRAGMENT_SIZE, 0, fragment(message, 0)).outcome());
+		assertEquals(malformed, reassembler.onFragmentReceived(1, 250, 1, 0, message.slice(0, 1)).outcome());
+		assertEquals(malformed, reassembler.onFragmentReceived(1, 250, FRAGMENT_SIZE, 3, fragment(message, 2)).outcome());
+		assertEquals(malformed, reassembler.onFragmentReceived(1, 250, FRAGMENT_SIZE, 0, fragment(message, 2)).outcome());
+
+		assertEquals(0, budget.bufferedBytes());
+	}
+
+	@Test
+	void messageArrivesOnceAnotherConnectionReleasesTheSharedBudget() throws InterruptedException {
+		long shortTimeout = TimeUnit.MILLISECONDS.toNanos(20);
+		var budget = new FragmentReassembler.Budget(FRAGMENT_SIZE * 8);
+		var flooding = new FragmentReassembler(1 << 16, 1 << 20, budget, shortTimeout, timer);
+		var honest = new FragmentReassembler(1 << 16, 1 << 20, budget, shortTimeout, timer);
+
+		// The first connection fills the budget with messages that it never finishes
+		var large = message(FRAGMENT_SIZE * 4);
+		for (int messageNumber = 0; receive(flooding, messageNumber, large, 0) == FragmentReassembler.Outcome.STORED; messageNumber++) { }
+
+		// Every fragment of the second connection's message is refused, and so not acknowledged
+		var message = message(FRAGMENT_SIZE * 2);
+		assertEquals(FragmentReassembler.Outcome.REFUSED, receive(honest, 1, message, 0));
+		assertEquals(FragmentReassembler.Outcome.REFUSED, receive(honest, 1, message, 1));
+
+		// The unfinished messages time out, and the sender's resends are stored
+		Thread.sleep(TimeUnit.NANOSECONDS.toMillis(shortTimeout) * 2);
+		timer.tick();
+
+		assertEquals(FragmentReassembler.Outcome.STORED, receive(honest, 1, message, 0));
+		var result = honest.onFragmentReceived(1, message.limit(), FRAGMENT_SIZE, 1, fragment(message, 1));
+
+		assertEquals(FragmentReassembler.Outcome.COMPLETED, result.outcome());
+		assertEquals(message, result.message());
+		assertEquals(0, budget.bufferedBytes());
+	}
+
+	@Test
+	void fragmentsOfDiscardedMessagesAreReported() throws InterruptedException {
+		long shortTimeout = TimeUnit.MILLISECONDS.toNanos(20);
+		var budget = new FragmentReassembler.Budget(1 << 20);
+		var reassembler = new FragmentReassembler(1 << 16, 1 << 20, budget, shortTimeout, timer);
+		var message = message(FRAGMENT_SIZE * 2);
+
+		assertEquals(FragmentReassembler.Outcome.STORED, receive(reassembler, 3, message, 0));
+
+		Thread.sleep(TimeUnit.NANOSECONDS.toMillis(shortTimeout) * 2);
+		timer.tick();
+
+		// The first fragment was acknowledged and will not be resent, so the message can't be completed
+		assertEquals(FragmentReassembler.Outcome.DISCARDED, receive(reassembler, 3, message, 1));
+		assertEquals(0, budget.bufferedBytes());
+	}
+}
@@ -0,0 +1,117 @@
+package brownshome.netcode.udp;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NioDatagramTransportTest {
+	private static final int SOCKET_BUFFER_SIZE = 1 << 16;
+
+	private NioDatagramTransport sender;
+	private NioDatagramTransport receiver;
+
+	@BeforeEach
+	void openTransports() throws Exception {
+		sender = new NioDatagramTransport(0, SOCKET_BUFFER_SIZE, false);
+		receiver = new NioDatagramTransport(0, SOCKET_BUFFER_SIZE, false);
+	}
+
+	@AfterEach
+	void closeTransports() throws Exception {
+		sender.close();
+		receiver.close();
+	}
+
+	private static InetSocketAddress loopback(DatagramTransport transport) {
+		return new InetSocketAddress(InetAddress.getLoopbackAddress(), transport.localPort());
+	}
+
+	private static ByteBuffer datagram(int value) {
+		return ByteBuffer.allocate(Integer.BYTES).putInt(value).flip();
+	}
+
+	@Test
+	void bindsToAFreePort() {
+		assertNotEquals(0, sender.localPort());
+		assertNotEquals(sender.localPort(), receiver.localPort());
+	}
+
+	@Test
+	@Timeout(10)
+	void receivesWhatWasSent() throws Exception {
+		var buffers = new ByteBuffer[] { ByteBuffer.allocate(64), ByteBuffer.allocate(64) };
+		var senders = new InetSocketAddress[2];
+
+		var data = datagram(42);
+		sender.send(data, loopback(receiver));
+		assertFalse(data.hasRemaining());
+
+		assertEquals(1, receiver.receive(buffers, senders));
+
+		assertEquals(Integer.BYTES, buffers[0].position());
+		assertEquals(42, buffers[0].getInt(0));
+		assertEquals(sender.localPort(), senders[0].getPort());
+		assertEquals(0, buffers[1].position());
+	}
+
+	@Test
+	@Timeout(10)
+	void datagramsAreReceivedInOrder() throws Exception {
+		int count = 8;
+
+		for (int i = 0; i < count; i++) {
+			sender.send(datagram(i), loopback(receiver));
+		}
+
+		var received = new ByteBuffer[] { ByteBuffer.allocate(64) };
+		var senders = new InetSocketAddress[1];
+
+		for (int i = 0; i < count; i++) {
+			received[0].clear();
+			assertEquals(1, receiver.receive(received, senders));
+			assertEquals(i, received[0].getInt(0));
+		}
+	}
+
+	@Test
+	@Timeout(10)
+	void closeUnblocksReceive() throws Exception {
+		var result = CompletableFuture.supplyAsync(() -> {
+			try {
+				receiver.receive(new ByteBuffer[] { ByteBuffer.allocate(64) }, new InetSocketAddress[1]);
+				return null;
+			} catch (Exception e) {
+				return e;
+			}
+		});
+
+		// Give the receiving thread time to block
+		Thread.sleep(100);
+		receiver.close();
+
+		assertTrue(result.get(5, TimeUnit.SECONDS) instanceof ClosedChannelException);
+	}
+
+	@Test
+	void reusedPortsCanBeShared() throws Exception {
+		try (var first = new NioDatagramTransport(0, SOCKET_BUFFER_SIZE, true)) {
+			if (!first.reusesPort()) {
+				return;
+			}
+
+			try (var second = new NioDatagramTransport(first.localPort(), SOCKET_BUFFER_SIZE, true)) {
+				assertEquals(first.localPort(), second.localPort());
+			}
+		}
+	}
+}
@@ -0,0 +1,263 @@
+package brownshome.netcode.udp;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import brownshome.netcode.Connection;
+import brownshome.netcode.Packet;
+import brownshome.netcode.Protocol;
+import brownshome.netcode.Schema;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PacketDispatcherTest {
+	private static final int DATAGRAM_SIZE = 1232;
+
+	/** The datagrams sent by each dispatcher, this stays well inside the window of sequence numbers */
+	private static final int DATAGRAMS = 1000;
+
+	private static final class TestSchema extends Schema {
+		TestSchema() {
+			super("Test", "brownshome.netcode.udp.Test", 1, 0, List.of(buffer -> {
+				throw new UnsupportedOperationException();
+			}));
+		}
+
+		@Override
+		public Schema withMinorVersion(int minorVersion) {
+			return this;
+		}
+	}
+
+	/** An unordered packet with a payload of zeros */
+	private static final class PaddingPacket extends Packet {
+		private final int size;
+		private final boolean reliable;
+
+		PaddingPacket(int size) {
+			this(size, false);
+		}
+
+		PaddingPacket(int size, boolean reliable) {
+			super(TestSchema.class, 0, List.of(), 1L, 0L);
+			this.size = size;
+			this.reliable = reliable;
+		}
+
+		@Override
+		public void handle(Connection<?, ?> connection, Schema schema) { }
+
+		@Override
+		public boolean reliable() {
+			return reliable;
+		}
+
+		@Override
+		public int priority() {
+			return 0;
+		}
+
+		@Override
+		public int minimumMinorVersion() {
+			return 0;
+		}
+
+		@Override
+		public void write(ByteBuffer buffer) {
+			for (int i = 0; i < size; i++) {
+				buffer.put((byte) 0);
+			}
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+
+	private static final class TestDispatcher extends PacketDispatcher {
+		private static final Protocol PROTOCOL = new Protocol(List.of(new TestSchema()));
+
+		int sent = 0;
+		int lastSize = 0;
+		boolean allDirect = true;
+
+		TestDispatcher() {
+			this(CompletableFuture.completedFuture(1L));
+		}
+
+		TestDispatcher(CompletableFuture<Long> remoteSalt) {
+			super(DATAGRAM_SIZE,
+					DATAGRAM_SIZE,
+					1024 * 1024,
+					remoteSalt,
+					// Fast enough that no datagram waits for bandwidth
+					new FixedRateCongestionController(1L << 40, 1L << 30),
+					new TimerWheel(TimeUnit.MILLISECONDS.toNanos(1), 256),
+					new BufferPool(DATAGRAM_SIZE, 4),
+					new UDPConnectionManager.AcknowledgementPolicy(2, Duration.ofMillis(5)));
+		}
+
+		@Override
+		Protocol protocol() {
+			return PROTOCOL;
+		}
+
+		@Override
+		Protocol udpLayerProtocol() {
+			return UDPConnection.UDP_PROTOCOL;
+		}
+
+		@Override
+		void sendBuffer(ByteBuffer buffer) {
+			allDirect &= buffer.isDirect();
+			lastSize = buffer.remaining();
+			sent++;
+		}
+
+		@Override
+		void onStandaloneAcknowledgement() { }
+	}
+
+	/**
+	 * Sends a message in each datagram, and acknowledges each datagram once it has been sent
+	 * @return the bytes allocated by this thread for each datagram
+	 */
+	private static double allocatedPerDatagram(int messageSize) {
+		var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		var dispatcher = new TestDispatcher();
+		var packet = new PaddingPacket(messageSize);
+
+		// The first datagram has sequence number zero
+		var acknowledgements = new Acknowledgement[DATAGRAMS];
+		for (int i = 0; i < DATAGRAMS; i++) {
+			acknowledgements[i] = new Acknowledgement(i, new long[] { 1L }, 0);
+		}
+
+		long start = threads.getCurrentThreadAllocatedBytes();
+
+		for (int i = 0; i < DATAGRAMS; i++) {
+			// Nothing else is queued, so each message is packed and sent before this returns
+			dispatcher.queueUnreliable(packet);
+			dispatcher.onAcknowledgementsReceived(acknowledgements[i]);
+		}
+
+		long allocated = threads.getCurrentThreadAllocatedBytes() - start;
+
+		assertEquals(DATAGRAMS, dispatcher.sent);
+		assertTrue(dispatcher.allDirect);
+
+		return (double) allocated / DATAGRAMS;
+	}
+
+	@Test
+	void sendingAllocatesOnlyTheQueueEntryAndResendTimer() {
+		// Warm up, so that the measured runs are compiled in the same way
+		for (int i = 0; i < 20; i++) {
+			allocatedPerDatagram(64);
+			allocatedPerDatagram(1024);
+		}
+
+		double small = allocatedPerDatagram(64);
+		double large = allocatedPerDatagram(1024);
+
+		// The queue entry, its deque node and the resend timer come to about 104 bytes. The datagram, its header and
+		// acknowledgement field are all reused, so anything more is a new allocation on the send path
+		assertTrue(small <= 128, "Each datagram allocated %.0f bytes".formatted(small));
+		assertTrue(large <= 128, "Each large datagram allocated %.0f bytes".formatted(large));
+	}
+
+	@Test
+	void nothingIsSentWhileMessageNumbersAreExhausted() {
+		var remoteSalt = new CompletableFuture<Long>();
+		var dispatcher = new TestDispatcher(remoteSalt);
+		var packet = new PaddingPacket(1, true);
+
+		// None of these are acknowledged, so they hold every message number. They are queued before the handshake, so
+		// that they are packed into full datagrams.
+		for (int i = 0; i < MessageNumberWindow.WINDOW_SIZE; i++) {
+			dispatcher.queuePacket(packet);
+		}
+
+		remoteSalt.complete(1L);
+
+		int sent = dispatcher.sent;
+		var waiting = dispatcher.queuePacket(packet);
+
+		assertEquals(sent, dispatcher.sent);
+		assertFalse(waiting.sent().isDone());
+		assertEquals(0, dispatcher.standaloneAcknowledgements());
+	}
+
+	@Test
+	void messagesQueuedBeforeAFailedHandshakeAreFailed() {
+		var remoteSalt = new CompletableFuture<Long>();
+		var dispatcher = new TestDispatcher(remoteSalt);
+		int dependents = remoteSalt.getNumberOfDependents();
+
+		var first = dispatcher.queuePacket(new PaddingPacket(8, true));
+		var second = dispatcher.queuePacket(new PaddingPacket(8, true));
+
+		// The dispatcher waits on the salt once, rather than once for each message
+		assertEquals(dependents, remoteSalt.getNumberOfDependents());
+
+		remoteSalt.completeExceptionally(new IllegalStateException());
+
+		assertEquals(0, dispatcher.sent);
+		assertTrue(first.sent().isCompletedExceptionally());
+		assertTrue(second.received().isCompletedExceptionally());
+	}
+
+	@Test
+	void messagesQueuedBeforeTheHandshakeAreSentOnceItCompletes() {
+		var remoteSalt = new CompletableFuture<Long>();
+		var dispatcher = new TestDispatcher(remoteSalt);
+
+		var result = dispatcher.queuePacket(new PaddingPacket(8, true));
+		assertEquals(0, dispatcher.sent);
+
+		remoteSalt.complete(1L);
+
+		assertEquals(1, dispatcher.sent);
+		assertTrue(result.sent().isDone());
+	}
+
+	@Test
+	void packetMixIsEncodedToKnownSizes() {
+		int dataPacketId = UDPConnection.UDP_PROTOCOL.computePacketID(
+				new UdpDataPacket(0, Acknowledgement.emptyAcknowledgement(), (short) 0, ByteBuffer.allocate(0)));
+
+		// A one byte ID, the hash and the sequence number, around an empty acknowledgement field of one byte
+		var field = new MutableAcknowledgement();
+		assertEquals(8, UDPPackets.dataHeaderSize(dataPacketId, field));
+
+		// A field that acknowledges a single datagram adds the oldest acknowledgement, a byte of bits and the delay
+		field.acknowledgements[0] = 1L;
+		field.words = 1;
+		assertEquals(12, UDPPackets.dataHeaderSize(dataPacketId, field));
+
+		// A movement message is an unordered unreliable message of eight bytes, after a one byte ID
+		var remoteSalt = new CompletableFuture<Long>();
+		var dispatcher = new TestDispatcher(remoteSalt);
+		var movement = new PaddingPacket(8);
+		assertEquals(9, dispatcher.encodedSize(movement));
+
+		// The messages are queued before the handshake, so that they are packed into one datagram after an
+		// acknowledgement of a single datagram
+		dispatcher.onSequenceNumberReceived(0, true);
+		for (int i = 0; i < 10; i++) {
+			dispatcher.queueUnreliable(movement);
+		}
+
+		remoteSalt.complete(1L);
+
+		assertEquals(1, dispatcher.sent);
+		assertEquals(12 + 10 * 9, dispatcher.lastSize);
+	}
+}
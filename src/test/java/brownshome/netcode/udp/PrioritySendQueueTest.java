@@ -0,0 +1,122 @@
+package brownshome.netcode.udp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PrioritySendQueueTest {
+	private record Message(int priority, int id) { }
+
+	private static PrioritySendQueue<Message> queue() {
+		return new PrioritySendQueue<>(Message::priority);
+	}
+
+	private static List<Message> drain(PrioritySendQueue<Message> queue) {
+		List<Message> messages = new ArrayList<>();
+
+		Message message;
+		while ((message = queue.poll()) != null) {
+			messages.add(message);
+		}
+
+		return messages;
+	}
+
+	@Test
+	void pollsHighestPriorityFirstAndInOrderWithinAPriority() {
+		var queue = queue();
+		assertTrue(queue.isEmpty());
+		assertNull(queue.poll());
+
+		queue.add(new Message(0, 0));
+		queue.add(new Message(5, 1));
+		queue.add(new Message(0, 2));
+		queue.add(new Message(2, 3));
+		queue.add(new Message(5, 4));
+
+		assertFalse(queue.isEmpty());
+		assertEquals(List.of(
+				new Message(5, 1),
+				new Message(5, 4),
+				new Message(2, 3),
+				new Message(0, 0),
+				new Message(0, 2)), drain(queue));
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	void returnedMessagesKeepTheirPlace() {
+		var queue = queue();
+
+		for (int i = 0; i < 4; i++) {
+			queue.add(new Message(1, i));
+		}
+
+		var first = queue.poll();
+		var second = queue.poll();
+		queue.add(new Message(1, 4));
+		queue.addAllFirst(List.of(first, second));
+
+		assertEquals(List.of(0, 1, 2, 3, 4), drain(queue).stream().map(Message::id).toList());
+	}
+
+	@Test
+	void rejectsNegativePriorities() {
+		assertThrows(IllegalArgumentException.class, () -> queue().add(new Message(-1, 0)));
+	}
+
+	@Test
+	@Timeout(30)
+	void concurrentProducersKeepTheirOrder() throws Exception {
+		int producers = 8;
+		int messagesPerProducer = 20_000;
+
+		var queue = queue();
+		var threads = Executors.newFixedThreadPool(producers);
+		var done = new CompletableFuture<?>[producers];
+
+		try {
+			for (int p = 0; p < producers; p++) {
+				int producer = p;
+				done[p] = CompletableFuture.runAsync(() -> {
+					for (int i = 0; i < messagesPerProducer; i++) {
+						int id = i * producers + producer;
+						queue.add(new Message(id % 3, id));
+					}
+				}, threads);
+			}
+
+			// The ids of each producer increase within each priority, so they must be polled in increasing order
+			var last = new int[producers][3];
+			for (var row : last) {
+				Arrays.fill(row, -1);
+			}
+
+			int polled = 0;
+			while (polled < producers * messagesPerProducer) {
+				var message = queue.poll();
+
+				if (message == null) {
+					Thread.onSpinWait();
+					continue;
+				}
+
+				int producer = message.id() % producers;
+				assertTrue(message.id() > last[producer][message.priority()]);
+				last[producer][message.priority()] = message.id();
+				polled++;
+			}
+
+			CompletableFuture.allOf(done).get();
+			assertTrue(queue.isEmpty());
+		} finally {
+			threads.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package brownshome.netcode.udp;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RoundTripTimeEstimatorTest {
+	private static long millis(double millis) {
+		return (long) (millis * 1_000_000);
+	}
+
+	@Test
+	void usesTheInitialTimeoutBeforeAnySample() {
+		var estimator = new RoundTripTimeEstimator();
+
+		assertEquals(millis(200), estimator.retransmissionTimeout(0));
+		assertEquals(Duration.ZERO, estimator.roundTripTime());
+	}
+
+	@Test
+	void firstSampleSetsTheVarianceToHalfTheRoundTrip() {
+		var estimator = new RoundTripTimeEstimator();
+		estimator.onSample(millis(50));
+
+		assertEquals(Duration.ofMillis(50), estimator.roundTripTime());
+		assertEquals(Duration.ofMillis(25), estimator.roundTripTimeVariance());
+
+		// The round trip, plus four times the variance
+		assertEquals(millis(150), estimator.retransmissionTimeout(0));
+	}
+
+	@Test
+	void laterSamplesAreSmoothed() {
+		var estimator = new RoundTripTimeEstimator();
+		estimator.onSample(millis(100));
+		estimator.onSample(millis(200));
+
+		assertEquals(millis(112.5), estimator.roundTripTime().toNanos());
+		assertEquals(millis(62.5), estimator.roundTripTimeVariance().toNanos());
+		assertEquals(millis(112.5 + 4 * 62.5), estimator.retransmissionTimeout(0));
+	}
+
+	@Test
+	void eachResendDoublesTheTimeoutUpToTheMaximum() {
+		var estimator = new RoundTripTimeEstimator();
+		estimator.onSample(millis(50));
+
+		assertEquals(millis(300), estimator.retransmissionTimeout(1));
+		assertEquals(millis(1200), estimator.retransmissionTimeout(3));
+		assertEquals(millis(2000), estimator.retransmissionTimeout(4));
+		assertEquals(millis(2000), estimator.retransmissionTimeout(100));
+	}
+
+	@Test
+	void shortRoundTripsUseTheMinimumTimeout() {
+		var estimator = new RoundTripTimeEstimator();
+
+		for (int i = 0; i < 100; i++) {
+			estimator.onSample(millis(1));
+		}
+
+		assertEquals(millis(10), estimator.retransmissionTimeout(0));
+	}
+
+	@Test
+	void stableRoundTripsKeepTheMinimumVarianceTerm() {
+		var estimator = new RoundTripTimeEstimator();
+
+		for (int i = 0; i < 100; i++) {
+			estimator.onSample(millis(30));
+		}
+
+		assertEquals(millis(32), estimator.retransmissionTimeout(0), millis(0.01));
+	}
+}
@@ -0,0 +1,232 @@
+package brownshome.netcode.udp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SequenceNumberPoolTest {
+	private static final long NEVER = TimeUnit.HOURS.toNanos(1);
+
+	private final List<Integer> acknowledgedSizes = new ArrayList<>();
+	private final List<Long> roundTrips = new ArrayList<>();
+
+	private TimerWheel timer;
+	private SequenceNumberPool pool;
+
+	@BeforeEach
+	void createPool() {
+		timer = new TimerWheel(TimeUnit.MILLISECONDS.toNanos(1), 256);
+		pool = new SequenceNumberPool((bytes, roundTripNanos, time) -> {
+			acknowledgedSizes.add(bytes);
+			roundTrips.add(roundTripNanos);
+		});
+	}
+
+	/** A datagram that completes a future when it is acknowledged, and fails it when the pool is closed */
+	static final class TestDatagram implements SequenceNumberPool.Datagram {
+		final CompletableFuture<Void> future;
+		int releases = 0;
+
+		TestDatagram(CompletableFuture<Void> future) {
+			this.future = future;
+		}
+
+		@Override
+		public void onAcknowledged() {
+			future.complete(null);
+		}
+
+		@Override
+		public void onClosed(Throwable reason) {
+			future.completeExceptionally(reason);
+		}
+
+		@Override
+		public void release() {
+			releases++;
+		}
+	}
+
+	/** Allocates and sends a sequence number, counting the runs of its resend timer */
+	private int send(CompletableFuture<Void> future, AtomicInteger resends) {
+		int sequenceNumber = pool.allocateSequenceNumber(new TestDatagram(future));
+		pool.onSent(sequenceNumber, 100 + sequenceNumber, System.nanoTime(), timer.schedule(resends::incrementAndGet, NEVER));
+		return sequenceNumber;
+	}
+
+	private static Acknowledgement acknowledge(int oldest, long bits) {
+		return new Acknowledgement(oldest, new long[] { bits }, 0);
+	}
+
+	@Test
+	void acknowledgementCompletesTheDatagram() {
+		var future = new CompletableFuture<Void>();
+		var resends = new AtomicInteger(0);
+		int sequenceNumber = send(future, resends);
+
+		pool.onAcknowledgementsReceived(acknowledge(sequenceNumber, 1L));
+
+		assertTrue(future.isDone());
+		assertEquals(List.of(100), acknowledgedSizes);
+		assertTrue(roundTrips.get(0) >= 0L);
+
+		// A repeated acknowledgement is not counted again
+		pool.onAcknowledgementsReceived(acknowledge(sequenceNumber, 1L));
+		assertEquals(1, acknowledgedSizes.size());
+		assertEquals(0, resends.get());
+	}
+
+	@Test
+	void resentDatagramsAreNotSampled() {
+		var future = new CompletableFuture<Void>();
+		int sequenceNumber = pool.allocateSequenceNumber(new TestDatagram(future));
+
+		pool.onSent(sequenceNumber, 100, System.nanoTime(), null);
+		pool.onSent(sequenceNumber, 100, System.nanoTime(), null);
+		pool.onAcknowledgementsReceived(acknowledge(sequenceNumber, 1L));
+
+		assertTrue(future.isDone());
+		assertEquals(List.of(-1L), roundTrips);
+	}
+
+	@Test
+	void onlyTheNewestAcknowledgementIsSampled() {
+		var resends = new AtomicInteger(0);
+		int first = send(new CompletableFuture<>(), resends);
+		send(new CompletableFuture<>(), resends);
+
+		pool.onAcknowledgementsReceived(acknowledge(first, 0b11L));
+
+		assertEquals(-1L, (long) roundTrips.get(0));
+		assertTrue(roundTrips.get(1) >= 0L);
+	}
+
+	@Test
+	void datagramsBehindTheLossThresholdAreResent() {
+		var lost = new AtomicInteger(0);
+		var kept = new AtomicInteger(0);
+
+		int first = send(new CompletableFuture<>(), lost);
+		for (int i = 1; i < SequenceNumberPool.LOSS_THRESHOLD; i++) {
+			send(new CompletableFuture<>(), kept);
+		}
+
+		int newest = send(new CompletableFuture<>(), new AtomicInteger(0));
+
+		// Only the sequence number that is a full threshold behind the acknowledgement is lost
+		pool.onAcknowledgementsReceived(acknowledge(newest, 1L));
+		assertEquals(1, lost.get());
+		assertEquals(0, kept.get());
+		assertEquals(SequenceNumberPool.LOSS_THRESHOLD, newest - first);
+	}
+
+	@Test
+	void datagramsLeavingTheWindowAreResent() {
+		var resends = new AtomicInteger(0);
+		var future = new CompletableFuture<Void>();
+		int first = send(future, resends);
+
+		for (int i = 1; i < SequenceNumberPool.WINDOW; i++) {
+			pool.allocateSequenceNumber(null);
+		}
+
+		assertEquals(0, resends.get());
+
+		pool.allocateSequenceNumber(null);
+		assertEquals(1, resends.get());
+
+		// The acknowledgement is too late to count
+		pool.onAcknowledgementsReceived(acknowledge(first, 1L));
+		assertFalse(future.isDone());
+	}
+
+	@Test
+	void resendTimersAreRunOutsideTheLock() {
+		var runs = new AtomicInteger(0);
+		var heldLock = new AtomicInteger(0);
+		Runnable resend = () -> {
+			runs.incrementAndGet();
+
+			if (Thread.holdsLock(pool)) {
+				heldLock.incrementAndGet();
+			}
+		};
+
+		// Lost behind the loss threshold
+		int first = pool.allocateSequenceNumber(new TestDatagram(new CompletableFuture<>()));
+		pool.onSent(first, 100, System.nanoTime(), timer.schedule(resend, NEVER));
+		int newest = send(new CompletableFuture<>(), new AtomicInteger(0));
+		for (int i = 1; i < SequenceNumberPool.LOSS_THRESHOLD; i++) {
+			newest = send(new CompletableFuture<>(), new AtomicInteger(0));
+		}
+
+		pool.onAcknowledgementsReceived(acknowledge(newest, 1L));
+
+		// Lost by leaving the window
+		int leaving = pool.allocateSequenceNumber(new TestDatagram(new CompletableFuture<>()));
+		pool.onSent(leaving, 100, System.nanoTime(), timer.schedule(resend, NEVER));
+		for (int i = 0; i < SequenceNumberPool.WINDOW; i++) {
+			pool.allocateSequenceNumber(null);
+		}
+
+		// Sent after leaving the window
+		pool.onSent(leaving, 100, System.nanoTime(), timer.schedule(resend, NEVER));
+
+		assertEquals(3, runs.get());
+		assertEquals(0, heldLock.get());
+	}
+
+	@Test
+	void datagramsAreReleasedOnceWhenTheyLeaveThePool() {
+		var acknowledged = new TestDatagram(new CompletableFuture<>());
+		var lost = new TestDatagram(new CompletableFuture<>());
+		var closed = new TestDatagram(new CompletableFuture<>());
+
+		int sequenceNumber = pool.allocateSequenceNumber(acknowledged);
+		pool.onSent(sequenceNumber, 100, System.nanoTime(), null);
+		pool.onAcknowledgementsReceived(acknowledge(sequenceNumber, 1L));
+		pool.onAcknowledgementsReceived(acknowledge(sequenceNumber, 1L));
+
+		pool.allocateSequenceNumber(lost);
+		for (int i = 0; i < SequenceNumberPool.WINDOW; i++) {
+			pool.allocateSequenceNumber(null);
+		}
+
+		pool.allocateSequenceNumber(closed);
+		assertEquals(0, closed.releases);
+		pool.close(new IllegalStateException());
+
+		assertEquals(1, acknowledged.releases);
+		assertEquals(1, lost.releases);
+		assertEquals(1, closed.releases);
+		assertFalse(lost.future.isDone());
+		assertTrue(closed.future.isCompletedExceptionally());
+	}
+
+	@Test
+	void truncatedSequenceNumbersAreExpandedNearTheReference() {
+		assertEquals(70_000, SequenceNumberPool.expand(70_000 & 0xffff, 69_000));
+		assertEquals(70_000, SequenceNumberPool.expand(70_000 & 0xffff, 71_000));
+		assertEquals(Integer.MIN_VALUE + 5, SequenceNumberPool.expand(5, Integer.MAX_VALUE - 5));
+		assertEquals(Integer.MAX_VALUE - 5, SequenceNumberPool.expand(0xfffa, Integer.MIN_VALUE + 5));
+	}
+
+	@Test
+	void closeFailsOutstandingFutures() {
+		var future = new CompletableFuture<Void>();
+		var resends = new AtomicInteger(0);
+		send(future, resends);
+
+		pool.close(new IllegalStateException());
+
+		assertTrue(future.isCompletedExceptionally());
+		assertEquals(0, resends.get());
+	}
+}
@@ -0,0 +1,80 @@
+package brownshome.netcode.udp;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StatelessHandshakeTest {
+	private static final long BUCKET = StatelessHandshake.BUCKET_LENGTH;
+	private static final long SALT = 0x1234_5678_9abc_def0L;
+
+	private InetSocketAddress client;
+	private long start;
+	private StatelessHandshake handshake;
+
+	@BeforeEach
+	void createHandshake() throws Exception {
+		client = new InetSocketAddress(InetAddress.getByName("192.0.2.1"), 5000);
+
+		// The handshake's buckets start just after this, so times half way through a bucket fall in the expected one
+		start = System.nanoTime();
+		handshake = new StatelessHandshake();
+	}
+
+	/** A time half way through a bucket */
+	private long inBucket(long bucket) {
+		return start + bucket * BUCKET + BUCKET / 2;
+	}
+
+	@Test
+	void acceptsCookieInTheBucketItWasIssued() {
+		long cookie = handshake.cookie(client, SALT, inBucket(0));
+
+		assertTrue(handshake.isValid(client, SALT, cookie, inBucket(0)));
+		assertTrue(handshake.isValid(client, SALT, handshake.cookie(client, SALT)));
+	}
+
+	@Test
+	void acceptsCookieInTheNextBucket() {
+		long cookie = handshake.cookie(client, SALT, inBucket(4));
+
+		assertTrue(handshake.isValid(client, SALT, cookie, inBucket(5)));
+	}
+
+	@Test
+	void rejectsExpiredCookie() {
+		long cookie = handshake.cookie(client, SALT, inBucket(4));
+
+		assertFalse(handshake.isValid(client, SALT, cookie, inBucket(6)));
+	}
+
+	@Test
+	void rejectsCookieFromTheFuture() {
+		long cookie = handshake.cookie(client, SALT, inBucket(5));
+
+		assertFalse(handshake.isValid(client, SALT, cookie, inBucket(4)));
+	}
+
+	@Test
+	void rejectsCookieForAnotherClient() throws Exception {
+		long cookie = handshake.cookie(client, SALT, inBucket(0));
+
+		var otherPort = new InetSocketAddress(client.getAddress(), client.getPort() + 1);
+		var otherAddress = new InetSocketAddress(InetAddress.getByName("192.0.2.2"), client.getPort());
+
+		assertFalse(handshake.isValid(otherPort, SALT, cookie, inBucket(0)));
+		assertFalse(handshake.isValid(otherAddress, SALT, cookie, inBucket(0)));
+		assertFalse(handshake.isValid(client, SALT + 1, cookie, inBucket(0)));
+	}
+
+	@Test
+	void rejectsCookieFromAnotherHandshake() {
+		long cookie = new StatelessHandshake().cookie(client, SALT);
+
+		assertFalse(handshake.isValid(client, SALT, cookie));
+	}
+}
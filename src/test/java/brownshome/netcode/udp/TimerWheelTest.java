@@ -0,0 +1,104 @@
+package brownshome.netcode.udp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimerWheelTest {
+	private static final long TICK = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/** Ticks the wheel until the condition holds */
+	private static void tickUntil(TimerWheel wheel, BooleanSupplier condition) throws InterruptedException {
+		while (!condition.getAsBoolean()) {
+			wheel.tick();
+			Thread.sleep(0, 100_000);
+		}
+	}
+
+	@Test
+	@Timeout(10)
+	void tasksAreNeverRunEarly() throws Exception {
+		var wheel = new TimerWheel(TICK, 256);
+		List<Long> lateness = new ArrayList<>();
+
+		for (long delay = 0; delay <= TimeUnit.MILLISECONDS.toNanos(20); delay += TimeUnit.MILLISECONDS.toNanos(5)) {
+			long deadline = System.nanoTime() + delay;
+			wheel.schedule(() -> lateness.add(System.nanoTime() - deadline), delay);
+		}
+
+		tickUntil(wheel, () -> lateness.size() == 5);
+
+		for (long late : lateness) {
+			assertTrue(late >= 0, "A task ran " + -late + "ns early");
+		}
+	}
+
+	@Test
+	@Timeout(10)
+	void delaysLongerThanTheWheelWaitForLaterRounds() throws Exception {
+		// A wheel of 8 ticks, so this timeout wraps around it several times
+		var wheel = new TimerWheel(TICK, 8);
+		long delay = TimeUnit.MILLISECONDS.toNanos(30);
+		long deadline = System.nanoTime() + delay;
+		var ranAt = new long[1];
+
+		wheel.schedule(() -> ranAt[0] = System.nanoTime(), delay);
+		tickUntil(wheel, () -> ranAt[0] != 0);
+
+		assertTrue(ranAt[0] >= deadline);
+	}
+
+	@Test
+	@Timeout(10)
+	void cancelledTasksAreNotRun() throws Exception {
+		var wheel = new TimerWheel(TICK, 256);
+		var ran = new AtomicInteger(0);
+		var done = new AtomicInteger(0);
+
+		var timeout = wheel.schedule(ran::incrementAndGet, TimeUnit.MILLISECONDS.toNanos(2));
+		wheel.schedule(done::incrementAndGet, TimeUnit.MILLISECONDS.toNanos(5));
+
+		assertTrue(timeout.cancel());
+		assertFalse(timeout.cancel());
+
+		tickUntil(wheel, () -> done.get() == 1);
+		assertEquals(0, ran.get());
+	}
+
+	@Test
+	@Timeout(10)
+	void tasksRunNowAreNotRunAgain() throws Exception {
+		var wheel = new TimerWheel(TICK, 256);
+		var ran = new AtomicInteger(0);
+		var done = new AtomicInteger(0);
+
+		var timeout = wheel.schedule(ran::incrementAndGet, TimeUnit.MILLISECONDS.toNanos(2));
+		wheel.schedule(done::incrementAndGet, TimeUnit.MILLISECONDS.toNanos(5));
+
+		assertTrue(timeout.runNow());
+		assertFalse(timeout.runNow());
+		assertFalse(timeout.cancel());
+
+		tickUntil(wheel, () -> done.get() == 1);
+		assertEquals(1, ran.get());
+	}
+
+	@Test
+	@Timeout(10)
+	void throwingTaskDoesNotStopOtherTasks() throws Exception {
+		var wheel = new TimerWheel(TICK, 256);
+		var ran = new AtomicInteger(0);
+
+		wheel.schedule(() -> { throw new IllegalStateException("Test failure"); }, TICK);
+		wheel.schedule(ran::incrementAndGet, TICK);
+
+		tickUntil(wheel, () -> ran.get() == 1);
+	}
+}
@@ -0,0 +1,100 @@
+package brownshome.netcode.udp;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UDPConnectionManagerTest {
+	private static final Duration KEEPALIVE_INTERVAL = Duration.ofMillis(10);
+
+	private UDPConnectionManager manager;
+
+	@BeforeEach
+	void createManager() throws Exception {
+		manager = new UDPConnectionManager(List.of(), 0) {
+			@Override
+			public Duration keepaliveInterval() {
+				return KEEPALIVE_INTERVAL;
+			}
+
+			@Override
+			public int maximumConnections() {
+				return 1;
+			}
+		};
+	}
+
+	@AfterEach
+	void closeManager() throws Exception {
+		manager.close();
+	}
+
+	/** A client address, nothing listens there so the datagrams sent to it are dropped */
+	private static InetSocketAddress client(int port) {
+		return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+	}
+
+	/** Counts the pending timeouts on the manager's wheel, from a task on the thread that ticks it */
+	private int pendingTimeouts() throws Exception {
+		var count = new CompletableFuture<Integer>();
+		manager.timer().schedule(() -> count.complete(manager.timer().pendingTimeouts()), 0L);
+
+		return count.get(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	@Timeout(10)
+	void evictedConnectionsLeaveNoTimers() throws Exception {
+		// The manager's sweeps are always scheduled
+		int baseline = pendingTimeouts();
+
+		var connection = manager.getOrCreateConnection(client(9));
+		connection.receiveConnectPacket(42L);
+
+		// Let the keepalive run several times
+		Thread.sleep(KEEPALIVE_INTERVAL.toMillis() * 5);
+		assertTrue(pendingTimeouts() > baseline);
+
+		connection.evict();
+
+		// Anything that was running as the connection was released has finished by now
+		Thread.sleep(KEEPALIVE_INTERVAL.toMillis() * 5);
+		assertEquals(baseline, pendingTimeouts());
+	}
+
+	@Test
+	void waitingClientsAreAdmittedInOrder() {
+		var first = manager.admitConnection(client(1001));
+		assertNotNull(first);
+
+		assertNull(manager.admitConnection(client(1002)));
+		assertNull(manager.admitConnection(client(1003)));
+		assertEquals(2, manager.pendingConnections());
+
+		manager.dropConnection(first);
+		first.evict();
+
+		// There is space for one client, and the client that has waited longest gets it
+		assertNull(manager.admitConnection(client(1003)));
+
+		var second = manager.admitConnection(client(1002));
+		assertNotNull(second);
+		assertEquals(client(1002), second.address());
+		assertEquals(1, manager.pendingConnections());
+
+		assertNull(manager.admitConnection(client(1003)));
+
+		// Nothing answers at the client's address, so the connection can't be closed cleanly
+		second.evict();
+	}
+}
@@ -0,0 +1,77 @@
+package brownshome.netcode.udp;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import org.junit.jupiter.api.Test;
+
+import brownshome.netcode.NetworkUtils;
+import brownshome.netcode.Packet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UDPPacketsTest {
+	private static final long SALT = 0x1234_5678_9abc_def0L;
+
+	/** Encodes a packet after its ID, as the dispatcher does */
+	private static ByteBuffer encode(Packet packet) {
+		int id = UDPConnection.UDP_PROTOCOL.computePacketID(packet);
+		var buffer = ByteBuffer.allocate(NetworkUtils.calculateVarIntSize(id) + packet.size());
+
+		NetworkUtils.writeVarInt(buffer, id);
+		packet.write(buffer);
+
+		return buffer.flip();
+	}
+
+	private static MutableAcknowledgement acknowledgementField() {
+		var field = new MutableAcknowledgement();
+		field.oldestAcknowledgement = 1000;
+		field.acknowledgements[0] = 0x8000_0000_0000_0003L;
+		field.acknowledgements[1] = -1L;
+		field.words = 2;
+		field.delayMicros = 250;
+
+		return field;
+	}
+
+	@Test
+	void dataHeaderIsEncodedAsTheDataPacket() {
+		var field = acknowledgementField();
+		var messages = ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5 });
+		short sequenceNumber = 1234;
+
+		int hash = UDPPackets.hashDataPacket(new CRC32(), SALT, field, sequenceNumber, messages);
+		assertEquals(0, messages.position());
+		assertEquals(UDPPackets.hashDataPacket(SALT, field.toAcknowledgement(), sequenceNumber, messages.duplicate()), hash);
+
+		var expected = encode(new UdpDataPacket(hash, field.toAcknowledgement(), sequenceNumber, messages.duplicate()));
+
+		int id = UDPConnection.UDP_PROTOCOL.computePacketID(new UdpDataPacket(0, Acknowledgement.emptyAcknowledgement(), (short) 0, ByteBuffer.allocate(0)));
+		var actual = ByteBuffer.allocate(UDPPackets.dataHeaderSize(id, field) + messages.remaining());
+		UDPPackets.writeDataHeader(actual, id, hash, field, sequenceNumber);
+		actual.put(messages.duplicate()).flip();
+
+		assertEquals(expected, actual);
+	}
+
+	@Test
+	void fragmentHeaderIsEncodedAsTheFragmentPacket() {
+		var field = acknowledgementField();
+		var data = ByteBuffer.wrap(new byte[] { 9, 8, 7 });
+		short sequenceNumber = -5;
+
+		int hash = UDPPackets.hashFragmentPacket(new CRC32(), SALT, field, sequenceNumber, 17, 1203, 600, 2, data);
+		assertEquals(0, data.position());
+		assertEquals(UDPPackets.hashFragmentPacket(SALT, field.toAcknowledgement(), sequenceNumber, 17, 1203, 600, 2, data.duplicate()), hash);
+
+		var expected = encode(new UdpFragmentPacket(hash, field.toAcknowledgement(), sequenceNumber, 17, 1203, 600, 2, data.duplicate()));
+
+		int id = UDPConnection.UDP_PROTOCOL.computePacketID(new UdpFragmentPacket(0, Acknowledgement.emptyAcknowledgement(), (short) 0, 0, 0, 0, 0, ByteBuffer.allocate(0)));
+		var actual = ByteBuffer.allocate(UDPPackets.fragmentHeaderSize(id, field) + data.remaining());
+		UDPPackets.writeFragmentHeader(actual, id, hash, field, sequenceNumber, 17, 1203, 600, 2);
+		actual.put(data.duplicate()).flip();
+
+		assertEquals(expected, actual);
+	}
+}
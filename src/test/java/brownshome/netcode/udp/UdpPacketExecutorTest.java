@@ -0,0 +1,181 @@
+package brownshome.netcode.udp;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import brownshome.netcode.Connection;
+import brownshome.netcode.Packet;
+import brownshome.netcode.Schema;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UdpPacketExecutorTest {
+	/** Long enough for a message that was wrongly released to have started */
+	private static final long SETTLE_MILLIS = 100;
+
+	/** A packet that runs a handler, it is in the UDP schema so that the connection's protocol can handle it */
+	private static final class HandlerPacket extends Packet {
+		private final boolean reliable;
+		private final Runnable handler;
+
+		HandlerPacket(int type, long orderingMask, boolean reliable, Runnable handler) {
+			super(UdpSchema.class, 0, List.of(), 1L << type, orderingMask);
+
+			this.reliable = reliable;
+			this.handler = handler;
+		}
+
+		@Override
+		public void handle(Connection<?, ?> connection, Schema schema) {
+			handler.run();
+		}
+
+		@Override
+		public boolean reliable() {
+			return reliable;
+		}
+
+		@Override
+		public int priority() {
+			return 0;
+		}
+
+		@Override
+		public int minimumMinorVersion() {
+			return 0;
+		}
+
+		@Override
+		public void write(ByteBuffer buffer) { }
+
+		@Override
+		public int size() {
+			return 0;
+		}
+	}
+
+	private ExecutorService handlers;
+	private ExecutorService shard;
+	private UDPConnectionManager manager;
+	private UDPConnection connection;
+	private UdpPacketExecutor executor;
+
+	@BeforeEach
+	void createExecutor() throws Exception {
+		// Handlers must be able to run at once, or a blocked handler would hold back the others whatever their order
+		handlers = Executors.newCachedThreadPool();
+		shard = Executors.newSingleThreadExecutor();
+
+		manager = new UDPConnectionManager(List.of()) {
+			@Override
+			public ExecutorService executorService(Class<? extends Packet> type) {
+				return handlers;
+			}
+		};
+
+		connection = manager.getOrCreateConnection(new InetSocketAddress(InetAddress.getLoopbackAddress(), 9));
+		executor = new UdpPacketExecutor(connection, shard, () -> fail("The executor overflowed"));
+	}
+
+	@AfterEach
+	void closeExecutor() throws Exception {
+		// Nothing answers at the connection's address, so it can't be closed cleanly
+		connection.evict();
+		manager.close();
+
+		shard.shutdownNow();
+		handlers.shutdownNow();
+	}
+
+	/** Passes messages to the executor from the shard's thread */
+	private void execute(Packet packet, MessageOrder order) throws Exception {
+		shard.submit(() -> executor.execute(packet, order)).get();
+	}
+
+	@Test
+	@Timeout(10)
+	void unreliableMessagesOfATypeDoNotOverlap() throws Exception {
+		var release = new CompletableFuture<Void>();
+		var firstStarted = new CompletableFuture<Void>();
+		var secondStarted = new CompletableFuture<Void>();
+
+		// An unreliable message ordered by its own type, the sender does not count unreliable messages
+		var order = new MessageOrder(0, new int[] { 0 });
+
+		execute(new HandlerPacket(3, 1L << 3, false, () -> {
+			firstStarted.complete(null);
+			release.join();
+		}), order);
+		execute(new HandlerPacket(3, 1L << 3, false, () -> secondStarted.complete(null)), order);
+
+		firstStarted.get(5, TimeUnit.SECONDS);
+		Thread.sleep(SETTLE_MILLIS);
+		assertFalse(secondStarted.isDone());
+
+		release.complete(null);
+		secondStarted.get(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	@Timeout(10)
+	void unorderedUnreliableMessagesRunTogether() throws Exception {
+		var release = new CompletableFuture<Void>();
+		var firstStarted = new CompletableFuture<Void>();
+		var secondStarted = new CompletableFuture<Void>();
+
+		execute(new HandlerPacket(3, 0L, false, () -> {
+			firstStarted.complete(null);
+			release.join();
+		}), MessageOrder.NONE);
+		execute(new HandlerPacket(3, 0L, false, () -> secondStarted.complete(null)), MessageOrder.NONE);
+
+		firstStarted.get(5, TimeUnit.SECONDS);
+		secondStarted.get(5, TimeUnit.SECONDS);
+		release.complete(null);
+	}
+
+	@Test
+	@Timeout(10)
+	void messagesWaitForOlderMessagesThatFinishLate() throws Exception {
+		// More than a word of messages finish ahead of the first one
+		int count = 100;
+
+		var release = new CompletableFuture<Void>();
+		var finished = new ArrayList<CompletableFuture<Void>>();
+		var waiterStarted = new CompletableFuture<Void>();
+
+		// The type is not ordered by itself, so its messages run together and may finish in any order
+		for (int ordinal = 0; ordinal < count; ordinal++) {
+			var done = new CompletableFuture<Void>();
+			finished.add(done);
+
+			boolean blocks = ordinal == 0;
+			execute(new HandlerPacket(1, 0L, true, () -> {
+				if (blocks) {
+					release.join();
+				}
+
+				done.complete(null);
+			}), new MessageOrder(ordinal, new int[0]));
+		}
+
+		execute(new HandlerPacket(2, 1L << 1, true, () -> waiterStarted.complete(null)),
+				new MessageOrder(0, new int[] { count }));
+
+		CompletableFuture.allOf(finished.subList(1, count).toArray(CompletableFuture<?>[]::new)).get(5, TimeUnit.SECONDS);
+		Thread.sleep(SETTLE_MILLIS);
+		assertFalse(waiterStarted.isDone());
+
+		release.complete(null);
+		waiterStarted.get(5, TimeUnit.SECONDS);
+	}
+}
@@ -0,0 +1,324 @@
+package brownshome.netcode.util;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import brownshome.netcode.Connection;
+import brownshome.netcode.Packet;
+import brownshome.netcode.Schema;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TypeMaskPacketQueueTest {
+	private static final int TYPES = 4;
+
+	/** A packet of a single type, ordered by its own type unless other masks are given */
+	private static final class TypePacket extends Packet {
+		TypePacket(int type) {
+			this(1L << type % Long.SIZE, 1L << type % Long.SIZE);
+		}
+
+		TypePacket(long typeMask, long orderingMask) {
+			super(Schema.class, 0, List.of(), typeMask, orderingMask);
+		}
+
+		@Override
+		public void handle(Connection<?, ?> connection, Schema schema) { }
+
+		@Override
+		public boolean reliable() {
+			return true;
+		}
+
+		@Override
+		public int priority() {
+			return 0;
+		}
+
+		@Override
+		public int minimumMinorVersion() {
+			return 0;
+		}
+
+		@Override
+		public void write(ByteBuffer buffer) { }
+
+		@Override
+		public int size() {
+			return 0;
+		}
+	}
+
+	/** The futures of a queued packet, the finishing futures are completed by the test */
+	private static final class Queued {
+		final CompletableFuture<Void> start = new CompletableFuture<>();
+		final CompletableFuture<Void> typeFinished = new CompletableFuture<>();
+		final CompletableFuture<Void> finished = new CompletableFuture<>();
+
+		Queued(TypeMaskPacketQueue queue, Packet packet) {
+			queue.schedule(packet, start, typeFinished, finished);
+		}
+
+		void finish() {
+			typeFinished.complete(null);
+			finished.complete(null);
+		}
+	}
+
+	@Test
+	void packetsWaitForOlderPacketsOfTheirOrderingTypes() {
+		var queue = new TypeMaskPacketQueue();
+
+		var first = new Queued(queue, new TypePacket(0));
+		var unrelated = new Queued(queue, new TypePacket(1));
+		var second = new Queued(queue, new TypePacket(0));
+		var both = new Queued(queue, new TypePacket(1L << 2, 0b11L));
+
+		assertTrue(first.start.isDone());
+		assertTrue(unrelated.start.isDone());
+		assertFalse(second.start.isDone());
+		assertFalse(both.start.isDone());
+
+		first.finish();
+		assertTrue(second.start.isDone());
+		assertFalse(both.start.isDone());
+
+		unrelated.finish();
+		assertFalse(both.start.isDone());
+
+		second.finish();
+		assertTrue(both.start.isDone());
+	}
+
+	@Test
+	void packetsSharingABitAreOrderedAsOneType() {
+		var queue = new TypeMaskPacketQueue();
+
+		// Packets with the same ID in different schemas, or 64 IDs apart in one schema, are given the same bit
+		var first = new Queued(queue, new TypePacket(0));
+		var aliased = new Queued(queue, new TypePacket(Long.SIZE));
+		var second = new Queued(queue, new TypePacket(0));
+
+		assertTrue(first.start.isDone());
+		assertFalse(aliased.start.isDone());
+
+		first.finish();
+		assertTrue(aliased.start.isDone());
+		assertFalse(second.start.isDone());
+
+		aliased.finish();
+		assertTrue(second.start.isDone());
+	}
+
+	@Test
+	void typeFinishedReleasesPacketsBeforeFlushes() {
+		var queue = new TypeMaskPacketQueue();
+
+		var first = new Queued(queue, new TypePacket(0));
+		var flush = queue.flush();
+		var second = new Queued(queue, new TypePacket(0));
+
+		first.typeFinished.complete(null);
+		assertTrue(second.start.isDone());
+		assertFalse(flush.isDone());
+
+		first.finished.complete(null);
+		assertTrue(flush.isDone());
+	}
+
+	@Test
+	void flushOnlyWaitsForOlderPackets() {
+		var queue = new TypeMaskPacketQueue();
+
+		assertTrue(queue.flush().isDone());
+
+		var older = new Queued(queue, new TypePacket(0));
+		var flush = queue.flush();
+		var newer = new Queued(queue, new TypePacket(1));
+
+		assertTrue(newer.start.isDone());
+		assertFalse(flush.isDone());
+
+		older.finish();
+		assertTrue(flush.isDone());
+		assertFalse(newer.finished.isDone());
+	}
+
+	@Test
+	void barrierRunsAloneBetweenOlderAndNewerPackets() {
+		var queue = new TypeMaskPacketQueue();
+		var barrierStarted = new CompletableFuture<Void>();
+		var barrierFinished = new CompletableFuture<Void>();
+
+		var older = new Queued(queue, new TypePacket(0));
+		var barrier = queue.barrier(start -> start.thenCompose(unused -> {
+			barrierStarted.complete(null);
+			return barrierFinished;
+		}));
+		var newer = new Queued(queue, new TypePacket(1));
+		var flush = queue.flush();
+
+		assertFalse(barrierStarted.isDone());
+		assertFalse(newer.start.isDone());
+
+		older.finish();
+		assertTrue(barrierStarted.isDone());
+		assertFalse(newer.start.isDone());
+
+		barrierFinished.complete(null);
+		assertTrue(barrier.isDone());
+		assertTrue(newer.start.isDone());
+		assertFalse(flush.isDone());
+
+		newer.finish();
+		assertTrue(flush.isDone());
+	}
+
+	@Test
+	void waitHoldsBackNewerPacketsAndFlushes() {
+		var queue = new TypeMaskPacketQueue();
+		var wait = new CompletableFuture<Void>();
+
+		var older = new Queued(queue, new TypePacket(0));
+		queue.wait(wait);
+		var newer = new Queued(queue, new TypePacket(1));
+		var flush = queue.flush();
+
+		assertTrue(older.start.isDone());
+		assertFalse(newer.start.isDone());
+
+		older.finish();
+		assertFalse(newer.start.isDone());
+
+		// A failed wait still releases the queue
+		wait.completeExceptionally(new IllegalStateException());
+		assertTrue(newer.start.isDone());
+
+		newer.finish();
+		assertTrue(flush.isDone());
+	}
+
+	@Test
+	@Timeout(60)
+	void concurrentProducersKeepTypeOrder() throws Exception {
+		int producers = 16;
+		int packetsPerProducer = 5_000;
+
+		var queue = new TypeMaskPacketQueue();
+		var handlers = Executors.newFixedThreadPool(8);
+		var running = new AtomicInteger[TYPES];
+		var violations = new AtomicInteger(0);
+		var started = new AtomicInteger(0);
+
+		for (int type = 0; type < TYPES; type++) {
+			running[type] = new AtomicInteger(0);
+		}
+
+		// The index of the last packet of each type that each producer has seen started
+		var lastStarted = new int[producers][TYPES];
+
+		var startLine = new CountDownLatch(1);
+		var threads = Executors.newFixedThreadPool(producers);
+		var done = new CompletableFuture<?>[producers];
+
+		try {
+			for (int p = 0; p < producers; p++) {
+				int producer = p;
+				done[p] = CompletableFuture.runAsync(() -> {
+					try {
+						startLine.await();
+					} catch (InterruptedException e) {
+						throw new CompletionException(e);
+					}
+
+					for (int i = 0; i < packetsPerProducer; i++) {
+						int type = i % TYPES;
+						int index = i;
+						var start = new CompletableFuture<Void>();
+						var finished = new CompletableFuture<Void>();
+
+						start.thenRunAsync(() -> {
+							if (running[type].getAndIncrement() != 0) {
+								violations.incrementAndGet();
+							}
+
+							synchronized (lastStarted[producer]) {
+								if (lastStarted[producer][type] > index) {
+									violations.incrementAndGet();
+								}
+
+								lastStarted[producer][type] = index;
+							}
+
+							started.incrementAndGet();
+							running[type].decrementAndGet();
+							finished.complete(null);
+						}, handlers);
+
+						queue.schedule(new TypePacket(type), start, finished, finished);
+					}
+				}, threads);
+			}
+
+			startLine.countDown();
+			CompletableFuture.allOf(done).get();
+
+			queue.flush().get(30, TimeUnit.SECONDS);
+
+			assertEquals(producers * packetsPerProducer, started.get());
+			assertEquals(0, violations.get());
+		} finally {
+			threads.shutdownNow();
+			handlers.shutdownNow();
+		}
+	}
+
+	@Test
+	@Timeout(30)
+	void longBacklogIsHandedToAnotherThread() throws Exception {
+		int chain = 10_000;
+
+		var queue = new TypeMaskPacketQueue();
+		var testThread = Thread.currentThread();
+		Set<Thread> threads = ConcurrentHashMap.newKeySet();
+		var count = new AtomicInteger(0);
+
+		// Each packet queues the next as it starts, so the events are submitted while the queue is being drained
+		var first = new CompletableFuture<Void>();
+		scheduleChain(queue, first, chain, count, threads);
+		queue.schedule(new TypePacket(0), first, CompletableFuture.completedFuture(null), CompletableFuture.completedFuture(null));
+
+		while (count.get() < chain) {
+			Thread.sleep(1);
+		}
+
+		queue.flush().get(10, TimeUnit.SECONDS);
+
+		threads.remove(testThread);
+		assertFalse(threads.isEmpty());
+	}
+
+	private static void scheduleChain(TypeMaskPacketQueue queue,
+	                                  CompletableFuture<Void> start,
+	                                  int remaining,
+	                                  AtomicInteger count,
+	                                  Set<Thread> threads) {
+		start.thenRun(() -> {
+			threads.add(Thread.currentThread());
+			count.incrementAndGet();
+
+			if (remaining > 1) {
+				var next = new CompletableFuture<Void>();
+				scheduleChain(queue, next, remaining - 1, count, threads);
+				queue.schedule(new TypePacket(1), next,
+						CompletableFuture.completedFuture(null), CompletableFuture.completedFuture(null));
+			}
+		});
+	}
+}